@@ -0,0 +1,128 @@
+package com.pingidentity.helper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pingidentity.identitystoreprovisioner.BenchmarkDirectory;
+
+/**
+ * The JNDI and UnboundID backends on the same add, read, modify, search and delete workloads,
+ * called directly with the requests the helper sends for a user, so the difference is the client
+ * library alone. Add {@code -prof gc} to compare what each allocates per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LdapBackendBenchmark {
+
+    private static final String[] RETURN_FIELDS = { "cn", "givenName", "sn", "mail", "title", "telephoneNumber", "accountActive" };
+
+    @Param({ BenchmarkDirectory.UNBOUNDID, BenchmarkDirectory.JNDI })
+    public String client;
+
+    @Param({ "10000" })
+    public int population;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong modified = new AtomicLong();
+
+    private BenchmarkDirectory directory;
+    private LdapBackend backend;
+
+    @Setup
+    public void start() throws Exception {
+
+        directory = new BenchmarkDirectory();
+        backend = directory.backend(client);
+        for (int i = 0; i < population; i++) {
+            backend.add(dn("user-" + i), user("user-" + i), null);
+        }
+    }
+
+    @TearDown
+    public void stop() throws Exception {
+        backend.close();
+        directory.shutDown();
+    }
+
+    @Benchmark
+    public LdapEntry add() throws Exception {
+
+        String cn = "new-" + created.incrementAndGet();
+        return backend.add(dn(cn), user(cn), null);
+    }
+
+    @Benchmark
+    public LdapEntry addAndReadBack() throws Exception {
+
+        String cn = "read-back-" + created.incrementAndGet();
+        return backend.add(dn(cn), user(cn), RETURN_FIELDS);
+    }
+
+    @Benchmark
+    public LdapEntry read() throws Exception {
+        return backend.read(dn(anyUser()), RETURN_FIELDS);
+    }
+
+    @Benchmark
+    public LdapEntry modify() throws Exception {
+        return backend.modify(dn(anyUser()), Collections.singletonList(AttributeChange.replace("sn", "Lee-" + modified.incrementAndGet())), null);
+    }
+
+    @Benchmark
+    public List<LdapEntry> search() throws Exception {
+        return backend.search(BenchmarkDirectory.BASE_DN, "(cn={0})", new Object[] { anyUser() }, RETURN_FIELDS, 2);
+    }
+
+    @Benchmark
+    public void addThenDelete() throws Exception {
+
+        String cn = "deleted-" + created.incrementAndGet();
+        backend.add(dn(cn), user(cn), null);
+        backend.delete(dn(cn));
+    }
+
+    private String anyUser() {
+        return "user-" + ThreadLocalRandom.current().nextInt(population);
+    }
+
+    private static String dn(String cn) {
+        return "cn=" + cn + "," + BenchmarkDirectory.BASE_DN;
+    }
+
+    private static Map<String, List<String>> user(String cn) {
+
+        Map<String, List<String>> user = new LinkedHashMap<String, List<String>>();
+        user.put("objectClass", Arrays.asList("top", "person", "organizationalPerson", "inetOrgPerson"));
+        user.put("cn", Collections.singletonList(cn));
+        user.put("givenName", Collections.singletonList("Ann"));
+        user.put("sn", Collections.singletonList("Lee"));
+        user.put("mail", Collections.singletonList(cn + "@example.com"));
+        user.put("title", Collections.singletonList("Engineer"));
+        user.put("telephoneNumber", Collections.singletonList("+1 555 0100"));
+        user.put("accountActive", Collections.singletonList("true"));
+        return user;
+    }
+}
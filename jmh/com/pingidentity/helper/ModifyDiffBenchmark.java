@@ -0,0 +1,94 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * The diff modifyEntry sends to the directory, worked out by computeChanges between an entry as
+ * read and the entry of a SCIM replace: with nothing changed, one single value changed, and one
+ * value of a large multi-valued attribute swapped. No directory calls are made.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModifyDiffBenchmark {
+
+    /** Values of the multi-valued telephoneNumber attribute. */
+    @Param({ "1", "50" })
+    public int values;
+
+    private LdapHelper helper;
+    private AttributeMap stored;
+    private AttributeMap unchanged;
+    private AttributeMap singleValueChanged;
+    private AttributeMap oneOfManyChanged;
+
+    @Setup
+    public void start() {
+
+        helper = new LdapHelper((LdapBackend) null);
+
+        stored = user(phoneNumbers(0));
+        stored.put("cn", "ann");
+        stored.put("objectClass", "inetOrgPerson");
+
+        unchanged = user(phoneNumbers(0));
+        singleValueChanged = user(phoneNumbers(0));
+        singleValueChanged.put("sn", "Lee-Smith");
+        oneOfManyChanged = user(phoneNumbers(1));
+    }
+
+    @Benchmark
+    public List<AttributeChange> unchanged() {
+        return helper.computeChanges(stored, unchanged);
+    }
+
+    @Benchmark
+    public List<AttributeChange> singleValueChanged() {
+        return helper.computeChanges(stored, singleValueChanged);
+    }
+
+    @Benchmark
+    public List<AttributeChange> oneOfManyChanged() {
+        return helper.computeChanges(stored, oneOfManyChanged);
+    }
+
+    private List<String> phoneNumbers(int firstReplaced) {
+
+        List<String> phoneNumbers = new ArrayList<String>(values);
+        for (int i = 0; i < values; i++) {
+            phoneNumbers.add(i < firstReplaced ? "+1 555 0000" : "+1 555 " + (1000 + i));
+        }
+        return phoneNumbers;
+    }
+
+    private static AttributeMap user(List<String> phoneNumbers) {
+
+        AttributeMap user = new AttributeMap();
+        user.put("givenName", "Ann");
+        user.put("sn", "Lee");
+        user.put("mail", "ann@example.com");
+        user.put("title", "Engineer");
+        user.put("accountActive", "true");
+        user.put("telephoneNumber", new AttributeValue(phoneNumbers));
+        return user;
+    }
+}
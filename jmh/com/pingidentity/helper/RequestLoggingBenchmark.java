@@ -0,0 +1,117 @@
+package com.pingidentity.helper;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * What logging costs a read of one user: the per-attribute lines the read path used to write at
+ * INFO, against the summary line of {@link RequestLogger} written for every request and for one in
+ * a hundred. Run with {@code -prof gc} for the bytes allocated per request. The log records are
+ * dropped by the handler, so only the work on the request thread is measured, not the appender.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestLoggingBenchmark {
+
+    private static final String USER_ID = "ann.lee@example.com";
+    private static final String ENTITY_ID = "https://scim.example.com";
+
+    private Log log;
+    private RequestLogger everyRequest;
+    private RequestLogger sampled;
+    private AttributeMap user;
+
+    @Setup
+    public void start() {
+
+        // INFO on, DEBUG off, as deployed; records are built and handed over, then dropped
+        LogManager.getLogManager().reset();
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.INFO);
+        root.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        log = LogFactory.getLog(RequestLoggingBenchmark.class);
+
+        everyRequest = new RequestLogger();
+        everyRequest.setTokenKey("benchmark");
+        everyRequest.setSampleRate(1);
+        sampled = new RequestLogger();
+        sampled.setTokenKey("benchmark");
+        sampled.setSampleRate(100);
+
+        user = new AttributeMap();
+        user.put("cn", USER_ID);
+        user.put("givenName", "Ann");
+        user.put("sn", "Lee");
+        user.put("mail", USER_ID);
+        user.put("title", "Engineer");
+        user.put("telephoneNumber", "+1 555 0100");
+        user.put("accountActive", "true");
+        user.put("createTimestamp", "20240102030405Z");
+        user.put("modifyTimestamp", "20240607080910Z");
+    }
+
+    /**
+     * The lines a read used to log, with the unguarded debug concatenations of the conversion.
+     */
+    @Benchmark
+    public void perAttributeLines() {
+
+        log.info("reading user id=" + USER_ID);
+        for (Map.Entry<String, AttributeValue> e : user.entrySet()) {
+            log.debug("Checking Attribute: " + e.getKey());
+            log.debug("Adding Value: " + e.getKey() + " -> " + e.getValue());
+        }
+        log.info("Read User: " + USER_ID);
+        log.info("Entity ID: " + ENTITY_ID);
+        log.info("Attributes:");
+        for (Map.Entry<String, AttributeValue> e : user.entrySet()) {
+            log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
+        }
+    }
+
+    @Benchmark
+    public void summaryLine() {
+        everyRequest.logRequest("readUser", USER_ID, ENTITY_ID, LdapMetrics.SUCCESS, 250000L, 1);
+    }
+
+    @Benchmark
+    public void sampledSummaryLine() {
+        sampled.logRequest("readUser", USER_ID, ENTITY_ID, LdapMetrics.SUCCESS, 250000L, 1);
+    }
+}
@@ -0,0 +1,72 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * userEntryToAttributeMap on its own: an entry as read from the directory, with its operational
+ * timestamps, turned into the attributes of the SCIM response. No directory calls are made.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeMappingBenchmark {
+
+    /** Values of the multi-valued telephoneNumber attribute. */
+    @Param({ "1", "50" })
+    public int values;
+
+    private BenchmarkDirectory directory;
+    private LdapProvisioner provisioner;
+    private AttributeMap entry;
+
+    @Setup
+    public void start() throws Exception {
+
+        directory = new BenchmarkDirectory();
+        provisioner = directory.provisioner(BenchmarkDirectory.UNBOUNDID);
+
+        entry = BenchmarkRequest.user("ann", "Lee");
+        entry.remove("username");
+        entry.put("cn", "ann");
+        entry.put("objectClass", new AttributeValue(Arrays.asList("top", "person", "organizationalPerson", "inetOrgPerson")));
+        entry.put("createTimestamp", "20240102030405Z");
+        entry.put("modifyTimestamp", "20240607080910Z");
+
+        List<String> phoneNumbers = new ArrayList<String>(values);
+        for (int i = 0; i < values; i++) {
+            phoneNumbers.add("+1 555 " + (1000 + i));
+        }
+        entry.put("telephoneNumber", new AttributeValue(phoneNumbers));
+    }
+
+    @TearDown
+    public void stop() throws Exception {
+        directory.shutDown();
+    }
+
+    @Benchmark
+    public AttributeMap userEntryToAttributeMap() {
+        return provisioner.userEntryToAttributeMap(entry);
+    }
+}
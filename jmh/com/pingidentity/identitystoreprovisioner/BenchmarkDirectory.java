@@ -0,0 +1,160 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingException;
+
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.gui.FieldDescriptor;
+
+import com.pingidentity.helper.JndiLdapBackend;
+import com.pingidentity.helper.LdapBackend;
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.helper.UnboundIdLdapBackend;
+import com.pingidentity.sdk.GuiConfigDescriptor;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+
+/**
+ * An UnboundID in-memory directory run in process for the benchmarks, and provisioners configured
+ * against it over a local connection as the admin console would configure them, optionally through a
+ * {@link DelayingRelay} that adds network latency.
+ */
+public class BenchmarkDirectory {
+
+    public static final String BASE_DN = "ou=people,dc=example,dc=com";
+
+    public static final String JNDI = "JNDI";
+    public static final String UNBOUNDID = "UnboundID LDAP SDK";
+
+    private static final String BIND_DN = "cn=Directory Manager";
+    private static final String BIND_PASSWORD = "password";
+
+    private final InMemoryDirectoryServer server;
+    private final DelayingRelay relay;
+
+    public BenchmarkDirectory() throws LDAPException, LDIFException, IOException {
+        this(0);
+    }
+
+    /**
+     * @param delayMillis latency added to the connections in each direction
+     */
+    public BenchmarkDirectory(long delayMillis) throws LDAPException, LDIFException, IOException {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        // accountActive is not in the standard schema
+        config.setSchema(null);
+
+        server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        relay = delayMillis > 0 ? new DelayingRelay(server.getListenPort(), delayMillis) : null;
+        clear();
+    }
+
+    public InMemoryDirectoryServer getServer() {
+        return server;
+    }
+
+    /**
+     * Removes every user, leaving the container.
+     */
+    public void clear() throws LDAPException, LDIFException {
+        server.clear();
+        server.add("dn: dc=example,dc=com", "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+    }
+
+    /**
+     * A provisioner on the given LDAP client, with request logging off and the other settings at
+     * their defaults unless given as name, value pairs.
+     */
+    public LdapProvisioner provisioner(String client, String... settings) {
+
+        LdapProvisioner provisioner = new LdapProvisioner();
+
+        Settings configuration = new Settings(provisioner.getPluginDescriptor().getGuiConfigDescriptor());
+        configuration.set("LDAP container to provision", BASE_DN);
+        configuration.set("LDAP client", client);
+        configuration.set("Request log sampling", "0");
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            configuration.set(settings[i], settings[i + 1]);
+        }
+        configuration.attributeNames.addAll(Arrays.asList("givenName", "sn", "mail", "title", "telephoneNumber", "accountActive"));
+
+        provisioner.configure(configuration, getUrl(), BIND_DN, BIND_PASSWORD);
+        return provisioner;
+    }
+
+    /**
+     * A bare backend of the given LDAP client, without the provisioner around it.
+     */
+    public LdapBackend backend(String client) throws NamingException {
+        return UNBOUNDID.equals(client) ? new UnboundIdLdapBackend(getUrl(), BIND_DN, BIND_PASSWORD, new LdapPoolSettings())
+                : new JndiLdapBackend(getUrl(), BIND_DN, BIND_PASSWORD, new LdapPoolSettings());
+    }
+
+    private String getUrl() {
+        return "ldap://localhost:" + (relay != null ? relay.getPort() : server.getListenPort());
+    }
+
+    public void shutDown() throws IOException {
+        if (relay != null) {
+            relay.close();
+        }
+        server.shutDown(true);
+    }
+
+    private static class Settings extends Configuration {
+
+        private final Map<String, String> fields = new LinkedHashMap<String, String>();
+        private final Set<String> attributeNames = new LinkedHashSet<String>();
+
+        Settings(GuiConfigDescriptor gui) {
+
+            for (FieldDescriptor field : gui.getFields()) {
+                fields.put(field.getName(), field.getDefaultValue());
+            }
+            for (FieldDescriptor field : gui.getAdvancedFields()) {
+                fields.put(field.getName(), field.getDefaultValue());
+            }
+        }
+
+        void set(String name, String value) {
+
+            if (!fields.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown provisioner setting \"" + name + "\"");
+            }
+            fields.put(name, value);
+        }
+
+        @Override
+        public String getFieldValue(String name) {
+            return fields.get(name);
+        }
+
+        @Override
+        public int getIntFieldValue(String name) {
+            String value = fields.get(name);
+            return value != null && value.trim().length() > 0 ? Integer.parseInt(value.trim()) : 0;
+        }
+
+        @Override
+        public boolean getBooleanFieldValue(String name) {
+            return Boolean.parseBoolean(fields.get(name));
+        }
+
+        @Override
+        public Set<String> getAdditionalAttrNames() {
+            return attributeNames;
+        }
+    }
+}
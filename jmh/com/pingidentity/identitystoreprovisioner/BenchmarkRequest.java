@@ -0,0 +1,54 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.provision.users.request.CreateUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.DeleteUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.ReadUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.UpdateUserRequestContext;
+
+/**
+ * A SCIM request for one user, usable as the context of any provisioner call.
+ */
+class BenchmarkRequest implements CreateUserRequestContext, ReadUserRequestContext, UpdateUserRequestContext, DeleteUserRequestContext {
+
+    private final String userId;
+    private final AttributeMap attributes;
+
+    BenchmarkRequest(String userId, AttributeMap attributes) {
+        this.userId = userId;
+        this.attributes = attributes;
+    }
+
+    BenchmarkRequest(String userId) {
+        this(userId, new AttributeMap());
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getEntityId() {
+        return "benchmark";
+    }
+
+    public AttributeMap getUserAttributes() {
+        return attributes;
+    }
+
+    /**
+     * A user with the attributes a typical SCIM client sends.
+     */
+    static AttributeMap user(String username, String surname) {
+
+        AttributeMap user = new AttributeMap();
+        user.put("username", username);
+        user.put("givenName", "Ann");
+        user.put("sn", surname);
+        user.put("mail", username + "@example.com");
+        user.put("title", "Engineer");
+        user.put("telephoneNumber", "+1 555 0100");
+        user.put("accountActive", "true");
+        return user;
+    }
+}
@@ -0,0 +1,95 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Creates per second of a batch of new users, one createUser call after the other against
+ * {@link BulkProvisioner} with its lanes and pipelined writes, over the UnboundID client against an
+ * in-memory directory. With one outstanding write per connection the bulk path only spreads the
+ * batch over its lanes; the larger window shows what pipelining adds on top. The in-memory directory
+ * answers over loopback in microseconds, so the network delay stands in for a directory across a LAN.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BulkProvisionerBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({ "0", "1" })
+    public long delayMillis;
+
+    @Param({ "4" })
+    public int lanes;
+
+    @Param({ "1", "32" })
+    public int outstanding;
+
+    private BenchmarkDirectory directory;
+    private LdapProvisioner provisioner;
+    private BulkProvisioner bulk;
+    private int batch;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+
+        directory = new BenchmarkDirectory(delayMillis);
+        provisioner = directory.provisioner(BenchmarkDirectory.UNBOUNDID);
+        bulk = new BulkProvisioner(provisioner, lanes, outstanding);
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() throws Exception {
+        directory.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        bulk.shutdown();
+        directory.shutDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int serialCreates() throws Exception {
+
+        String prefix = "serial-" + (batch++) + "-";
+        for (int i = 0; i < BATCH; i++) {
+            provisioner.createUser(new BenchmarkRequest(prefix + i, BenchmarkRequest.user(prefix + i, "Lee")));
+        }
+        return BATCH;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<BulkProvisioner.Result> bulkCreates() throws Exception {
+
+        String prefix = "bulk-" + (batch++) + "-";
+        List<BulkProvisioner.Operation> operations = new ArrayList<BulkProvisioner.Operation>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            operations.add(BulkProvisioner.Operation.create(new BenchmarkRequest(prefix + i, BenchmarkRequest.user(prefix + i, "Lee"))));
+        }
+
+        List<BulkProvisioner.Result> results = bulk.execute(operations);
+        for (BulkProvisioner.Result result : results) {
+            if (result.getStatus() != BulkProvisioner.Status.SUCCESS) {
+                throw new IllegalStateException(result.toString());
+            }
+        }
+        return results;
+    }
+}
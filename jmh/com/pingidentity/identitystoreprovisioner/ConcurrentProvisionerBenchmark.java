@@ -0,0 +1,12 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * {@link ProvisionerBenchmark} with several callers at once, as PingFederate serves concurrent
+ * SCIM requests, sharing the provisioner and its connection pool. Updates may hit the same user
+ * from two threads and queue in its write lane, as they would in production.
+ */
+@Threads(4)
+public class ConcurrentProvisionerBenchmark extends ProvisionerBenchmark {
+}
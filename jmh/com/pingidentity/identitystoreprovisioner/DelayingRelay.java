@@ -0,0 +1,124 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A TCP relay in front of the in-memory directory that holds back every chunk of data for a fixed
+ * delay in each direction, keeping the order, as a network with that latency would. Requests sent
+ * without waiting still overlap, so it shows what a connection gains from having many outstanding.
+ */
+class DelayingRelay implements Runnable {
+
+    private final ServerSocket listener;
+    private final int targetPort;
+    private final long delayNanos;
+
+    DelayingRelay(int targetPort, long delayMillis) throws IOException {
+
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.targetPort = targetPort;
+        this.delayNanos = delayMillis * 1000000L;
+
+        Thread acceptor = new Thread(this, "delaying-relay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return listener.getLocalPort();
+    }
+
+    public void run() {
+
+        while (!listener.isClosed()) {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                relay(client, server);
+                relay(server, client);
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    void close() throws IOException {
+        listener.close();
+    }
+
+    private void relay(final Socket from, final Socket to) throws IOException {
+
+        final InputStream in = from.getInputStream();
+        final OutputStream out = to.getOutputStream();
+        final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+
+        Thread reader = new Thread("delaying-relay-reader") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[16384];
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        chunks.add(new Chunk(System.nanoTime() + delayNanos, Arrays.copyOf(buffer, read)));
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+                chunks.add(new Chunk(0, null));
+            }
+        };
+
+        Thread writer = new Thread("delaying-relay-writer") {
+            @Override
+            public void run() {
+                try {
+                    Chunk chunk;
+                    while ((chunk = chunks.take()).data != null) {
+                        long wait = chunk.dueNanos - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                        out.write(chunk.data);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // closed
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        };
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static class Chunk {
+
+        final long dueNanos;
+        final byte[] data;
+
+        Chunk(long dueNanos, byte[] data) {
+            this.dueNanos = dueNanos;
+            this.data = data;
+        }
+    }
+}
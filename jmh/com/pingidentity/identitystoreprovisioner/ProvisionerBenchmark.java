@@ -0,0 +1,99 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pingidentity.sdk.provision.users.response.UserResponseContextImpl;
+
+/**
+ * createUser, readUser, updateUser and deleteUser end to end, from the SCIM request to the
+ * directory and back, against an in-memory directory seeded with a population of users, on one
+ * thread; {@link ConcurrentProvisionerBenchmark} runs the same on several. Each is measured as
+ * throughput and as a latency distribution, which JMH reports with its p50 and p99. Add
+ * {@code -prof gc} for the allocation rate per operation.
+ *
+ * Creates add new users for the whole run; deletes follow the default behavior and disable a
+ * user created just before, so they are measured together with that create.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(1)
+public class ProvisionerBenchmark {
+
+    @Param({ BenchmarkDirectory.UNBOUNDID, BenchmarkDirectory.JNDI })
+    public String client;
+
+    @Param({ "10000" })
+    public int population;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+
+    private BenchmarkDirectory directory;
+    private LdapProvisioner provisioner;
+
+    @Setup
+    public void start() throws Exception {
+
+        directory = new BenchmarkDirectory();
+        provisioner = directory.provisioner(client);
+        for (int i = 0; i < population; i++) {
+            provisioner.createUser(new BenchmarkRequest("user-" + i, BenchmarkRequest.user("user-" + i, "Lee")));
+        }
+    }
+
+    @TearDown
+    public void stop() throws Exception {
+        directory.shutDown();
+    }
+
+    @Benchmark
+    public UserResponseContextImpl createUser() throws Exception {
+
+        String id = "new-" + created.incrementAndGet();
+        return provisioner.createUser(new BenchmarkRequest(id, BenchmarkRequest.user(id, "Lee")));
+    }
+
+    @Benchmark
+    public UserResponseContextImpl readUser() throws Exception {
+        return provisioner.readUser(new BenchmarkRequest(anyUser()));
+    }
+
+    @Benchmark
+    public UserResponseContextImpl updateUser() throws Exception {
+
+        String id = anyUser();
+        return provisioner.updateUser(new BenchmarkRequest(id, BenchmarkRequest.user(id, "Lee-" + updated.incrementAndGet())));
+    }
+
+    @Benchmark
+    public void createThenDeleteUser() throws Exception {
+
+        String id = "deleted-" + created.incrementAndGet();
+        provisioner.createUser(new BenchmarkRequest(id, BenchmarkRequest.user(id, "Lee")));
+        provisioner.deleteUser(new BenchmarkRequest(id));
+    }
+
+    private String anyUser() {
+        return "user-" + ThreadLocalRandom.current().nextInt(population);
+    }
+}
@@ -0,0 +1,139 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit on concurrent directory calls using additive increase, multiplicative decrease.
+ *
+ * Every call that completes in normal time raises the limit by 1/limit, so it grows by about one
+ * per round of calls. A call that fails because the directory is overloaded cuts the limit by 10%,
+ * and so does a slow call while recent latency is more than twice the baseline, at most once per
+ * round of calls. Calls beyond the current limit are rejected rather than queued, so a degraded
+ * directory sheds load instead of collecting waiting request threads.
+ *
+ * Recent latency is a fast moving average and the baseline a slow one, both over every call. A
+ * lasting change in latency, or a mix of fast reads and slow writes, moves the baseline along, so
+ * the limit only shrinks while latency is rising and recovers once the baseline has caught up. It
+ * never drops below the configured floor.
+ */
+public class AdaptiveLimiter implements AdaptiveLimiterMBean {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // about the last 10 calls
+    private static final double RECENT_SMOOTHING = 0.1;
+    // about the last 100 calls
+    private static final double BASELINE_SMOOTHING = 0.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    // written under the lock, read without it on the acquire path
+    private volatile double limit;
+    private double baselineNanos;
+    private double recentNanos;
+    private int callsSinceDecrease;
+
+    public AdaptiveLimiter(int minLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Takes a place under the limit if one is free. Each successful acquire must be followed by
+     * exactly one of {@link #onSuccess(long)}, {@link #onDropped()} or {@link #onIgnored()}.
+     */
+    public boolean tryAcquire() {
+
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= getLimit()) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    public synchronized void onSuccess(long elapsedNanos) {
+
+        inFlight.decrementAndGet();
+        callsSinceDecrease++;
+
+        if (baselineNanos == 0) {
+            baselineNanos = elapsedNanos;
+            recentNanos = elapsedNanos;
+        } else {
+            baselineNanos += BASELINE_SMOOTHING * (elapsedNanos - baselineNanos);
+            recentNanos += RECENT_SMOOTHING * (elapsedNanos - recentNanos);
+        }
+
+        if (elapsedNanos > baselineNanos * LATENCY_TOLERANCE && recentNanos > baselineNanos * LATENCY_TOLERANCE) {
+            // one cut per round of calls, however many of them were slow
+            if (callsSinceDecrease >= limit) {
+                decrease();
+            }
+            return;
+        }
+
+        limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+
+    public synchronized void onDropped() {
+        inFlight.decrementAndGet();
+        decrease();
+    }
+
+    /**
+     * Ends a call whose outcome says nothing about the directory's capacity.
+     */
+    public void onIgnored() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public synchronized long getBaselineLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros((long) baselineNanos);
+    }
+
+    public synchronized long getRecentLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros((long) recentNanos);
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveLimiter[limit=" + getLimit() + ", inFlight=" + getInFlight() + ", recentUs=" + getRecentLatencyMicros() + ", baselineUs=" + getBaselineLatencyMicros() + "]";
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        callsSinceDecrease = 0;
+    }
+}
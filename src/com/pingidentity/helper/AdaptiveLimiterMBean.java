@@ -0,0 +1,21 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of an {@link AdaptiveLimiter}.
+ */
+public interface AdaptiveLimiterMBean {
+
+    int getLimit();
+
+    int getMinLimit();
+
+    int getMaxLimit();
+
+    int getInFlight();
+
+    long getBaselineLatencyMicros();
+
+    long getRecentLatencyMicros();
+
+    long getRejectedCount();
+}
@@ -0,0 +1,38 @@
+package com.pingidentity.helper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single change to one attribute of an entry, independent of the LDAP client used to apply it.
+ */
+public class AttributeChange {
+
+    public enum Type { ADD, DELETE, REPLACE }
+
+    private final Type type;
+    private final String name;
+    private final List<String> values;
+
+    public AttributeChange(Type type, String name, List<String> values) {
+        this.type = type;
+        this.name = name;
+        this.values = values != null ? values : Collections.<String>emptyList();
+    }
+
+    public static AttributeChange replace(String name, String value) {
+        return new AttributeChange(Type.REPLACE, name, Collections.singletonList(value));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Works out the smallest set of changes that turns the values an attribute has in the directory
+ * into the values an update asks for.
+ *
+ * Values are compared as sets, exactly as read and as sent, so order and duplicates do not count
+ * as changes. An attribute the update leaves empty is deleted. When only some values of a
+ * multi-valued attribute change, the removed values are deleted and the new ones added, so the
+ * directory writes and replicates only the difference; when that would carry more values than the
+ * new set itself, the attribute is replaced instead. Nothing is produced for an unchanged attribute.
+ */
+public class AttributeDiff {
+
+    private AttributeDiff() {
+    }
+
+    /**
+     * Appends to changes the modifications of one attribute, if any are needed.
+     */
+    public static void diff(String name, Collection<String> original, Collection<String> updated, List<AttributeChange> changes) {
+
+        Set<String> before = valueSet(original);
+        Set<String> after = valueSet(updated);
+
+        if (after.isEmpty()) {
+            if (!before.isEmpty()) {
+                changes.add(new AttributeChange(AttributeChange.Type.DELETE, name, null));
+            }
+            return;
+        }
+
+        if (before.isEmpty()) {
+            changes.add(new AttributeChange(AttributeChange.Type.REPLACE, name, new ArrayList<String>(after)));
+            return;
+        }
+
+        List<String> removed = new ArrayList<String>();
+        for (String value : before) {
+            if (!after.contains(value)) {
+                removed.add(value);
+            }
+        }
+
+        List<String> added = new ArrayList<String>();
+        for (String value : after) {
+            if (!before.contains(value)) {
+                added.add(value);
+            }
+        }
+
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+
+        // a replace carries every new value, per value changes only the difference
+        if (removed.size() + added.size() >= after.size()) {
+            changes.add(new AttributeChange(AttributeChange.Type.REPLACE, name, new ArrayList<String>(after)));
+            return;
+        }
+
+        if (!removed.isEmpty()) {
+            changes.add(new AttributeChange(AttributeChange.Type.DELETE, name, removed));
+        }
+        if (!added.isEmpty()) {
+            changes.add(new AttributeChange(AttributeChange.Type.ADD, name, added));
+        }
+    }
+
+    private static Set<String> valueSet(Collection<String> values) {
+
+        Set<String> set = new LinkedHashSet<String>();
+
+        if (values != null) {
+            for (String value : values) {
+                // values that could not be read as strings cannot be compared or written back
+                if (value != null) {
+                    set.add(value);
+                }
+            }
+        }
+
+        return set;
+    }
+}
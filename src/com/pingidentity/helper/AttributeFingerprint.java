@@ -0,0 +1,103 @@
+package com.pingidentity.helper;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * A 64-bit fingerprint of the attributes an update can write, computed the same way from an entry
+ * read from the directory and from an incoming update, so that an update which would leave the
+ * entry as it is can be recognised without building or sending a modify.
+ *
+ * Both sides are reduced to pairs of directory attribute name and value; names are compared
+ * without regard to case and values exactly. Each pair is hashed on its own and the hashes are
+ * summed, so neither attribute nor value order matters and nothing needs sorting or copying.
+ * Attributes without values count as absent.
+ *
+ * A fingerprint only screens updates: different fingerprints nearly always mean a change, but also
+ * come from a request that repeats a value, and equal fingerprints can hide a change behind a hash
+ * collision. Callers confirm equal fingerprints with an exact comparison before skipping a write.
+ */
+public class AttributeFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private AttributeFingerprint() {
+    }
+
+    /**
+     * Fingerprint of the writable attributes of an entry as read, keyed by directory name.
+     */
+    public static long ofEntry(AttributeMappingPlan plan, AttributeMap entry) {
+
+        long fingerprint = 0;
+
+        for (Map.Entry<String, AttributeValue> e : entry.entrySet()) {
+            if (plan.isWritable(e.getKey())) {
+                fingerprint += hashAttribute(e.getKey(), e.getValue());
+            }
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Fingerprint of the attributes of an update, keyed by request name, after mapping them to
+     * their directory names.
+     */
+    public static long ofUpdate(AttributeMappingPlan plan, AttributeMap update) {
+
+        long fingerprint = 0;
+
+        for (Map.Entry<String, AttributeValue> e : update.entrySet()) {
+            AttributeMappingPlan.Rule rule = plan.forModify(e.getKey());
+
+            if (rule.getAction() != AttributeMappingPlan.Action.SKIP) {
+                fingerprint += hashAttribute(rule.getTargetName(), e.getValue());
+            }
+        }
+
+        return fingerprint;
+    }
+
+    private static long hashAttribute(String name, AttributeValue value) {
+
+        Collection<String> values = value != null ? value.getValues() : null;
+
+        if (values == null) {
+            return 0;
+        }
+
+        long nameHash = FNV_OFFSET;
+        for (int i = 0; i < name.length(); i++) {
+            nameHash = (nameHash ^ Character.toLowerCase(name.charAt(i))) * FNV_PRIME;
+        }
+
+        long sum = 0;
+
+        for (String v : values) {
+            if (v == null) {
+                continue;
+            }
+
+            long hash = nameHash * FNV_PRIME;
+            for (int i = 0; i < v.length(); i++) {
+                hash = (hash ^ v.charAt(i)) * FNV_PRIME;
+            }
+
+            sum += mix(hash);
+        }
+
+        return sum;
+    }
+
+    // spreads every input bit over the whole word, so sums of hashes do not cancel out
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,286 @@
+package com.pingidentity.helper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.pingidentity.sdk.provision.Constants;
+
+/**
+ * How each attribute is converted on its way into and out of the directory, worked out once when
+ * the provisioner is configured instead of with chains of name comparisons on every request.
+ *
+ * There is one table per path: attributes of a create request, attributes of an update request and
+ * attributes read from the directory. Lookups are case-insensitive; an exact-case hit is served from
+ * a hash table, so the usual case costs a single hash lookup. Attributes without a rule pass through
+ * unchanged. Instances are immutable and safe to share between threads.
+ */
+public class AttributeMappingPlan {
+
+    public enum Action {
+        // not sent to, or not returned from, the directory
+        SKIP,
+        // same value under another name
+        RENAME,
+        // generalized time from the directory, returned as a date under another name
+        DECODE_TIMESTAMP,
+        // same name, same value
+        PASSTHROUGH
+    }
+
+    /**
+     * The conversion for one attribute.
+     */
+    public static class Rule {
+
+        private final Action action;
+        private final String targetName;
+
+        Rule(Action action, String targetName) {
+            this.action = action;
+            this.targetName = targetName;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * Name to use on the other side, null for SKIP.
+         */
+        public String getTargetName() {
+            return targetName;
+        }
+
+        @Override
+        public String toString() {
+            return action + (action == Action.RENAME || action == Action.DECODE_TIMESTAMP ? " " + targetName : "");
+        }
+    }
+
+    private static final Rule SKIP = new Rule(Action.SKIP, null);
+
+    /**
+     * The plan for the default contract, used when nothing else has been configured.
+     */
+    public static final AttributeMappingPlan DEFAULT = builder().build();
+
+    private final Table add;
+    private final Table modify;
+    private final Table read;
+    // directory attributes an update writes under a name of its own, such as cn for userName
+    private final Set<String> renamedWriteTargets;
+    // client name to directory name for the attributes of the read contract a filter may name
+    private final Map<String, String> filterable;
+
+    private AttributeMappingPlan(Builder builder) {
+        this.add = new Table(builder.add);
+        this.modify = new Table(builder.modify);
+        this.read = new Table(builder.read);
+
+        Set<String> targets = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (Rule rule : builder.modify.values()) {
+            if (rule.getAction() == Action.RENAME) {
+                targets.add(rule.getTargetName());
+            }
+        }
+        this.renamedWriteTargets = Collections.unmodifiableSet(targets);
+
+        Map<String, String> sources = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, Rule> e : builder.read.entrySet()) {
+            Action action = e.getValue().getAction();
+            if (action == Action.RENAME || action == Action.PASSTHROUGH) {
+                sources.put(e.getValue().getTargetName(), e.getKey());
+            }
+        }
+        // and client names written to one of those directory attributes, such as userName for cn
+        for (Map.Entry<String, Rule> e : builder.modify.entrySet()) {
+            if (e.getValue().getAction() == Action.RENAME) {
+                Rule readRule = builder.read.get(e.getValue().getTargetName());
+                if (readRule != null && readRule.getAction() != Action.SKIP) {
+                    sources.put(e.getKey(), e.getValue().getTargetName());
+                }
+            }
+        }
+        this.filterable = Collections.unmodifiableMap(sources);
+    }
+
+    /**
+     * Conversion of an attribute of a create request to the entry to add.
+     */
+    public Rule forAdd(String name) {
+        return add.get(name);
+    }
+
+    /**
+     * Conversion of an attribute of an update request to a change of the entry.
+     */
+    public Rule forModify(String name) {
+        return modify.get(name);
+    }
+
+    /**
+     * Conversion of an attribute read from the directory to the attribute returned to the client.
+     */
+    public Rule forRead(String name) {
+        return read.get(name);
+    }
+
+    /**
+     * The directory attribute whose value the client sees under clientName, for translating
+     * filters, or null when clientName is not part of the configured read contract. Unlike the
+     * other lookups there is no passthrough, so a filter cannot probe attributes a read never
+     * returns, such as userPassword.
+     */
+    public String toLdapName(String clientName) {
+        return filterable.get(clientName);
+    }
+
+    /**
+     * Whether a directory attribute is one the client reads and writes under a single name, so that
+     * leaving it out of an update means removing it. Naming and operational attributes are not.
+     */
+    public boolean isClientManaged(String ldapName) {
+
+        Rule readRule = forRead(ldapName);
+
+        if (readRule.getAction() != Action.PASSTHROUGH && readRule.getAction() != Action.RENAME) {
+            return false;
+        }
+
+        Rule writeRule = forModify(readRule.getTargetName());
+
+        return writeRule.getAction() != Action.SKIP && writeRule.getTargetName().equalsIgnoreCase(ldapName);
+    }
+
+    /**
+     * Whether an update can write a directory attribute, either as a client managed attribute or as
+     * the target of a renamed one.
+     */
+    public boolean isWritable(String ldapName) {
+        return renamedWriteTargets.contains(ldapName) || isClientManaged(ldapName);
+    }
+
+    /**
+     * A builder preloaded with the rules of the core contract: SCIM metadata is never written,
+     * the username is the cn naming attribute, and the directory's cn and timestamps are returned as
+     * the SCIM id and metadata.
+     */
+    public static Builder builder() {
+
+        Builder builder = new Builder();
+
+        builder.add.put("whenCreated", SKIP);
+        builder.add.put("whenChanged", SKIP);
+        builder.add.put("id", SKIP);
+        // the username is the RDN value of the new entry's DN
+        builder.add.put("userName", SKIP);
+
+        builder.modify.put("whenCreated", SKIP);
+        builder.modify.put("whenChanged", SKIP);
+        builder.modify.put("id", SKIP);
+        builder.modify.put("userName", new Rule(Action.RENAME, "cn"));
+
+        builder.read.put("createTimestamp", new Rule(Action.DECODE_TIMESTAMP, Constants.WHEN_CREATED));
+        builder.read.put("modifyTimestamp", new Rule(Action.DECODE_TIMESTAMP, Constants.WHEN_CHANGED));
+        builder.read.put("cn", new Rule(Action.RENAME, Constants.ID));
+
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeMappingPlan[add=" + add + ", modify=" + modify + ", read=" + read + "]";
+    }
+
+    /**
+     * Collects the rules of a plan. Rules added later replace earlier ones for the same name.
+     */
+    public static class Builder {
+
+        private final Map<String, Rule> add = new TreeMap<String, Rule>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Rule> modify = new TreeMap<String, Rule>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Rule> read = new TreeMap<String, Rule>(String.CASE_INSENSITIVE_ORDER);
+
+        private Builder() {
+        }
+
+        /**
+         * An attribute written and read under the same name, unless a rule for it already exists.
+         */
+        public Builder passthrough(String name) {
+
+            Rule rule = new Rule(Action.PASSTHROUGH, name);
+            putIfAbsent(add, name, rule);
+            putIfAbsent(modify, name, rule);
+            putIfAbsent(read, name, rule);
+
+            return this;
+        }
+
+        /**
+         * A client attribute stored in the directory under another name.
+         */
+        public Builder rename(String clientName, String ldapName) {
+
+            add.put(clientName, new Rule(Action.RENAME, ldapName));
+            modify.put(clientName, new Rule(Action.RENAME, ldapName));
+            read.put(ldapName, new Rule(Action.RENAME, clientName));
+
+            return this;
+        }
+
+        /**
+         * A directory attribute that is read for internal use but not returned to the client.
+         */
+        public Builder skipOnRead(String ldapName) {
+            read.put(ldapName, SKIP);
+            return this;
+        }
+
+        public AttributeMappingPlan build() {
+            return new AttributeMappingPlan(this);
+        }
+
+        private static void putIfAbsent(Map<String, Rule> rules, String name, Rule rule) {
+            if (!rules.containsKey(name)) {
+                rules.put(name, rule);
+            }
+        }
+    }
+
+    /**
+     * One path's rules: exact-case names in a hash table, with a case-insensitive fallback.
+     */
+    private static class Table {
+
+        private final Map<String, Rule> exact;
+        private final Map<String, Rule> ignoringCase;
+
+        Table(Map<String, Rule> rules) {
+            this.exact = Collections.unmodifiableMap(new HashMap<String, Rule>(rules));
+            TreeMap<String, Rule> copy = new TreeMap<String, Rule>(String.CASE_INSENSITIVE_ORDER);
+            copy.putAll(rules);
+            this.ignoringCase = Collections.unmodifiableMap(copy);
+        }
+
+        Rule get(String name) {
+
+            Rule rule = exact.get(name);
+
+            if (rule == null) {
+                rule = ignoringCase.get(name);
+            }
+
+            return rule != null ? rule : new Rule(Action.PASSTHROUGH, name);
+        }
+
+        @Override
+        public String toString() {
+            return ignoringCase.toString();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.pingidentity.helper;
+
+/**
+ * Applies directory change notifications to this node's caches: a changed entry is dropped from the
+ * entry cache and no longer known to be missing, and missed changes empty both caches.
+ */
+public class CacheInvalidator implements DirectoryChangeListener.Consumer {
+
+    private final EntryCache entries;
+    private final NegativeLookupCache notFound;
+
+    /**
+     * Either cache may be null.
+     */
+    public CacheInvalidator(EntryCache entries, NegativeLookupCache notFound) {
+        this.entries = entries;
+        this.notFound = notFound;
+    }
+
+    public void entryChanged(String dn) {
+        if (entries != null) {
+            entries.invalidate(dn);
+        }
+        if (notFound != null) {
+            notFound.remove(dn);
+        }
+    }
+
+    public void changesMissed() {
+        if (entries != null) {
+            entries.clear();
+        }
+        if (notFound != null) {
+            notFound.clear();
+        }
+    }
+}
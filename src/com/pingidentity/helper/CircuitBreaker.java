@@ -0,0 +1,142 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A circuit breaker for directory calls.
+ *
+ * While closed, calls pass and consecutive failures are counted; reaching the threshold opens the
+ * breaker. While open, calls are rejected straight away. Once the open time has passed the breaker
+ * is half open and lets a single probe call through: success closes it, failure opens it again.
+ * Only failures that say the directory is unavailable or overloaded should be reported, not
+ * ordinary results such as an entry that does not exist.
+ */
+public class CircuitBreaker implements CircuitBreakerMBean {
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probeInFlight = new AtomicBoolean();
+
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(0L, openMillis);
+    }
+
+    /**
+     * Whether a call may go ahead. A call that is allowed must be followed by exactly one call to
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnored()}.
+     */
+    public boolean allowRequest() {
+
+        State current = state;
+
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            synchronized (this) {
+                if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    probeInFlight.set(false);
+                }
+            }
+            current = state;
+        }
+
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.HALF_OPEN && probeInFlight.compareAndSet(false, true)) {
+            return true;
+        }
+
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public void onSuccess() {
+
+        consecutiveFailures.set(0);
+
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state == State.HALF_OPEN) {
+                    state = State.CLOSED;
+                    log.info("Directory circuit breaker closed, traffic restored");
+                }
+            }
+        }
+    }
+
+    public void onFailure() {
+
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold && state == State.CLOSED) {
+            open();
+        }
+    }
+
+    /**
+     * Ends an allowed call whose outcome says nothing about the directory's health.
+     */
+    public void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probeInFlight.set(false);
+        }
+    }
+
+    public State getCurrentState() {
+        return state;
+    }
+
+    public String getState() {
+        return state.name();
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + state + ", failures=" + consecutiveFailures.get() + ", opened=" + getOpenedCount() + "]";
+    }
+
+    private synchronized void open() {
+
+        if (state != State.OPEN) {
+            log.warn("Directory circuit breaker opened after " + consecutiveFailures.get() + " consecutive failures, rejecting calls for " + openMillis + " ms");
+            openedCount.incrementAndGet();
+        }
+
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        consecutiveFailures.set(0);
+    }
+}
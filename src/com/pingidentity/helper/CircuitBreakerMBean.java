@@ -0,0 +1,17 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of a {@link CircuitBreaker}.
+ */
+public interface CircuitBreakerMBean {
+
+    String getState();
+
+    int getFailureThreshold();
+
+    long getOpenMillis();
+
+    long getOpenedCount();
+
+    long getRejectedCount();
+}
@@ -0,0 +1,19 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A contention-friendly counter that can be published over JMX.
+ */
+public class Counter implements CounterMBean {
+
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,9 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of a single monotonically increasing counter.
+ */
+public interface CounterMBean {
+
+    long getCount();
+}
@@ -0,0 +1,408 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What a directory server supports, read once from its root DSE (supported controls and extended
+ * operations) and subschema entry (attribute types and object classes), so requests can be checked
+ * and features chosen without asking the server each time.
+ *
+ * Instances are immutable snapshots. {@link #UNKNOWN} stands for a server that has not been probed
+ * yet or whose root DSE or schema could not be read; it supports no control and accepts every
+ * attribute, leaving the verdict to the server as before.
+ */
+public class DirectoryCapabilities {
+
+    public static final String[] ROOT_DSE_FIELDS = { "supportedControl", "supportedExtension", "subschemaSubentry", "vendorName", "vendorVersion" };
+    public static final String[] SCHEMA_FIELDS = { "attributeTypes", "objectClasses" };
+
+    public static final DirectoryCapabilities UNKNOWN = new DirectoryCapabilities(false, Collections.<String>emptyList(), Collections.<String>emptyList(), null, null, null);
+
+    private static final int MAX_SUPERIORS = 32;
+
+    private final boolean rootDseKnown;
+    private final Set<String> supportedControls;
+    private final Set<String> supportedExtensions;
+    private final String vendor;
+
+    // keyed by lower case name and by OID, null when the schema is unknown
+    private final Map<String, Definition> attributeTypes;
+    private final Map<String, Definition> objectClasses;
+
+    private DirectoryCapabilities(boolean rootDseKnown, Collection<String> supportedControls, Collection<String> supportedExtensions, String vendor,
+            Map<String, Definition> attributeTypes, Map<String, Definition> objectClasses) {
+        this.rootDseKnown = rootDseKnown;
+        this.supportedControls = Collections.unmodifiableSet(new TreeSet<String>(supportedControls));
+        this.supportedExtensions = Collections.unmodifiableSet(new TreeSet<String>(supportedExtensions));
+        this.vendor = vendor;
+        this.attributeTypes = attributeTypes;
+        this.objectClasses = objectClasses;
+    }
+
+    /**
+     * Builds a snapshot from the values of a root DSE read with {@link #ROOT_DSE_FIELDS} and, if it
+     * could be read, the attributeTypes and objectClasses values of the subschema entry. Definitions
+     * that do not parse are skipped.
+     */
+    public static DirectoryCapabilities parse(Collection<String> supportedControls, Collection<String> supportedExtensions, String vendor,
+            Collection<String> attributeTypeDefinitions, Collection<String> objectClassDefinitions) {
+
+        Map<String, Definition> attributeTypes = null;
+        Map<String, Definition> objectClasses = null;
+
+        if (attributeTypeDefinitions != null && !attributeTypeDefinitions.isEmpty()) {
+            attributeTypes = index(attributeTypeDefinitions);
+            objectClasses = index(objectClassDefinitions != null ? objectClassDefinitions : Collections.<String>emptyList());
+        }
+
+        return new DirectoryCapabilities(true, nonNull(supportedControls), nonNull(supportedExtensions), vendor, attributeTypes, objectClasses);
+    }
+
+    /**
+     * Whether the root DSE was read. When it was not, {@link #isControlSupported} says nothing.
+     */
+    public boolean isRootDseKnown() {
+        return rootDseKnown;
+    }
+
+    public boolean isSchemaKnown() {
+        return attributeTypes != null;
+    }
+
+    public boolean isControlSupported(String oid) {
+        return supportedControls.contains(oid);
+    }
+
+    public boolean isExtensionSupported(String oid) {
+        return supportedExtensions.contains(oid);
+    }
+
+    public Set<String> getSupportedControls() {
+        return supportedControls;
+    }
+
+    public Set<String> getSupportedExtensions() {
+        return supportedExtensions;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public int getAttributeTypeCount() {
+        return attributeTypes != null ? new HashSet<Definition>(attributeTypes.values()).size() : 0;
+    }
+
+    public int getObjectClassCount() {
+        return objectClasses != null ? new HashSet<Definition>(objectClasses.values()).size() : 0;
+    }
+
+    /**
+     * Whether the schema defines the attribute type, ignoring attribute options such as ;lang-en.
+     * Always true while the schema is unknown.
+     */
+    public boolean isAttributeDefined(String name) {
+        return attributeTypes == null || attributeType(name) != null;
+    }
+
+    public boolean isSingleValued(String name) {
+        Definition type = attributeType(name);
+        return type != null && type.has("SINGLE-VALUE");
+    }
+
+    /**
+     * The syntax OID of an attribute type, inherited from its superior type if it names none, or
+     * null when unknown.
+     */
+    public String getSyntax(String name) {
+
+        Definition type = attributeType(name);
+
+        for (int depth = 0; type != null && depth < MAX_SUPERIORS; depth++) {
+            String syntax = type.first("SYNTAX");
+            if (syntax != null) {
+                // drop a length bound such as {32768}
+                int bound = syntax.indexOf('{');
+                return bound >= 0 ? syntax.substring(0, bound) : syntax;
+            }
+            type = lookup(attributeTypes, type.first("SUP"));
+        }
+
+        return null;
+    }
+
+    /**
+     * Why the directory would refuse to store these values in the attribute, or null when the schema
+     * does not rule it out: the type is undefined, cannot be changed by clients, or is single valued
+     * and given several values.
+     */
+    public String checkAttribute(String name, int valueCount) {
+
+        if (attributeTypes == null) {
+            return null;
+        }
+
+        Definition type = attributeType(name);
+
+        if (type == null) {
+            return "Attribute " + name + " is not defined in the directory schema";
+        }
+        if (type.has("NO-USER-MODIFICATION")) {
+            return "Attribute " + name + " cannot be changed";
+        }
+        if (valueCount > 1 && type.has("SINGLE-VALUE")) {
+            return "Attribute " + name + " takes a single value";
+        }
+
+        return null;
+    }
+
+    /**
+     * An object class with its superior classes, outermost first and by the names the schema gives
+     * them, such as top, person, organizationalPerson, inetOrgPerson. Null when the schema is unknown
+     * or does not define the class.
+     */
+    public List<String> getObjectClassChain(String objectClass) {
+
+        Definition definition = lookup(objectClasses, objectClass);
+
+        if (definition == null) {
+            return null;
+        }
+
+        LinkedList<String> chain = new LinkedList<String>();
+
+        for (int depth = 0; definition != null && depth < MAX_SUPERIORS; depth++) {
+            chain.addFirst(definition.getName());
+            definition = lookup(objectClasses, definition.first("SUP"));
+        }
+
+        if (!chain.getFirst().equalsIgnoreCase("top")) {
+            chain.addFirst("top");
+        }
+
+        return chain;
+    }
+
+    /**
+     * Whether one of the object classes, or a superior of one of them, lists the attribute as
+     * required or allowed. Operational attributes are always allowed. True while the schema is
+     * unknown.
+     */
+    public boolean isAllowedBy(Collection<String> objectClassNames, String attributeName) {
+
+        if (objectClasses == null) {
+            return true;
+        }
+
+        Definition type = attributeType(attributeName);
+        if (type == null) {
+            return false;
+        }
+        String usage = type.first("USAGE");
+        if (usage != null && !usage.equalsIgnoreCase("userApplications")) {
+            return true;
+        }
+
+        for (String objectClass : objectClassNames) {
+            Definition definition = lookup(objectClasses, objectClass);
+
+            for (int depth = 0; definition != null && depth < MAX_SUPERIORS; depth++) {
+                if (lists(definition.all("MUST"), type) || lists(definition.all("MAY"), type)) {
+                    return true;
+                }
+                definition = lookup(objectClasses, definition.first("SUP"));
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+
+        if (!rootDseKnown) {
+            return "DirectoryCapabilities[unknown]";
+        }
+
+        return "DirectoryCapabilities[vendor=" + vendor + ", controls=" + supportedControls.size() + ", extensions=" + supportedExtensions.size()
+                + ", attributeTypes=" + getAttributeTypeCount() + ", objectClasses=" + getObjectClassCount() + "]";
+    }
+
+    private Definition attributeType(String name) {
+
+        if (name == null) {
+            return null;
+        }
+
+        int options = name.indexOf(';');
+        return lookup(attributeTypes, options >= 0 ? name.substring(0, options) : name);
+    }
+
+    private boolean lists(List<String> names, Definition type) {
+
+        for (String name : names) {
+            if (lookup(attributeTypes, name) == type) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Definition lookup(Map<String, Definition> definitions, String name) {
+        return definitions != null && name != null ? definitions.get(name.toLowerCase(Locale.ENGLISH)) : null;
+    }
+
+    private static Collection<String> nonNull(Collection<String> values) {
+        return values != null ? values : Collections.<String>emptyList();
+    }
+
+    private static Map<String, Definition> index(Collection<String> descriptions) {
+
+        Map<String, Definition> definitions = new HashMap<String, Definition>();
+
+        for (String description : descriptions) {
+            Definition definition = Definition.parse(description);
+
+            if (definition == null) {
+                continue;
+            }
+
+            definitions.put(definition.oid.toLowerCase(Locale.ENGLISH), definition);
+            for (String name : definition.all("NAME")) {
+                definitions.put(name.toLowerCase(Locale.ENGLISH), definition);
+            }
+        }
+
+        return definitions;
+    }
+
+    /**
+     * One attribute type or object class description (RFC 4512, section 4.1): its OID and the values
+     * of each keyword, with flags such as SINGLE-VALUE present without values.
+     */
+    static final class Definition {
+
+        // keywords followed by a value or a parenthesized list, all others are flags
+        private static final Set<String> VALUED = new HashSet<String>(Arrays.asList(
+                "NAME", "DESC", "SUP", "EQUALITY", "ORDERING", "SUBSTR", "SYNTAX", "USAGE", "MUST", "MAY", "AUX", "NOT", "APPLIES", "FORM", "OC"));
+
+        final String oid;
+        private final Map<String, List<String>> fields;
+
+        private Definition(String oid, Map<String, List<String>> fields) {
+            this.oid = oid;
+            this.fields = fields;
+        }
+
+        /**
+         * Parses a description, or returns null when it is malformed.
+         */
+        static Definition parse(String description) {
+
+            if (description == null) {
+                return null;
+            }
+
+            List<String> tokens = tokenize(description);
+
+            if (tokens.size() < 3 || !tokens.get(0).equals("(") || !tokens.get(tokens.size() - 1).equals(")")) {
+                return null;
+            }
+
+            String oid = tokens.get(1);
+            Map<String, List<String>> fields = new HashMap<String, List<String>>();
+            int i = 2;
+
+            while (i < tokens.size() - 1) {
+                String keyword = tokens.get(i++).toUpperCase(Locale.ENGLISH);
+                List<String> values = new ArrayList<String>();
+
+                if (VALUED.contains(keyword) || keyword.startsWith("X-")) {
+                    if (i >= tokens.size() - 1) {
+                        return null;
+                    }
+                    if (tokens.get(i).equals("(")) {
+                        for (i++; i < tokens.size() - 1 && !tokens.get(i).equals(")"); i++) {
+                            if (!tokens.get(i).equals("$")) {
+                                values.add(tokens.get(i));
+                            }
+                        }
+                        i++;
+                    } else {
+                        values.add(tokens.get(i++));
+                    }
+                }
+
+                fields.put(keyword, values);
+            }
+
+            return new Definition(oid, fields);
+        }
+
+        String getName() {
+            String name = first("NAME");
+            return name != null ? name : oid;
+        }
+
+        boolean has(String keyword) {
+            return fields.containsKey(keyword);
+        }
+
+        String first(String keyword) {
+            List<String> values = fields.get(keyword);
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+        List<String> all(String keyword) {
+            List<String> values = fields.get(keyword);
+            return values != null ? values : Collections.<String>emptyList();
+        }
+
+        // parentheses, $ and quoted strings (quotes removed, \27 and \5C escapes resolved) or bare words
+        private static List<String> tokenize(String description) {
+
+            List<String> tokens = new ArrayList<String>();
+            int i = 0;
+            int length = description.length();
+
+            while (i < length) {
+                char c = description.charAt(i);
+
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == '$') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '\'') {
+                    int end = description.indexOf('\'', i + 1);
+                    if (end < 0) {
+                        end = length;
+                    }
+                    tokens.add(description.substring(i + 1, end).replace("\\27", "'").replace("\\5C", "\\").replace("\\5c", "\\"));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < length && !Character.isWhitespace(description.charAt(i)) && "()$'".indexOf(description.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(description.substring(start, i));
+                }
+            }
+
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+
+/**
+ * Keeps the capabilities an {@link LdapHelper} works with up to date by probing the directory again
+ * in the background, so schema changes and server upgrades are picked up without a restart. The
+ * first probe runs in the background too, so configuration does not wait for the directory.
+ *
+ * After a failed probe the previous capabilities stay in force, or the defaults while none have been
+ * read yet, and the probe is retried after 1 second, then after twice as long each time up to a
+ * minute, also when periodic refresh is off.
+ */
+public class DirectoryCapabilityMonitor implements DirectoryCapabilityMonitorMBean {
+
+    private static final Log log = LogFactory.getLog(DirectoryCapabilityMonitor.class);
+
+    private static final long FIRST_RETRY_MILLIS = 1000L;
+    private static final long RETRY_MILLIS = 60000L;
+
+    private final LdapHelper helper;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private volatile String lastFailure;
+
+    // only used on the scheduler thread
+    private Runnable onFirstSuccess;
+    private long retryMillis;
+
+    /**
+     * A monitor refreshing every intervalMillis once started; 0 only probes when asked to.
+     */
+    public DirectoryCapabilityMonitor(LdapHelper helper, long intervalMillis) {
+        this.helper = helper;
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ldap-capability-monitor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void start() {
+        start(null);
+    }
+
+    /**
+     * Starts probing in the background. onFirstSuccess, if not null, runs on the monitor's thread
+     * once the capabilities have first been read.
+     */
+    public void start(final Runnable onFirstSuccess) {
+
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    DirectoryCapabilityMonitor.this.onFirstSuccess = onFirstSuccess;
+                    probeAndReschedule();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    public boolean isRootDseKnown() {
+        return helper.getCapabilities().isRootDseKnown();
+    }
+
+    public boolean isSchemaKnown() {
+        return helper.getCapabilities().isSchemaKnown();
+    }
+
+    public String getVendor() {
+        return helper.getCapabilities().getVendor();
+    }
+
+    public String[] getSupportedControls() {
+        return helper.getCapabilities().getSupportedControls().toArray(new String[0]);
+    }
+
+    public String[] getSupportedExtensions() {
+        return helper.getCapabilities().getSupportedExtensions().toArray(new String[0]);
+    }
+
+    public int getAttributeTypeCount() {
+        return helper.getCapabilities().getAttributeTypeCount();
+    }
+
+    public int getObjectClassCount() {
+        return helper.getCapabilities().getObjectClassCount();
+    }
+
+    public boolean isPostReadEnabled() {
+        return helper.isPostReadSupported();
+    }
+
+    public boolean isPagedResultsEnabled() {
+        DirectoryCapabilities capabilities = helper.getCapabilities();
+        return !capabilities.isRootDseKnown() || capabilities.isControlSupported(LdapHelper.PAGED_RESULTS_OID);
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    public String refresh() {
+        probe();
+        return helper.getCapabilities().toString();
+    }
+
+    @Override
+    public String toString() {
+        return helper.getCapabilities().toString();
+    }
+
+    private boolean probe() {
+
+        try {
+            DirectoryCapabilities capabilities = helper.refreshCapabilities();
+            refreshCount.incrementAndGet();
+            log.debug("Directory capabilities: " + capabilities);
+            return true;
+        } catch (IdentityStoreException e) {
+            failureCount.incrementAndGet();
+            lastFailure = e.getMessage();
+            log.warn("Could not read directory capabilities, keeping " + helper.getCapabilities() + ": " + e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            failureCount.incrementAndGet();
+            lastFailure = e.toString();
+            log.warn("Could not read directory capabilities, keeping " + helper.getCapabilities(), e);
+            return false;
+        }
+    }
+
+    private void probeAndReschedule() {
+
+        if (!probe()) {
+            retryMillis = retryMillis == 0 ? FIRST_RETRY_MILLIS : Math.min(2 * retryMillis, RETRY_MILLIS);
+            schedule(intervalMillis > 0 ? Math.min(intervalMillis, retryMillis) : retryMillis);
+            return;
+        }
+
+        retryMillis = 0;
+
+        if (onFirstSuccess != null) {
+            Runnable callback = onFirstSuccess;
+            onFirstSuccess = null;
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                log.warn("Problem acting on the directory capabilities", e);
+            }
+        }
+
+        if (intervalMillis > 0) {
+            schedule(intervalMillis);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    probeAndReschedule();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+}
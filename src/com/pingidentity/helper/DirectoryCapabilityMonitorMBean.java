@@ -0,0 +1,36 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of a {@link DirectoryCapabilityMonitor}.
+ */
+public interface DirectoryCapabilityMonitorMBean {
+
+    boolean isRootDseKnown();
+
+    boolean isSchemaKnown();
+
+    String getVendor();
+
+    String[] getSupportedControls();
+
+    String[] getSupportedExtensions();
+
+    int getAttributeTypeCount();
+
+    int getObjectClassCount();
+
+    boolean isPostReadEnabled();
+
+    boolean isPagedResultsEnabled();
+
+    long getRefreshCount();
+
+    long getFailureCount();
+
+    String getLastFailure();
+
+    /**
+     * Probes the directory again now, returning what was found.
+     */
+    String refresh();
+}
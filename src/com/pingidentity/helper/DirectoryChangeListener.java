@@ -0,0 +1,486 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.net.SocketFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sourceid.saml20.domain.datasource.info.LdapInfo;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.FailoverServerSet;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.IntermediateResponseListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoType;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+
+/**
+ * Watches a subtree of the directory for changes made by anyone, including other engine nodes, and
+ * tells in-process consumers such as the entry cache which DNs changed.
+ *
+ * A background thread keeps one dedicated connection with a long-running search open: LDAP content
+ * synchronization (RFC 4533) in refresh-and-persist mode when the server supports it, otherwise a
+ * persistent search. Only DNs are requested, never attribute values. When the connection is lost
+ * the thread reconnects with a growing delay. A content synchronization session resumes from the
+ * last cookie, so the server replays what was missed; otherwise, or when the server can only say
+ * that something was deleted without naming it, consumers are told that changes were missed and
+ * should drop everything they hold.
+ *
+ * The cookie is only kept in memory. Every start of the listener, after a restart and on each node
+ * of a cluster, begins without one, so the server first lists the DN of every entry under the base
+ * DN before it sends changes. On a large subtree that initial refresh is the main cost of the
+ * listener; the DNs it lists are counted by {@link #getRefreshEntryCount()}. Caches start empty, so
+ * nothing is lost by not resuming across restarts.
+ */
+public class DirectoryChangeListener implements DirectoryChangeListenerMBean {
+
+    private static final Log log = LogFactory.getLog(DirectoryChangeListener.class);
+
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60000L;
+
+    public enum Mode { AUTO, CONTENT_SYNC, PERSISTENT_SEARCH }
+
+    /**
+     * Receives change notifications. Called on the listener's own threads, so implementations must
+     * be thread-safe and quick.
+     */
+    public interface Consumer {
+
+        /**
+         * The entry at dn was added, modified, renamed or deleted.
+         */
+        void entryChanged(String dn);
+
+        /**
+         * Changes may have happened that cannot be named, everything derived from the subtree
+         * should be considered stale.
+         */
+        void changesMissed();
+    }
+
+    private final ServerSet servers;
+    private final SimpleBindRequest bindRequest;
+    private final LdapTls tls;
+    private final List<String> urls;
+    private final String baseDn;
+    private final Mode mode;
+    private final long reconnectDelayMillis;
+
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+
+    private final AtomicLong changeCount = new AtomicLong();
+    private final AtomicLong missedCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+    private final AtomicLong refreshEntryCount = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile Thread thread;
+    private volatile LDAPConnection connection;
+    private volatile String activeMode;
+
+    // RFC 4533 state, written by the connection's reader thread
+    private volatile ASN1OctetString cookie;
+    private volatile boolean initialRefresh;
+
+    public DirectoryChangeListener(LdapInfo ldapConnection, LdapPoolSettings poolSettings, String baseDn, Mode mode) throws NamingException {
+        this(ldapConnection.getServerUrl(), ldapConnection.getPrincipal(), ldapConnection.getCredentials(), poolSettings, baseDn, mode);
+    }
+
+    public DirectoryChangeListener(String serverUrl, String principal, String credentials, LdapPoolSettings poolSettings, String baseDn, Mode mode) throws NamingException {
+
+        this.baseDn = baseDn;
+        this.mode = mode != null ? mode : Mode.AUTO;
+        this.reconnectDelayMillis = Math.max(1000L, poolSettings.getHealthCheckIntervalMillis());
+        this.bindRequest = new SimpleBindRequest(principal, credentials);
+        this.tls = poolSettings.getTls();
+
+        try {
+            List<String> urls = LdapServerSet.parseUrls(serverUrl);
+            String[] hosts = new String[urls.size()];
+            int[] ports = new int[urls.size()];
+            for (int i = 0; i < hosts.length; i++) {
+                LDAPURL url = new LDAPURL(urls.get(i));
+                hosts[i] = url.getHost();
+                ports[i] = url.getPort();
+            }
+
+            LDAPConnectionOptions options = new LDAPConnectionOptions();
+            options.setConnectTimeoutMillis(poolSettings.getConnectTimeoutMillis());
+
+            SocketFactory socketFactory = null;
+            if (tls != null) {
+                tls.configure(options);
+                socketFactory = tls.socketFactoryFor(urls);
+            }
+            this.urls = urls;
+
+            servers = hosts.length == 1 ? new SingleServerSet(hosts[0], ports[0], socketFactory, options) : new FailoverServerSet(hosts, ports, socketFactory, options);
+
+        } catch (LDAPException e) {
+            throw UnboundIdLdapBackend.toNamingException(e);
+        }
+    }
+
+    public void addConsumer(Consumer consumer) {
+        consumers.add(consumer);
+    }
+
+    /**
+     * Starts the background thread. The directory need not be reachable yet.
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+
+        running = true;
+
+        Thread listenerThread = new Thread(new Runnable() {
+            public void run() {
+                listen();
+            }
+        }, "ldap-change-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+
+        thread = listenerThread;
+    }
+
+    /**
+     * Stops listening and closes the connection.
+     */
+    public synchronized void close() {
+
+        running = false;
+
+        LDAPConnection current = connection;
+        if (current != null) {
+            current.close();
+        }
+
+        Thread listenerThread = thread;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    public String getMode() {
+        return activeMode != null ? activeMode : mode.name();
+    }
+
+    public String getBaseDn() {
+        return baseDn;
+    }
+
+    public long getChangeCount() {
+        return changeCount.get();
+    }
+
+    public long getMissedCount() {
+        return missedCount.get();
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    public boolean isResumable() {
+        return cookie != null;
+    }
+
+    public long getRefreshEntryCount() {
+        return refreshEntryCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryChangeListener[" + baseDn + ", " + getMode() + ", connected=" + isConnected() + "]";
+    }
+
+    private void listen() {
+
+        long delay = reconnectDelayMillis;
+
+        while (running) {
+
+            try {
+                LDAPConnection current = servers.getConnection();
+                connection = current;
+
+                if (!running) {
+                    break;
+                }
+
+                if (tls != null) {
+                    tls.startTls(current, urls);
+                }
+                current.bind(bindRequest);
+
+                Mode selected = selectMode(current.getRootDSE());
+                if (selected == null) {
+                    log.warn("The directory supports neither content synchronization nor persistent search, cache entries under "
+                            + baseDn + " will only expire by age");
+                    break;
+                }
+
+                activeMode = selected.name();
+                delay = reconnectDelayMillis;
+                log.info("Listening for directory changes under " + baseDn + " using " + activeMode);
+
+                if (selected == Mode.CONTENT_SYNC) {
+                    syncContent(current);
+                } else {
+                    // a persistent search cannot replay, anything cached before it started may be stale
+                    changesMissed();
+                    persistentSearch(current);
+                }
+
+            } catch (LDAPException e) {
+                if (!running) {
+                    break;
+                }
+                if (e.getResultCode() == ResultCode.E_SYNC_REFRESH_REQUIRED) {
+                    // the server can no longer replay from our cookie, start over
+                    cookie = null;
+                }
+                log.warn("Directory change listener disconnected: " + e.getMessage() + ", reconnecting in " + delay + " ms");
+            } finally {
+                LDAPConnection current = connection;
+                connection = null;
+                if (current != null) {
+                    current.close();
+                }
+            }
+
+            if (initialRefresh) {
+                // cut short before the one miss it owed its consumers
+                initialRefresh = false;
+                changesMissed();
+            }
+
+            if (!running) {
+                break;
+            }
+
+            reconnectCount.incrementAndGet();
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, delay * 2);
+        }
+
+        connection = null;
+    }
+
+    private Mode selectMode(RootDSE rootDSE) {
+
+        boolean contentSync = rootDSE != null && rootDSE.supportsControl(ContentSyncRequestControl.SYNC_REQUEST_OID);
+        boolean persistentSearch = rootDSE != null && rootDSE.supportsControl(PersistentSearchRequestControl.PERSISTENT_SEARCH_REQUEST_OID);
+
+        switch (mode) {
+        case CONTENT_SYNC:
+            return contentSync ? Mode.CONTENT_SYNC : null;
+        case PERSISTENT_SEARCH:
+            return persistentSearch ? Mode.PERSISTENT_SEARCH : null;
+        default:
+            return contentSync ? Mode.CONTENT_SYNC : persistentSearch ? Mode.PERSISTENT_SEARCH : null;
+        }
+    }
+
+    /**
+     * Runs an RFC 4533 refresh-and-persist search until the connection or the search ends.
+     */
+    private void syncContent(LDAPConnection current) throws LDAPException {
+
+        beginSync();
+
+        SearchRequest request = new SearchRequest(new SearchResultListener() {
+            public void searchEntryReturned(SearchResultEntry entry) {
+                onSyncEntry(entry);
+            }
+
+            public void searchReferenceReturned(SearchResultReference reference) {
+            }
+        }, baseDn, SearchScope.SUB, "(objectClass=*)", "1.1");
+
+        request.addControl(new ContentSyncRequestControl(ContentSyncRequestMode.REFRESH_AND_PERSIST, cookie, false));
+        request.setIntermediateResponseListener(new IntermediateResponseListener() {
+            public void intermediateResponseReturned(IntermediateResponse response) {
+                onSyncInfo(response);
+            }
+        });
+        request.setResponseTimeoutMillis(0L);
+
+        SearchResult result = search(current, request);
+
+        ContentSyncDoneControl done = ContentSyncDoneControl.get(result);
+        if (done != null && done.getCookie() != null) {
+            cookie = done.getCookie();
+        }
+    }
+
+    // without a cookie the refresh phase lists every entry, which is reported as one miss at its end
+    void beginSync() {
+        initialRefresh = cookie == null;
+    }
+
+    void onSyncEntry(SearchResultEntry entry) {
+
+        try {
+            ContentSyncStateControl state = ContentSyncStateControl.get(entry);
+
+            if (state == null) {
+                return;
+            }
+            if (state.getCookie() != null) {
+                cookie = state.getCookie();
+            }
+            if (initialRefresh) {
+                refreshEntryCount.incrementAndGet();
+            } else if (state.getState() != ContentSyncState.PRESENT) {
+                entryChanged(entry.getDN());
+            }
+        } catch (LDAPException e) {
+            log.debug("Undecodable sync state control: " + e.getMessage());
+        }
+    }
+
+    void onSyncInfo(IntermediateResponse response) {
+
+        if (!ContentSyncInfoIntermediateResponse.SYNC_INFO_OID.equals(response.getOID())) {
+            return;
+        }
+
+        try {
+            ContentSyncInfoIntermediateResponse info = ContentSyncInfoIntermediateResponse.decode(response);
+
+            if (info.getCookie() != null) {
+                cookie = info.getCookie();
+            }
+
+            // deletions reported by entryUUID, or implied by absence from a present phase, name no DN
+            if (info.getType() == ContentSyncInfoType.SYNC_ID_SET
+                    || (info.getType() == ContentSyncInfoType.REFRESH_PRESENT && !initialRefresh)) {
+                changesMissed();
+            }
+
+            if (info.refreshDone() && initialRefresh) {
+                initialRefresh = false;
+                changesMissed();
+            }
+        } catch (LDAPException e) {
+            log.debug("Undecodable sync info message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a persistent search for changes only until the connection or the search ends.
+     */
+    private void persistentSearch(LDAPConnection current) throws LDAPException {
+
+        SearchRequest request = new SearchRequest(new SearchResultListener() {
+            public void searchEntryReturned(SearchResultEntry entry) {
+                onPersistentSearchEntry(entry);
+            }
+
+            public void searchReferenceReturned(SearchResultReference reference) {
+            }
+        }, baseDn, SearchScope.SUB, "(objectClass=*)", "1.1");
+
+        request.addControl(new PersistentSearchRequestControl(PersistentSearchChangeType.allChangeTypes(), true, true));
+        request.setResponseTimeoutMillis(0L);
+
+        search(current, request);
+    }
+
+    void onPersistentSearchEntry(SearchResultEntry entry) {
+
+        entryChanged(entry.getDN());
+
+        try {
+            EntryChangeNotificationControl notification = EntryChangeNotificationControl.get(entry);
+
+            if (notification != null && notification.getChangeType() == PersistentSearchChangeType.MODIFY_DN
+                    && notification.getPreviousDN() != null) {
+                entryChanged(notification.getPreviousDN());
+            }
+        } catch (LDAPException e) {
+            log.debug("Undecodable entry change notification: " + e.getMessage());
+        }
+    }
+
+    private static SearchResult search(LDAPConnection current, SearchRequest request) throws LDAPException {
+
+        try {
+            return current.search(request);
+        } catch (LDAPSearchException e) {
+            if (e.getResultCode() == ResultCode.SUCCESS) {
+                return e.getSearchResult();
+            }
+            throw e;
+        }
+    }
+
+    private void entryChanged(String dn) {
+
+        changeCount.incrementAndGet();
+
+        for (Consumer consumer : consumers) {
+            try {
+                consumer.entryChanged(dn);
+            } catch (RuntimeException e) {
+                log.warn("Directory change consumer failed: " + e);
+            }
+        }
+    }
+
+    private void changesMissed() {
+
+        missedCount.incrementAndGet();
+
+        for (Consumer consumer : consumers) {
+            try {
+                consumer.changesMissed();
+            } catch (RuntimeException e) {
+                log.warn("Directory change consumer failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of a {@link DirectoryChangeListener}.
+ */
+public interface DirectoryChangeListenerMBean {
+
+    boolean isConnected();
+
+    String getMode();
+
+    String getBaseDn();
+
+    long getChangeCount();
+
+    long getMissedCount();
+
+    long getReconnectCount();
+
+    boolean isResumable();
+
+    long getRefreshEntryCount();
+}
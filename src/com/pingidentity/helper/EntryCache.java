@@ -0,0 +1,223 @@
+package com.pingidentity.helper;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * A bounded, least-recently-used cache of directory entries keyed by normalized DN. Entries expire
+ * after a fixed time to live so changes made outside this node are picked up eventually.
+ *
+ * Every put and invalidate of a DN moves its write stamp on. A reader that missed the cache takes the
+ * stamp before reading the directory and caches what it read with putIfUnchanged, which drops the
+ * entry when a write has been recorded since, so a slow read cannot bring back an entry that was
+ * updated or deleted while it ran. Stamps are kept per hash stripe rather than per DN, so memory stays
+ * fixed; a write to another DN of the same stripe only costs a read an uncached answer.
+ */
+public class EntryCache implements EntryCacheMBean {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, CachedEntry> entries;
+    private final long[] stamps;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+
+    public EntryCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.stamps = new long[Integer.highestOneBit(Math.max(2, Math.min(maxSize, 1 << 16)) - 1) << 1];
+        this.entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+                if (size() > EntryCache.this.maxSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached entry for dn, or null when it is not cached or has expired.
+     */
+    public LdapEntry get(String dn) {
+
+        String key = normalizeDn(dn);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            CachedEntry cached = entries.get(key);
+
+            if (cached != null && cached.expires > now) {
+                hitCount.incrementAndGet();
+                return cached.entry;
+            }
+
+            if (cached != null) {
+                entries.remove(key);
+                expirationCount.incrementAndGet();
+            }
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches an entry as just written.
+     */
+    public void put(LdapEntry entry) {
+
+        String key = normalizeDn(entry.getDn());
+        CachedEntry cached = new CachedEntry(entry, System.currentTimeMillis() + ttlMillis);
+
+        synchronized (entries) {
+            stamps[stripe(key)]++;
+            entries.put(key, cached);
+        }
+    }
+
+    /**
+     * The write stamp of dn, to be taken before reading the entry from the directory.
+     */
+    public long stamp(String dn) {
+
+        String key = normalizeDn(dn);
+
+        synchronized (entries) {
+            return stamps[stripe(key)];
+        }
+    }
+
+    /**
+     * Caches an entry as read from the directory, unless a put or invalidate of its DN has happened
+     * since the stamp was taken. Returns whether it was cached.
+     */
+    public boolean putIfUnchanged(LdapEntry entry, long stamp) {
+
+        String key = normalizeDn(entry.getDn());
+        CachedEntry cached = new CachedEntry(entry, System.currentTimeMillis() + ttlMillis);
+
+        synchronized (entries) {
+            if (stamps[stripe(key)] != stamp) {
+                return false;
+            }
+            entries.put(key, cached);
+            return true;
+        }
+    }
+
+    public void invalidate(String dn) {
+
+        String key = normalizeDn(dn);
+
+        synchronized (entries) {
+            stamps[stripe(key)]++;
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            for (int i = 0; i < stamps.length; i++) {
+                stamps[i]++;
+            }
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getSize() {
+        return size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EntryCache[size=" + size() + ", max=" + maxSize + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", expirations=" + getExpirationCount() + "]";
+    }
+
+    /**
+     * Normalizes a DN so that differences in case and spacing do not produce separate cache keys.
+     */
+    public static String normalizeDn(String dn) {
+
+        try {
+            List<Rdn> rdns = new LdapName(dn).getRdns();
+            StringBuilder normalized = new StringBuilder(dn.length());
+
+            // LdapName lists RDNs from the root, a DN string starts at the leaf
+            for (int i = rdns.size() - 1; i >= 0; i--) {
+                Rdn rdn = rdns.get(i);
+
+                if (normalized.length() > 0) {
+                    normalized.append(',');
+                }
+                normalized.append(rdn.toString().toLowerCase(Locale.ENGLISH));
+            }
+
+            return normalized.toString();
+
+        } catch (InvalidNameException e) {
+            return dn.trim().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (stamps.length - 1);
+    }
+
+    private static class CachedEntry {
+
+        private final LdapEntry entry;
+        private final long expires;
+
+        CachedEntry(LdapEntry entry, long expires) {
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of the statistics of an {@link EntryCache}.
+ */
+public interface EntryCacheMBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getTtlMillis();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    long getExpirationCount();
+}
@@ -0,0 +1,103 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.naming.NamingException;
+
+/**
+ * Decorator that runs every call to another {@link LdapBackend} through an {@link LdapExecutor}, so
+ * directory calls are bounded in number and in time.
+ */
+public class ExecutorLdapBackend implements LdapBackend {
+
+    private final LdapBackend delegate;
+    private final LdapExecutor executor;
+
+    public ExecutorLdapBackend(LdapBackend delegate, LdapExecutor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    public LdapBackend getDelegate() {
+        return delegate;
+    }
+
+    public LdapExecutor getExecutor() {
+        return executor;
+    }
+
+    public LdapEntry add(final String dn, final Map<String, List<String>> attributes, final String[] postReadFields) throws NamingException {
+
+        return executor.call(new Callable<LdapEntry>() {
+            public LdapEntry call() throws NamingException {
+                return delegate.add(dn, attributes, postReadFields);
+            }
+        });
+    }
+
+    public LdapEntry modify(final String dn, final List<AttributeChange> changes, final String[] postReadFields) throws NamingException {
+
+        return executor.call(new Callable<LdapEntry>() {
+            public LdapEntry call() throws NamingException {
+                return delegate.modify(dn, changes, postReadFields);
+            }
+        });
+    }
+
+    public void delete(final String dn) throws NamingException {
+
+        executor.call(new Callable<Void>() {
+            public Void call() throws NamingException {
+                delegate.delete(dn);
+                return null;
+            }
+        });
+    }
+
+    public LdapEntry read(final String dn, final String[] returnFields) throws NamingException {
+
+        return executor.call(new Callable<LdapEntry>() {
+            public LdapEntry call() throws NamingException {
+                return delegate.read(dn, returnFields);
+            }
+        });
+    }
+
+    public List<LdapEntry> search(final String baseDn, final String filter, final Object[] filterArgs, final String[] returnFields, final int sizeLimit) throws NamingException {
+
+        return executor.call(new Callable<List<LdapEntry>>() {
+            public List<LdapEntry> call() throws NamingException {
+                return delegate.search(baseDn, filter, filterArgs, returnFields, sizeLimit);
+            }
+        });
+    }
+
+    /**
+     * Runs on the calling thread: a streamed search is a long-running background read that would
+     * hold a slot for its whole length and could not meet a per-call deadline.
+     */
+    public int searchPaged(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int pageSize, LdapEntryHandler handler) throws NamingException {
+        return delegate.searchPaged(baseDn, filter, filterArgs, returnFields, pageSize, handler);
+    }
+
+    public boolean isControlSupported(final String oid) throws NamingException {
+
+        return executor.call(new Callable<Boolean>() {
+            public Boolean call() throws NamingException {
+                return delegate.isControlSupported(oid);
+            }
+        });
+    }
+
+    public void close() {
+        executor.shutdown();
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate + " via " + executor;
+    }
+}
@@ -0,0 +1,198 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+/**
+ * Decorator that puts a {@link CircuitBreaker} and an {@link AdaptiveLimiter} in front of another
+ * {@link LdapBackend}. Either may be null. Calls the breaker or the limiter turns away fail at once
+ * with a ServiceUnavailableException instead of waiting on a directory that cannot keep up.
+ */
+public class GuardedLdapBackend implements LdapBackend {
+
+    private final LdapBackend delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final AdaptiveLimiter limiter;
+
+    public GuardedLdapBackend(LdapBackend delegate, CircuitBreaker circuitBreaker, AdaptiveLimiter limiter) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+        this.limiter = limiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Whether an exception means the directory is unreachable, overloaded or too slow, as opposed to
+     * an answer about the request itself.
+     */
+    public static boolean isUnavailable(NamingException e) {
+        return LdapConnectionPool.isConnectionError(e) || e instanceof TimeLimitExceededException;
+    }
+
+    public LdapEntry add(final String dn, final Map<String, List<String>> attributes, final String[] postReadFields) throws NamingException {
+
+        return call(new Call<LdapEntry>() {
+            public LdapEntry run() throws NamingException {
+                return delegate.add(dn, attributes, postReadFields);
+            }
+        });
+    }
+
+    public LdapEntry modify(final String dn, final List<AttributeChange> changes, final String[] postReadFields) throws NamingException {
+
+        return call(new Call<LdapEntry>() {
+            public LdapEntry run() throws NamingException {
+                return delegate.modify(dn, changes, postReadFields);
+            }
+        });
+    }
+
+    public void delete(final String dn) throws NamingException {
+
+        call(new Call<Void>() {
+            public Void run() throws NamingException {
+                delegate.delete(dn);
+                return null;
+            }
+        });
+    }
+
+    public LdapEntry read(final String dn, final String[] returnFields) throws NamingException {
+
+        return call(new Call<LdapEntry>() {
+            public LdapEntry run() throws NamingException {
+                return delegate.read(dn, returnFields);
+            }
+        });
+    }
+
+    public List<LdapEntry> search(final String baseDn, final String filter, final Object[] filterArgs, final String[] returnFields, final int sizeLimit) throws NamingException {
+
+        return call(new Call<List<LdapEntry>>() {
+            public List<LdapEntry> run() throws NamingException {
+                return delegate.search(baseDn, filter, filterArgs, returnFields, sizeLimit);
+            }
+        });
+    }
+
+    /**
+     * Subject to the circuit breaker but not to the adaptive limit, whose latency baseline a
+     * long-running stream would distort.
+     */
+    public int searchPaged(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int pageSize, LdapEntryHandler handler) throws NamingException {
+
+        if (circuitBreaker == null) {
+            return delegate.searchPaged(baseDn, filter, filterArgs, returnFields, pageSize, handler);
+        }
+
+        if (!circuitBreaker.allowRequest()) {
+            throw new ServiceUnavailableException("LDAP circuit breaker is open, directory calls are suspended");
+        }
+
+        boolean unavailable = false;
+        boolean failed = false;
+
+        try {
+            return delegate.searchPaged(baseDn, filter, filterArgs, returnFields, pageSize, handler);
+        } catch (NamingException e) {
+            failed = true;
+            unavailable = isUnavailable(e);
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            if (unavailable) {
+                circuitBreaker.onFailure();
+            } else if (failed) {
+                circuitBreaker.onIgnored();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+    }
+
+    public boolean isControlSupported(final String oid) throws NamingException {
+
+        return call(new Call<Boolean>() {
+            public Boolean run() throws NamingException {
+                return delegate.isControlSupported(oid);
+            }
+        });
+    }
+
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private interface Call<T> {
+        T run() throws NamingException;
+    }
+
+    private <T> T call(Call<T> call) throws NamingException {
+
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new ServiceUnavailableException("LDAP circuit breaker is open, directory calls are suspended");
+        }
+
+        if (limiter != null && !limiter.tryAcquire()) {
+            if (circuitBreaker != null) {
+                circuitBreaker.onIgnored();
+            }
+            throw new ServiceUnavailableException("LDAP concurrency limit of " + limiter.getLimit() + " reached");
+        }
+
+        long start = System.nanoTime();
+        boolean unavailable = false;
+        boolean failed = false;
+
+        try {
+            return call.run();
+        } catch (NamingException e) {
+            failed = true;
+            unavailable = isUnavailable(e);
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+
+            if (circuitBreaker != null) {
+                if (unavailable) {
+                    circuitBreaker.onFailure();
+                } else if (failed) {
+                    circuitBreaker.onIgnored();
+                } else {
+                    circuitBreaker.onSuccess();
+                }
+            }
+
+            if (limiter != null) {
+                if (unavailable) {
+                    limiter.onDropped();
+                } else if (failed) {
+                    limiter.onIgnored();
+                } else {
+                    limiter.onSuccess(elapsed);
+                }
+            }
+        }
+    }
+}
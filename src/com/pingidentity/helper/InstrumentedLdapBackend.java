@@ -0,0 +1,144 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+
+/**
+ * Decorator that times every call to another {@link LdapBackend} and records its latency, result
+ * code and round trip in {@link LdapMetrics}.
+ */
+public class InstrumentedLdapBackend implements LdapBackend {
+
+    private final LdapBackend delegate;
+    private final LdapMetrics metrics;
+
+    public InstrumentedLdapBackend(LdapBackend delegate, LdapMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public LdapBackend getDelegate() {
+        return delegate;
+    }
+
+    public LdapEntry add(String dn, Map<String, List<String>> attributes, String[] postReadFields) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            return delegate.add(dn, attributes, postReadFields);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.add", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public LdapEntry modify(String dn, List<AttributeChange> changes, String[] postReadFields) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            return delegate.modify(dn, changes, postReadFields);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.modify", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public void delete(String dn) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            delegate.delete(dn);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.delete", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public LdapEntry read(String dn, String[] returnFields) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            LdapEntry entry = delegate.read(dn, returnFields);
+            if (entry == null) {
+                resultCode = "32";
+            }
+            return entry;
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.read", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public List<LdapEntry> search(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int sizeLimit) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            return delegate.search(baseDn, filter, filterArgs, returnFields, sizeLimit);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.search", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public int searchPaged(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int pageSize, LdapEntryHandler handler) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            return delegate.searchPaged(baseDn, filter, filterArgs, returnFields, pageSize, handler);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            // includes the time spent in the handler
+            metrics.recordLdapOperation("ldap.search.paged", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public boolean isControlSupported(String oid) throws NamingException {
+
+        long start = System.nanoTime();
+        String resultCode = LdapMetrics.SUCCESS;
+
+        try {
+            return delegate.isControlSupported(oid);
+        } catch (NamingException e) {
+            resultCode = LdapMetrics.resultCode(e);
+            throw e;
+        } finally {
+            metrics.recordLdapOperation("ldap.rootDSE", System.nanoTime() - start, resultCode);
+        }
+    }
+
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,427 @@
+package com.pingidentity.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.saml20.domain.datasource.info.LdapInfo;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.helper.LdapConnectionPool.PooledConnection;
+
+/**
+ * LDAP backend on the JDK's JNDI LDAP provider, using contexts from an {@link LdapConnectionPool}
+ * per directory server. Servers are chosen through an {@link LdapServerSet}: writes go to the
+ * preferred primary and reads are spread according to the configured strategy. An operation that
+ * cannot get a connection to one server moves on to the next; a read that loses its connection
+ * mid-flight is retried elsewhere, a write is not since it may already have been applied.
+ */
+public class JndiLdapBackend implements LdapBackend {
+
+    private static final Log log = LogFactory.getLog(JndiLdapBackend.class);
+
+    private final LdapServerSet serverSet;
+
+    // server that took each recent write, null when reads cannot land on another server
+    private final RecentWrites<LdapServerSet.Server> recentWrites;
+
+    public JndiLdapBackend(LdapInfo ldapConnection, LdapPoolSettings poolSettings) {
+        this(ldapConnection.getServerUrl(), ldapConnection.getPrincipal(), ldapConnection.getCredentials(), poolSettings);
+    }
+
+    /**
+     * A backend for the given space separated server URLs and bind credentials, without an LDAP data
+     * store, such as for a directory run in process.
+     */
+    public JndiLdapBackend(String serverUrl, String principal, String credentials, LdapPoolSettings poolSettings) {
+
+        Hashtable<String, Object> ldapEnvironment = new Hashtable<String, Object>();
+        ldapEnvironment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        //set security credentials, note using simple cleartext authentication
+        ldapEnvironment.put(Context.SECURITY_AUTHENTICATION, "simple");
+        ldapEnvironment.put(Context.SECURITY_PRINCIPAL, principal);
+        ldapEnvironment.put(Context.SECURITY_CREDENTIALS, credentials);
+        if (poolSettings.getConnectTimeoutMillis() > 0) {
+            // fail fast on an unreachable server so the next one can be tried
+            ldapEnvironment.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(poolSettings.getConnectTimeoutMillis()));
+        }
+        if (poolSettings.getTls() != null) {
+            // LDAPS and StartTLS through the configuration's shared socket factory
+            ldapEnvironment.put(LdapTls.ENVIRONMENT_PROPERTY, poolSettings.getTls());
+        }
+
+        // contexts are created once per server and shared across requests and threads
+        serverSet = new LdapServerSet(LdapServerSet.parseUrls(serverUrl), ldapEnvironment, poolSettings);
+
+        recentWrites = serverSet.getServers().size() > 1 && poolSettings.getReadAfterWriteWindowMillis() > 0
+                ? new RecentWrites<LdapServerSet.Server>(poolSettings.getReadAfterWriteMaxEntries(), poolSettings.getReadAfterWriteWindowMillis())
+                : null;
+    }
+
+    public LdapServerSet getServerSet() {
+        return serverSet;
+    }
+
+    public LdapEntry add(final String dn, Map<String, List<String>> attributes, final String[] postReadFields) throws NamingException {
+
+        final BasicAttributes attributesToAdd = new BasicAttributes(true);
+        for (Map.Entry<String, List<String>> e : attributes.entrySet()) {
+            attributesToAdd.put(toAttribute(e.getKey(), e.getValue()));
+        }
+
+        final Control[] requestControls = postReadFields != null ? new Control[] { new PostReadControl(postReadFields) } : null;
+
+        return execute(true, dn, requestControls, new Operation<LdapEntry>() {
+            public LdapEntry execute(LdapContext ctx) throws NamingException {
+                ctx.createSubcontext(dn, attributesToAdd).close();
+                return requestControls != null ? PostReadControl.getEntry(ctx.getResponseControls(), dn, postReadFields) : null;
+            }
+        });
+    }
+
+    public LdapEntry modify(final String dn, List<AttributeChange> changes, final String[] postReadFields) throws NamingException {
+
+        final ModificationItem[] mods = new ModificationItem[changes.size()];
+        for (int i = 0; i < mods.length; i++) {
+            AttributeChange change = changes.get(i);
+            mods[i] = new ModificationItem(toModificationOp(change.getType()), toAttribute(change.getName(), change.getValues()));
+        }
+
+        final Control[] requestControls = postReadFields != null ? new Control[] { new PostReadControl(postReadFields) } : null;
+
+        return execute(true, dn, requestControls, new Operation<LdapEntry>() {
+            public LdapEntry execute(LdapContext ctx) throws NamingException {
+                ctx.modifyAttributes(dn, mods);
+                return requestControls != null ? PostReadControl.getEntry(ctx.getResponseControls(), dn, postReadFields) : null;
+            }
+        });
+    }
+
+    public void delete(final String dn) throws NamingException {
+
+        execute(true, dn, null, new Operation<Void>() {
+            public Void execute(LdapContext ctx) throws NamingException {
+                ctx.destroySubcontext(dn);
+                return null;
+            }
+        });
+    }
+
+    public LdapEntry read(final String dn, final String[] returnFields) throws NamingException {
+
+        return execute(false, dn, null, new Operation<LdapEntry>() {
+            public LdapEntry execute(LdapContext ctx) throws NamingException {
+                try {
+                    Attributes attrs = ctx.getAttributes(dn, returnFields);
+                    return new LdapEntry(dn, toAttributeMap(attrs, returnFields));
+                } catch (NameNotFoundException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    public List<LdapEntry> search(final String baseDn, final String filter, final Object[] filterArgs, final String[] returnFields, final int sizeLimit) throws NamingException {
+
+        return execute(false, null, null, new Operation<List<LdapEntry>>() {
+            @SuppressWarnings("rawtypes")
+            public List<LdapEntry> execute(LdapContext ctx) throws NamingException {
+
+                List<LdapEntry> entries = new ArrayList<LdapEntry>();
+
+                SearchControls userSearchCtls = new SearchControls();
+                userSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                userSearchCtls.setReturningAttributes(returnFields);
+                userSearchCtls.setCountLimit(sizeLimit);
+
+                NamingEnumeration userAnswer = ctx.search(baseDn, filter, filterArgs != null ? filterArgs : new Object[0], userSearchCtls);
+
+                try {
+                    while (userAnswer.hasMore()) {
+                        SearchResult sr = (SearchResult) userAnswer.next();
+                        entries.add(new LdapEntry(sr.getNameInNamespace(), toAttributeMap(sr.getAttributes(), returnFields)));
+                    }
+                } catch (SizeLimitExceededException e) {
+                    // more matches than asked for, keep the ones already read
+                } finally {
+                    userAnswer.close();
+                }
+
+                return entries;
+            }
+        });
+    }
+
+    public int searchPaged(final String baseDn, final String filter, final Object[] filterArgs, final String[] returnFields, final int pageSize, final LdapEntryHandler handler) throws NamingException {
+
+        // the first page's control goes through execute so it is cleared from the pooled context afterwards
+        return execute(false, null, pageSize > 0 ? new Control[] { pagedResultsControl(pageSize, null) } : null, new Operation<Integer>() {
+            public Integer execute(LdapContext ctx) throws NamingException {
+
+                SearchControls searchControls = new SearchControls();
+                searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                searchControls.setReturningAttributes(returnFields);
+
+                int delivered = 0;
+
+                try {
+                    byte[] cookie;
+                    do {
+                        NamingEnumeration<SearchResult> answer = ctx.search(baseDn, filter, filterArgs != null ? filterArgs : new Object[0], searchControls);
+
+                        try {
+                            while (answer.hasMore()) {
+                                SearchResult sr = answer.next();
+                                delivered++;
+                                if (!handler.entryReturned(new LdapEntry(sr.getNameInNamespace(), toAttributeMap(sr.getAttributes(), returnFields)))) {
+                                    return delivered;
+                                }
+                            }
+                        } finally {
+                            answer.close();
+                        }
+
+                        cookie = pageSize > 0 ? pagedResultsCookie(ctx.getResponseControls()) : null;
+                        if (cookie != null) {
+                            ctx.setRequestControls(new Control[] { pagedResultsControl(pageSize, cookie) });
+                        }
+                    } while (cookie != null);
+
+                } catch (NamingException e) {
+                    if (delivered > 0) {
+                        // a retry elsewhere would hand the same entries over again
+                        PartialResultException partial = new PartialResultException("Paged search ended after " + delivered + " entries: " + e.getExplanation());
+                        partial.setRootCause(e);
+                        throw partial;
+                    }
+                    throw e;
+                }
+
+                return delivered;
+            }
+        });
+    }
+
+    public boolean isControlSupported(final String oid) throws NamingException {
+
+        return execute(false, null, null, new Operation<Boolean>() {
+            public Boolean execute(LdapContext ctx) throws NamingException {
+                Attribute supportedControls = ctx.getAttributes("", new String[] { "supportedControl" }).get("supportedControl");
+                return supportedControls != null && supportedControls.contains(oid);
+            }
+        });
+    }
+
+    public void close() {
+        serverSet.close();
+    }
+
+    @Override
+    public String toString() {
+        return "JNDI " + serverSet;
+    }
+
+    /**
+     * A directory call made on a borrowed context.
+     */
+    private interface Operation<T> {
+        T execute(LdapContext ctx) throws NamingException;
+    }
+
+    /**
+     * Runs an operation against the servers in write or read order. Moves on to the next server when
+     * no connection can be had, and for reads also when the connection breaks during the operation.
+     * A read of a DN written within the read-after-write window starts with the server that took
+     * the write, so replication lag cannot hide the change from the client that made it.
+     */
+    private <T> T execute(boolean write, String dn, Control[] requestControls, Operation<T> operation) throws NamingException {
+
+        List<LdapServerSet.Server> order;
+        if (write) {
+            order = serverSet.getWriteOrder();
+        } else if (dn != null && recentWrites != null) {
+            order = serverSet.getReadOrder(recentWrites.get(EntryCache.normalizeDn(dn)));
+        } else {
+            order = serverSet.getReadOrder();
+        }
+
+        NamingException lastError = null;
+
+        for (LdapServerSet.Server server : order) {
+
+            PooledConnection connection;
+            try {
+                connection = server.getPool().borrow();
+            } catch (NamingException e) {
+                if (!LdapConnectionPool.isConnectionError(e)) {
+                    throw e;
+                }
+                // unreachable, or its pool is exhausted; nothing was sent so any server may take it
+                if (e instanceof CommunicationException) {
+                    serverSet.markDown(server);
+                }
+                lastError = e;
+                continue;
+            }
+
+            boolean reusable = true;
+
+            try {
+                LdapContext ctx = connection.getContext();
+                if (requestControls != null) {
+                    ctx.setRequestControls(requestControls);
+                }
+
+                T result = operation.execute(ctx);
+                serverSet.markUp(server);
+
+                if (write && recentWrites != null) {
+                    recentWrites.record(EntryCache.normalizeDn(dn), server);
+                }
+
+                return result;
+
+            } catch (NamingException e) {
+                reusable = !LdapConnectionPool.isConnectionError(e);
+                if (reusable || write) {
+                    throw e;
+                }
+                serverSet.markDown(server);
+                lastError = e;
+                log.debug("Retrying read on the next LDAP server after: " + e);
+            } finally {
+                reusable = clearRequestControls(connection, requestControls) && reusable;
+                server.getPool().release(connection, reusable);
+            }
+        }
+
+        throw lastError != null ? lastError : new ServiceUnavailableException("No LDAP server configured");
+    }
+
+    private static Attribute toAttribute(String name, List<String> values) {
+
+        Attribute attribute = new BasicAttribute(name);
+        for (String value : values) {
+            attribute.add(value);
+        }
+
+        return attribute;
+    }
+
+    private static int toModificationOp(AttributeChange.Type type) {
+
+        switch (type) {
+        case ADD:
+            return DirContext.ADD_ATTRIBUTE;
+        case DELETE:
+            return DirContext.REMOVE_ATTRIBUTE;
+        default:
+            return DirContext.REPLACE_ATTRIBUTE;
+        }
+    }
+
+    // not critical, so a server without paging answers with all matches in one page
+    private static Control pagedResultsControl(int pageSize, byte[] cookie) throws NamingException {
+
+        try {
+            return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+        } catch (IOException e) {
+            NamingException namingException = new NamingException("Unable to encode the paged results control");
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+    }
+
+    // the cookie for the next page, null once the last page has been returned
+    private static byte[] pagedResultsCookie(Control[] responseControls) {
+
+        if (responseControls != null) {
+            for (Control control : responseControls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                    return cookie != null && cookie.length > 0 ? cookie : null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // pooled contexts must not carry request controls over to the next borrower
+    private static boolean clearRequestControls(PooledConnection connection, Control[] requestControls) {
+
+        if (requestControls == null) {
+            return true;
+        }
+
+        try {
+            connection.getContext().setRequestControls(null);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static AttributeMap toAttributeMap(Attributes attrs, String[] returnFields) {
+
+        AttributeMap returnValues = new AttributeMap();
+
+        if (attrs == null) {
+            return returnValues;
+        }
+
+        try {
+        	for (String thisAttrib : returnFields) {
+        		List<String> returnAV = new ArrayList<String>();
+
+            	Attribute returnedAttribute = attrs.get(thisAttrib);
+
+            	if (returnedAttribute != null) { // we have a value
+            		NamingEnumeration allValues = returnedAttribute.getAll();
+            		while (allValues.hasMore()) {
+            			String av = null;
+            			try {
+            				av = (String)allValues.next();
+            			} catch(Exception ex) {
+            				log.debug("Unable to convert attribute: " + thisAttrib);
+            			}
+            			returnAV.add(av);
+            		}
+            	}
+        		AttributeValue returnedAttributeValues = new AttributeValue(returnAV);
+        		returnValues.put(thisAttrib, returnedAttributeValues);
+        	}
+        } catch (Exception ex) {
+        	log.debug(ex.getMessage());
+        }
+
+        return returnValues;
+    }
+}
@@ -0,0 +1,57 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+
+/**
+ * The directory operations LdapHelper builds on, implemented once per LDAP client library.
+ *
+ * Implementations report failures as NamingExceptions so callers handle every backend alike: an
+ * existing entry is a NameAlreadyBoundException, a missing one a NameNotFoundException and a broken
+ * or unreachable connection a CommunicationException or ServiceUnavailableException.
+ */
+public interface LdapBackend {
+
+    /**
+     * Adds an entry. When postReadFields is not null the post-read control is requested and the
+     * resulting entry returned; otherwise, or when the server sends no post-read entry, returns null.
+     */
+    LdapEntry add(String dn, Map<String, List<String>> attributes, String[] postReadFields) throws NamingException;
+
+    /**
+     * Applies changes to an entry, with the same post-read behaviour as {@link #add}.
+     */
+    LdapEntry modify(String dn, List<AttributeChange> changes, String[] postReadFields) throws NamingException;
+
+    void delete(String dn) throws NamingException;
+
+    /**
+     * Base-object read of a single entry, or null when nothing exists at dn.
+     */
+    LdapEntry read(String dn, String[] returnFields) throws NamingException;
+
+    /**
+     * Subtree search below baseDn. The filter may reference filterArgs as {0}, {1}, ... which are
+     * escaped before substitution. A sizeLimit of 0 returns every match.
+     */
+    List<LdapEntry> search(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int sizeLimit) throws NamingException;
+
+    /**
+     * Subtree search below baseDn that hands each entry to handler as it arrives, fetching pageSize
+     * entries at a time with the simple paged results control (RFC 2696) on a single connection, so
+     * memory use does not grow with the number of matches. Servers without paging return all matches
+     * in one page, still streamed. Returns the number of entries handed over. A failure after some
+     * entries were handed over is reported as a PartialResultException and never retried. A pageSize
+     * of 0 sends no paging control, for servers known not to support it.
+     */
+    int searchPaged(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int pageSize, LdapEntryHandler handler) throws NamingException;
+
+    /**
+     * Whether the server lists the control in the supportedControl attribute of its root DSE.
+     */
+    boolean isControlSupported(String oid) throws NamingException;
+
+    void close();
+}
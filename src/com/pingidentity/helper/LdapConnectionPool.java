@@ -0,0 +1,343 @@
+package com.pingidentity.helper;
+
+import java.util.Hashtable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of bound LDAP contexts shared by all threads using an {@link LdapHelper}.
+ *
+ * Connections are handed out most-recently-used first so a small working set stays warm, idle
+ * connections are health checked before reuse, and connections older than the configured maximum
+ * age are retired. A background task trims the idle list and keeps the minimum number of idle
+ * connections open.
+ */
+public class LdapConnectionPool implements LdapConnectionPoolMBean {
+
+    private static final Log log = LogFactory.getLog(LdapConnectionPool.class);
+
+    private static final String[] NO_ATTRIBUTES = new String[] { "1.1" };
+
+    private final Hashtable<?, ?> environment;
+    private final LdapPoolSettings settings;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    // Pool statistics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowTimeoutCount = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong createFailureCount = new AtomicLong();
+    private final Histogram connectNanos = new Histogram();
+    private final AtomicLong closedCount = new AtomicLong();
+    private final AtomicLong failedHealthCheckCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    public LdapConnectionPool(Hashtable<?, ?> environment, LdapPoolSettings settings) {
+        this.environment = environment;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.getMaxSize(), true);
+
+        long interval = settings.getHealthCheckIntervalMillis() > 0 ? settings.getHealthCheckIntervalMillis() : 30000L;
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ldap-pool-maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        }, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured borrow timeout when the pool is exhausted.
+     * Every borrowed connection must be handed back with {@link #release(PooledConnection, boolean)}.
+     */
+    public PooledConnection borrow() throws NamingException {
+
+        if (closed) {
+            throw new ServiceUnavailableException("LDAP connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (!permits.tryAcquire(settings.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                borrowTimeoutCount.incrementAndGet();
+                throw new ServiceUnavailableException("Timed out waiting for an LDAP connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted waiting for an LDAP connection");
+        }
+
+        recordBorrowWait(System.nanoTime() - start);
+        borrowCount.incrementAndGet();
+
+        try {
+            PooledConnection connection;
+
+            while ((connection = idle.pollFirst()) != null) {
+                if (isExpired(connection)) {
+                    expiredCount.incrementAndGet();
+                    destroy(connection);
+                } else if (needsHealthCheck(connection) && !isHealthy(connection)) {
+                    failedHealthCheckCount.incrementAndGet();
+                    destroy(connection);
+                } else {
+                    return connection;
+                }
+            }
+
+            return create();
+
+        } catch (NamingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Connections that hit a connection level error should be
+     * released with reusable set to false so they are closed rather than handed out again.
+     */
+    public void release(PooledConnection connection, boolean reusable) {
+
+        try {
+            if (closed || !reusable || isExpired(connection) || idle.size() >= settings.getMaxIdle()) {
+                destroy(connection);
+            } else {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Whether an exception raised while using a connection means the connection itself is broken.
+     */
+    public static boolean isConnectionError(NamingException e) {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+    }
+
+    public void close() {
+
+        closed = true;
+        maintenance.shutdownNow();
+
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            destroy(connection);
+        }
+    }
+
+    private void maintain() {
+
+        try {
+            // retire expired connections and anything above the idle ceiling
+            int toKeep = settings.getMaxIdle();
+            for (PooledConnection connection : idle.toArray(new PooledConnection[0])) {
+                if (isExpired(connection) || toKeep <= 0) {
+                    if (idle.remove(connection)) {
+                        if (isExpired(connection)) {
+                            expiredCount.incrementAndGet();
+                        }
+                        destroy(connection);
+                    }
+                } else {
+                    toKeep--;
+                }
+            }
+
+            // top up to the idle floor without exceeding the pool size
+            while (!closed && idle.size() < settings.getMinIdle() && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(create());
+                } catch (NamingException e) {
+                    log.debug("Unable to pre-create LDAP connection: " + e);
+                    break;
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("LDAP connection pool maintenance failed", e);
+        }
+    }
+
+    private PooledConnection create() throws NamingException {
+
+        long start = System.nanoTime();
+
+        try {
+            // connect, secure and bind
+            LdapTls tls = (LdapTls) environment.get(LdapTls.ENVIRONMENT_PROPERTY);
+            LdapContext ctx = tls != null ? tls.connect(environment) : new InitialLdapContext(environment, null);
+            connectNanos.record(System.nanoTime() - start);
+            createdCount.incrementAndGet();
+            return new PooledConnection(ctx);
+        } catch (NamingException e) {
+            createFailureCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private void destroy(PooledConnection connection) {
+
+        closedCount.incrementAndGet();
+
+        try {
+            connection.getContext().close();
+        } catch (NamingException e) {
+            log.debug("Problem closing LDAP connection: " + e);
+        }
+    }
+
+    private boolean isExpired(PooledConnection connection) {
+        long maxAge = settings.getMaxConnectionAgeMillis();
+        return maxAge > 0 && System.currentTimeMillis() - connection.created > maxAge;
+    }
+
+    private boolean needsHealthCheck(PooledConnection connection) {
+        return System.currentTimeMillis() - connection.lastUsed > settings.getHealthCheckIntervalMillis();
+    }
+
+    private boolean isHealthy(PooledConnection connection) {
+
+        try {
+            // read of the root DSE without any attributes
+            connection.getContext().getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            log.debug("LDAP connection failed health check: " + e);
+            return false;
+        }
+    }
+
+    private void recordBorrowWait(long nanos) {
+
+        borrowWaitNanos.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = maxBorrowWaitNanos.get())) {
+            if (maxBorrowWaitNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return settings.getMaxSize();
+    }
+
+    public int getActiveCount() {
+        return settings.getMaxSize() - permits.availablePermits();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount.get();
+    }
+
+    public long getAverageBorrowWaitMicros() {
+        long borrows = borrowCount.get();
+        return borrows == 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(borrowWaitNanos.get() / borrows);
+    }
+
+    public long getMaxBorrowWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxBorrowWaitNanos.get());
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getCreateFailureCount() {
+        return createFailureCount.get();
+    }
+
+    public long getAverageConnectMicros() {
+        return TimeUnit.NANOSECONDS.toMicros((long) connectNanos.getMean());
+    }
+
+    public long getP99ConnectMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(connectNanos.getValueAtPercentile(99.0));
+    }
+
+    public long getClosedCount() {
+        return closedCount.get();
+    }
+
+    public long getFailedHealthCheckCount() {
+        return failedHealthCheckCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LdapConnectionPool[active=" + getActiveCount() + ", idle=" + getIdleCount() + ", max=" + getMaxSize()
+                + ", borrows=" + getBorrowCount() + ", timeouts=" + getBorrowTimeoutCount()
+                + ", avgWaitUs=" + getAverageBorrowWaitMicros() + ", maxWaitUs=" + getMaxBorrowWaitMicros()
+                + ", created=" + getCreatedCount() + ", createFailures=" + getCreateFailureCount()
+                + ", avgConnectUs=" + getAverageConnectMicros()
+                + ", closed=" + getClosedCount() + "]";
+    }
+
+    /**
+     * A pooled LDAP context together with the bookkeeping the pool needs.
+     */
+    public static class PooledConnection {
+
+        private final LdapContext context;
+        private final long created;
+        private volatile long lastUsed;
+
+        PooledConnection(LdapContext context) {
+            this.context = context;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+        }
+
+        public LdapContext getContext() {
+            return context;
+        }
+    }
+}
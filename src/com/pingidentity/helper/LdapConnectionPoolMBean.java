@@ -0,0 +1,35 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of the statistics of an {@link LdapConnectionPool}.
+ */
+public interface LdapConnectionPoolMBean {
+
+    int getMaxSize();
+
+    int getActiveCount();
+
+    int getIdleCount();
+
+    long getBorrowCount();
+
+    long getBorrowTimeoutCount();
+
+    long getAverageBorrowWaitMicros();
+
+    long getMaxBorrowWaitMicros();
+
+    long getCreatedCount();
+
+    long getCreateFailureCount();
+
+    long getAverageConnectMicros();
+
+    long getP99ConnectMicros();
+
+    long getClosedCount();
+
+    long getFailedHealthCheckCount();
+
+    long getExpiredCount();
+}
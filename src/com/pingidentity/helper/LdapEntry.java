@@ -0,0 +1,25 @@
+package com.pingidentity.helper;
+
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * An entry read from the directory: its distinguished name and the requested attributes.
+ */
+public class LdapEntry {
+
+    private final String dn;
+    private final AttributeMap attributes;
+
+    public LdapEntry(String dn, AttributeMap attributes) {
+        this.dn = dn;
+        this.attributes = attributes;
+    }
+
+    public String getDn() {
+        return dn;
+    }
+
+    public AttributeMap getAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,13 @@
+package com.pingidentity.helper;
+
+/**
+ * Receives the entries of a streamed search one at a time, on the thread running the search.
+ */
+public interface LdapEntryHandler {
+
+    /**
+     * Handles one entry. Returning false ends the search early; entries already on their way from
+     * the directory in the current page are then discarded.
+     */
+    boolean entryReturned(LdapEntry entry);
+}
@@ -0,0 +1,237 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs blocking directory calls off the request thread, behind a concurrency gate and with a
+ * deadline per call.
+ *
+ * At most maxConcurrency calls reach the directory at once; a caller finding the gate full fails
+ * straight away with a ServiceUnavailableException instead of queueing behind calls that may be
+ * stuck. A call that is admitted but does not finish before the deadline fails with a
+ * TimeLimitExceededException; its worker is interrupted but keeps its slot until the directory call
+ * actually returns, as interrupting does not stop a socket read and the call may still be applied,
+ * so a slow directory never sees more than maxConcurrency calls. Such abandoned calls are counted
+ * until they return. Calls run on virtual threads when the JVM has them and on a pool of daemon
+ * platform threads otherwise.
+ *
+ * The provisioner API is synchronous, so the request thread still waits for the result; what the
+ * executor bounds is how long it waits and how many calls the directory sees.
+ */
+public class LdapExecutor implements LdapExecutorMBean {
+
+    private static final Log log = LogFactory.getLog(LdapExecutor.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore gate;
+    private final int maxConcurrency;
+    private final long timeoutMillis;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicInteger abandonedCount = new AtomicInteger();
+
+    /**
+     * @param maxConcurrency calls allowed to run at once, 0 for no limit
+     * @param timeoutMillis deadline for running each call, 0 for none
+     */
+    public LdapExecutor(int maxConcurrency, long timeoutMillis) {
+
+        this.maxConcurrency = Math.max(0, maxConcurrency);
+        this.timeoutMillis = Math.max(0L, timeoutMillis);
+        this.gate = this.maxConcurrency > 0 ? new Semaphore(this.maxConcurrency, true) : null;
+
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualThreadExecutor != null;
+        this.executor = virtualThreads ? virtualThreadExecutor : newPlatformThreadExecutor();
+    }
+
+    /**
+     * Runs a call on a worker thread and waits for its result, within the deadline.
+     */
+    public <T> T call(final Callable<T> task) throws NamingException {
+
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0L;
+
+        acquire();
+
+        final Slot slot = new Slot();
+
+        Future<T> future;
+        try {
+            future = executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    if (!slot.state.compareAndSet(Slot.NEW, Slot.RUNNING)) {
+                        // the caller gave up before the task started
+                        return null;
+                    }
+                    try {
+                        return task.call();
+                    } finally {
+                        release(slot);
+                        if (!slot.state.compareAndSet(Slot.RUNNING, Slot.DONE)) {
+                            abandonedCount.decrementAndGet();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            release(slot);
+            throw e;
+        }
+
+        try {
+            return deadline == 0L ? future.get() : future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+        } catch (TimeoutException e) {
+            timedOutCount.incrementAndGet();
+            cancel(future, slot);
+            throw new TimeLimitExceededException("LDAP operation did not complete within " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            cancel(future, slot);
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted waiting for an LDAP operation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException) {
+                throw (NamingException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            NamingException namingException = new NamingException("LDAP operation failed: " + cause);
+            namingException.setRootCause(cause);
+            throw namingException;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getActiveCount() {
+        return gate != null ? maxConcurrency - gate.availablePermits() : 0;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public int getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LdapExecutor[" + (virtualThreads ? "virtual" : "platform") + ", max=" + maxConcurrency
+                + ", timeoutMs=" + timeoutMillis + ", active=" + getActiveCount() + "]";
+    }
+
+    private void acquire() throws NamingException {
+
+        if (gate != null && !gate.tryAcquire()) {
+            rejectedCount.incrementAndGet();
+            throw new ServiceUnavailableException("Too many LDAP operations in progress (" + maxConcurrency + ")");
+        }
+    }
+
+    private void release(Slot slot) {
+        if (gate != null && slot.held.compareAndSet(true, false)) {
+            gate.release();
+        }
+    }
+
+    // the caller gives up: a running task keeps its slot until it returns, one that never started gives it back here
+    private void cancel(Future<?> future, Slot slot) {
+        if (slot.state.compareAndSet(Slot.NEW, Slot.CANCELLED)) {
+            future.cancel(true);
+            release(slot);
+        } else if (slot.state.compareAndSet(Slot.RUNNING, Slot.ABANDONED)) {
+            abandonedCount.incrementAndGet();
+            future.cancel(true);
+        }
+    }
+
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so this compiles and runs on older JVMs
+    private static ExecutorService newVirtualThreadExecutor() {
+
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log.debug("Virtual threads not available, using platform threads for LDAP operations: " + e);
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadExecutor() {
+
+        // unbounded like a cached pool, the gate is what limits how many tasks run at once
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ldap-worker-" + THREAD_COUNT.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * A place in the gate, given back by the task when it returns, or by the caller when it gives up
+     * before the task has started.
+     */
+    private static class Slot {
+        static final int NEW = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+        // the caller gave up while the task was running
+        static final int ABANDONED = 3;
+        // the caller gave up before the task started
+        static final int CANCELLED = 4;
+
+        private final AtomicBoolean held = new AtomicBoolean(true);
+        private final AtomicInteger state = new AtomicInteger(NEW);
+    }
+}
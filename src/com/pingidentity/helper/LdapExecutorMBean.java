@@ -0,0 +1,21 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of an {@link LdapExecutor}.
+ */
+public interface LdapExecutorMBean {
+
+    boolean isVirtualThreads();
+
+    int getMaxConcurrency();
+
+    long getTimeoutMillis();
+
+    int getActiveCount();
+
+    long getRejectedCount();
+
+    long getTimedOutCount();
+
+    int getAbandonedCount();
+}
@@ -0,0 +1,191 @@
+package com.pingidentity.helper;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An LDAP filter with {0}-style placeholders and the values that go into them, in the form the
+ * backends' search methods take, so values are always escaped by the backend.
+ *
+ * {@link #fromScim} translates the simple SCIM filters (RFC 7644, section 3.4.2.2) a reconciliation
+ * job needs: equality ({@code userName eq "bjensen"}) and presence ({@code title pr}) on a single
+ * attribute. Only attributes of the configured read contract can be named; they go through the
+ * {@link AttributeMappingPlan}, so {@code userName} and {@code id} both become cn. Anything else,
+ * including directory attributes a read never returns, is rejected with an IllegalArgumentException.
+ */
+public class LdapFilter {
+
+    private static final Pattern SCIM_COMPARISON = Pattern.compile("\\s*(\\S+)\\s+(eq|pr)(?:\\s+(.*?))?\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LDAP_ATTRIBUTE = Pattern.compile("[A-Za-z][A-Za-z0-9-]*(;[A-Za-z0-9-]+)*");
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\d+)\\}");
+    private static final Pattern JSON_LITERAL = Pattern.compile("true|false|-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+
+    public static final LdapFilter ALL = new LdapFilter("(objectClass=*)", new Object[0]);
+
+    private final String filter;
+    private final Object[] args;
+
+    public LdapFilter(String filter, Object[] args) {
+        this.filter = filter;
+        this.args = args != null ? args : new Object[0];
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    /**
+     * Both filters combined, with the placeholders of other renumbered after this one's.
+     */
+    public LdapFilter and(LdapFilter other) {
+
+        StringBuffer renumbered = new StringBuffer();
+        Matcher placeholder = PLACEHOLDER.matcher(other.filter);
+        while (placeholder.find()) {
+            placeholder.appendReplacement(renumbered, "{" + (Integer.parseInt(placeholder.group(1)) + args.length) + "}");
+        }
+        placeholder.appendTail(renumbered);
+
+        Object[] combined = new Object[args.length + other.args.length];
+        System.arraycopy(args, 0, combined, 0, args.length);
+        System.arraycopy(other.args, 0, combined, args.length, other.args.length);
+
+        return new LdapFilter("(&" + filter + renumbered + ")", combined);
+    }
+
+    /**
+     * Translates a SCIM filter, or returns {@link #ALL} for a null or empty one.
+     */
+    public static LdapFilter fromScim(String scimFilter, AttributeMappingPlan plan) {
+
+        if (scimFilter == null || scimFilter.trim().length() == 0) {
+            return ALL;
+        }
+
+        Matcher comparison = SCIM_COMPARISON.matcher(scimFilter);
+        if (!comparison.matches()) {
+            throw new IllegalArgumentException("Unsupported filter, expected <attribute> eq <value> or <attribute> pr: " + scimFilter);
+        }
+
+        String ldapName = toLdapAttribute(comparison.group(1), plan);
+        String operator = comparison.group(2);
+        String operand = comparison.group(3);
+
+        if ("pr".equalsIgnoreCase(operator)) {
+            if (operand != null) {
+                throw new IllegalArgumentException("The pr operator takes no value: " + scimFilter);
+            }
+            return new LdapFilter("(" + ldapName + "=*)", null);
+        }
+
+        if (operand == null) {
+            throw new IllegalArgumentException("The eq operator needs a value: " + scimFilter);
+        }
+
+        if (operand.equals("null")) {
+            // equal to null means the attribute has no value
+            return new LdapFilter("(!(" + ldapName + "=*))", null);
+        }
+
+        String value;
+        if (operand.startsWith("\"")) {
+            value = parseJsonString(operand);
+        } else if (JSON_LITERAL.matcher(operand).matches()) {
+            // LDAP booleans are upper case, numbers compare as written
+            value = operand.equals("true") || operand.equals("false") ? operand.toUpperCase() : operand;
+        } else {
+            throw new IllegalArgumentException("Unsupported filter value: " + operand);
+        }
+
+        return new LdapFilter("(" + ldapName + "={0})", new Object[] { value });
+    }
+
+    @Override
+    public String toString() {
+        return filter;
+    }
+
+    private static String toLdapAttribute(String attributePath, AttributeMappingPlan plan) {
+
+        // a fully qualified name carries its schema URN before the last colon
+        String clientName = attributePath.substring(attributePath.lastIndexOf(':') + 1);
+
+        if (clientName.indexOf('.') >= 0 || clientName.indexOf('[') >= 0) {
+            throw new IllegalArgumentException("Filters on sub-attributes are not supported: " + attributePath);
+        }
+
+        String ldapName = plan.toLdapName(clientName);
+
+        if (ldapName == null || !LDAP_ATTRIBUTE.matcher(ldapName).matches()) {
+            throw new IllegalArgumentException("Filtering on " + clientName + " is not supported");
+        }
+
+        return ldapName;
+    }
+
+    // a complete JSON string literal, with its escapes resolved
+    private static String parseJsonString(String literal) {
+
+        StringBuilder value = new StringBuilder(literal.length());
+        int i = 1;
+
+        while (i < literal.length()) {
+            char c = literal.charAt(i++);
+
+            if (c == '"') {
+                if (i != literal.length()) {
+                    throw new IllegalArgumentException("Unexpected text after filter value: " + literal);
+                }
+                return value.toString();
+            }
+
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            if (i >= literal.length()) {
+                break;
+            }
+
+            char escaped = literal.charAt(i++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (i + 4 > literal.length()) {
+                    throw new IllegalArgumentException("Bad unicode escape in filter value: " + literal);
+                }
+                try {
+                    value.append((char) Integer.parseInt(literal.substring(i, i + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad unicode escape in filter value: " + literal);
+                }
+                i += 4;
+                break;
+            default:
+                // \" \\ \/
+                value.append(escaped);
+            }
+        }
+
+        throw new IllegalArgumentException("Unterminated filter value: " + literal);
+    }
+}
@@ -2,248 +2,585 @@ package com.pingidentity.helper;
 
 import java.util.Map;
 
-import org.sourceid.saml20.adapter.attribute.AttrValueSupport;
 import org.sourceid.saml20.adapter.attribute.AttributeValue;
 import org.sourceid.saml20.domain.datasource.info.LdapInfo;
 import org.sourceid.util.log.AttributeMap;
 
-import javax.naming.Context;
-import javax.naming.NamingEnumeration;
+import javax.naming.InvalidNameException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.ModificationItem;
-import javax.naming.directory.SearchControls;
-import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
-import javax.naming.ldap.LdapContext;
-import javax.net.ssl.TrustManager;
+import javax.naming.directory.AttributeInUseException;
+import javax.naming.directory.InvalidAttributeIdentifierException;
+import javax.naming.directory.InvalidAttributeValueException;
+import javax.naming.directory.InvalidAttributesException;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.directory.SchemaViolationException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.pingidentity.sdk.provision.Constants;
-import com.unboundid.util.StaticUtils;
+import com.pingidentity.sdk.provision.exception.BadRequestException;
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class LdapHelper {
 
+	// Simple paged results control (RFC 2696).
+	public static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+	// Structural class of the user entries added, with its superiors when the schema is unknown.
+	public static final String USER_OBJECT_CLASS = "inetOrgPerson";
+	private static final List<String> DEFAULT_OBJECT_CLASSES = Arrays.asList("top", "person", "organizationalPerson", USER_OBJECT_CLASS);
+
 	private Log log = LogFactory.getLog(this.getClass());
-	private Hashtable ldapEnvironment = new Hashtable();
+	private final LdapBackend backend;
+	private volatile Boolean postReadSupported;
+	private volatile AttributeMappingPlan mappingPlan = AttributeMappingPlan.DEFAULT;
+	private volatile DirectoryCapabilities capabilities = DirectoryCapabilities.UNKNOWN;
+	private volatile List<String> userObjectClasses = DEFAULT_OBJECT_CLASSES;
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
 	public LdapHelper(LdapInfo ldapConnection) {
+		this(ldapConnection, new LdapPoolSettings());
+	}
 
-    	ldapEnvironment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        //set security credentials, note using simple cleartext authentication
-    	ldapEnvironment.put(Context.SECURITY_AUTHENTICATION, "simple");
-    	ldapEnvironment.put(Context.SECURITY_PRINCIPAL, ldapConnection.getPrincipal());
-    	ldapEnvironment.put(Context.SECURITY_CREDENTIALS, ldapConnection.getCredentials());
-    	ldapEnvironment.put(Context.PROVIDER_URL, ldapConnection.getServerUrl());
+	public LdapHelper(LdapInfo ldapConnection, LdapPoolSettings poolSettings) {
+		this(new JndiLdapBackend(ldapConnection, poolSettings));
 	}
 
-	public Boolean deleteEntry(String dn) {
+	public LdapHelper(LdapBackend backend) {
+		this.backend = backend;
+	}
 
-    	log.debug("---[ deleteEntry ]------");
-		
+	public LdapBackend getBackend() {
+		return backend;
+	}
+
+	public AttributeMappingPlan getMappingPlan() {
+		return mappingPlan;
+	}
+
+	/**
+	 * Sets how request attributes are turned into directory attributes on add and modify.
+	 */
+	public void setMappingPlan(AttributeMappingPlan mappingPlan) {
+		this.mappingPlan = mappingPlan != null ? mappingPlan : AttributeMappingPlan.DEFAULT;
+	}
+
+	public DirectoryCapabilities getCapabilities() {
+		return capabilities;
+	}
+
+    /**
+     * Reads the root DSE and the subschema entry it names and from then on checks requests and
+     * chooses controls by them. A schema that cannot be read leaves the schema unknown, an unreadable
+     * root DSE fails the refresh and keeps the previous capabilities.
+     */
+	public DirectoryCapabilities refreshCapabilities() throws IdentityStoreException {
+
+    	log.debug("---[ refreshCapabilities ]------");
+
+    	LdapEntry rootDse;
         try {
+            rootDse = backend.read("", DirectoryCapabilities.ROOT_DSE_FIELDS);
+        } catch (NamingException e) {
+            checkAvailable(e);
+            throw new IdentityStoreException("Problem reading root DSE: " + e.getExplanation());
+        }
+        if (rootDse == null) {
+            throw new IdentityStoreException("Problem reading root DSE: no entry");
+        }
 
-            //Create the initial directory context
-            LdapContext ctx = new InitialLdapContext(ldapEnvironment, null);
-            ctx.destroySubcontext(dn);
-            ctx.close();
-            
-            return true;
+        AttributeMap dse = rootDse.getAttributes();
+        String subschemaDn = dse.getSingleValue("subschemaSubentry");
+        AttributeMap schema = new AttributeMap();
+
+        if (subschemaDn != null) {
+            try {
+                LdapEntry schemaEntry = backend.read(subschemaDn, DirectoryCapabilities.SCHEMA_FIELDS);
+                if (schemaEntry != null) {
+                    schema = schemaEntry.getAttributes();
+                }
+            } catch (NamingException e) {
+                checkAvailable(e);
+                log.info("Problem reading schema from " + subschemaDn + ": " + e);
+            }
+        }
+
+        DirectoryCapabilities probed = DirectoryCapabilities.parse(valuesOf(dse.get("supportedControl")), valuesOf(dse.get("supportedExtension")),
+                dse.getSingleValue("vendorName"), valuesOf(schema.get("attributeTypes")), valuesOf(schema.get("objectClasses")));
+
+        List<String> objectClasses = probed.getObjectClassChain(USER_OBJECT_CLASS);
+
+        capabilities = probed;
+        userObjectClasses = objectClasses != null ? objectClasses : DEFAULT_OBJECT_CLASSES;
+        postReadSupported = probed.isControlSupported(PostReadControl.OID);
+
+        return probed;
+	}
+
+    /**
+     * Checks the attributes an add or modify would write against the directory schema, so a request
+     * the directory is bound to refuse is rejected without a round trip. Does nothing while the
+     * schema is unknown.
+     */
+	public void checkAttributes(AttributeMap attributes, boolean add) throws BadRequestException {
+
+		DirectoryCapabilities probed = capabilities;
+
+		if (!probed.isSchemaKnown()) {
+			return;
+		}
+
+		AttributeMappingPlan plan = mappingPlan;
+
+		for (Map.Entry<String, AttributeValue> e : attributes.entrySet())
+		{
+			AttributeMappingPlan.Rule rule = add ? plan.forAdd(e.getKey()) : plan.forModify(e.getKey());
+
+			if (rule.getAction() == AttributeMappingPlan.Action.SKIP) {
+				continue;
+			}
+
+			Collection<String> values = valuesOf(e.getValue());
+			String problem = probed.checkAttribute(rule.getTargetName(), values != null ? values.size() : 0);
+
+			if (problem != null) {
+				throw new BadRequestException(problem);
+			}
+		}
+	}
+
+	public void close() {
+		backend.close();
+	}
+
+    /**
+     * Turns a failure that means the directory is unreachable, overloaded or rejecting calls into an
+     * IdentityStoreException, so it is not mistaken for a missing entry or a refused change.
+     */
+	private static void checkAvailable(NamingException e) throws IdentityStoreException {
+		if (GuardedLdapBackend.isUnavailable(e)) {
+			throw new IdentityStoreException("LDAP directory unavailable: " + e.getExplanation());
+		}
+	}
+
+    /**
+     * The exception for a write the directory refused for a reason other than availability: a
+     * BadRequestException when the request breaks the schema, a constraint or the DN syntax, which
+     * sending it again will not fix, and an IdentityStoreException otherwise.
+     */
+	private static IdentityStoreException refused(String message, NamingException e) {
+
+		if (e instanceof SchemaViolationException || e instanceof InvalidAttributeValueException
+				|| e instanceof InvalidAttributeIdentifierException || e instanceof InvalidAttributesException
+				|| e instanceof AttributeInUseException || e instanceof NoSuchAttributeException || e instanceof InvalidNameException) {
+			return new BadRequestException(message + ": " + e.getExplanation());
+		}
+		return new IdentityStoreException(message + ": " + e.getExplanation());
+	}
 
+    /**
+     * The exception for a read or search that failed for a reason other than a missing entry or
+     * availability: a BadRequestException when the DN built from the request is not valid, an
+     * IdentityStoreException otherwise.
+     */
+	private static IdentityStoreException lookupFailed(String message, NamingException e) {
+
+		if (e instanceof InvalidNameException) {
+			return new BadRequestException(message + ": " + e.getExplanation());
+		}
+		return new IdentityStoreException(message + ": " + e.getExplanation());
+	}
+
+	public Boolean deleteEntry(String dn) throws IdentityStoreException {
+
+    	log.debug("---[ deleteEntry ]------");
+		
+        NamingException failure = null;
+        try {
+            backend.delete(dn);
         } catch (NamingException e) {
-            System.err.println("Problem creating user: " + e);
+            failure = e;
         }
-        
-        return false;
+
+        return deleteEntryCompleted(failure);
+	}
+
+    /**
+     * Sends the delete of deleteEntry through a pipeline without waiting for it. The listener gets the
+     * outcome, which deleteEntryCompleted turns into what deleteEntry returns.
+     */
+	public void deleteEntry(LdapPipeline pipeline, String dn, LdapPipeline.Listener listener) throws NamingException {
+		pipeline.delete(dn, listener);
+	}
+
+	public Boolean deleteEntryCompleted(NamingException failure) throws IdentityStoreException {
+
+		if (failure != null) {
+			checkAvailable(failure);
+			log.error("Problem deleting user: " + failure);
+			return false;
+		}
+
+		return true;
 	}
 	
-	public Boolean addEntry(String dn, AttributeMap defaultAttributes) {
+	public Boolean addEntry(String dn, AttributeMap defaultAttributes) throws IdentityStoreException {
 
     	log.debug("---[ addEntry ]------");
 		
         try {
 
-        	BasicAttributes attributesToAdd = new BasicAttributes();
-        	
-        	Attribute objectClass = new BasicAttribute("objectClass");
-        	objectClass.add("top");
-        	objectClass.add("person");  
-            objectClass.add("organizationalPerson");  
-            objectClass.add("inetOrgPerson");  
-            
-            attributesToAdd.put(objectClass);
-        	
-            for (Map.Entry<String, AttributeValue> e : defaultAttributes.entrySet())
-            {
-            	log.info("Creating user with attribute: " + e.getKey() + " -- " + e.getValue().getValue());
-
-            	if (e.getKey().equalsIgnoreCase("whenCreated")) {
-            		log.info("skipping");
-            	} else if (e.getKey().equalsIgnoreCase("whenChanged")) {
-            		log.info("skipping");
-            	} else if (e.getKey().equalsIgnoreCase("userName")) {
-            		log.info("skipping");
-            	} else if (e.getKey().equalsIgnoreCase("id")) {
-            		log.info("skipping");
-            	} else {
-            		attributesToAdd.put(new BasicAttribute(e.getKey(), e.getValue().getValue()));
-            	}
-            }
-        	
-            //Create the initial directory context
-            LdapContext ctx = new InitialLdapContext(ldapEnvironment, null);
-
-            ctx.createSubcontext(dn, attributesToAdd);  
-
-            ctx.close();
-            
+            add(dn, defaultAttributes, null);
             return true;
 
         } catch (NamingException e) {
-            System.err.println("Problem creating user: " + e);
+            checkAvailable(e);
+            log.error("Problem creating user: " + e);
         }
         
         return false;
 	}
+
+    /**
+     * Adds an entry and returns it as stored by the directory, including operational attributes such
+     * as createTimestamp. Uses the post-read control when the server supports it and falls back to
+     * reading the entry back otherwise. An existing entry at dn (LDAP result code 68,
+     * entryAlreadyExists) is reported as a NameAlreadyBoundException; any other refusal fails the add,
+     * with a BadRequestException when the entry breaks the directory's rules.
+     */
+	public LdapEntry addEntryAndRead(String dn, AttributeMap defaultAttributes, String[] returnFields) throws NameAlreadyBoundException, IdentityStoreException {
+
+    	log.debug("---[ addEntryAndRead ]------");
+
+        LdapEntry entry = null;
+        NamingException failure = null;
+        try {
+            entry = add(dn, defaultAttributes, returnFields);
+        } catch (NamingException e) {
+            failure = e;
+        }
+
+        return addEntryAndReadCompleted(dn, entry, failure, returnFields);
+	}
+
+    /**
+     * Sends the add of addEntryAndRead through a pipeline without waiting for it. The listener gets the
+     * outcome, which addEntryAndReadCompleted turns into what addEntryAndRead returns.
+     */
+	public void addEntryAndRead(LdapPipeline pipeline, String dn, AttributeMap defaultAttributes, String[] returnFields, LdapPipeline.Listener listener) throws NamingException {
+		pipeline.add(dn, addAttributes(defaultAttributes), postReadFields(returnFields), listener);
+	}
+
+	public LdapEntry addEntryAndReadCompleted(String dn, LdapEntry entry, NamingException failure, String[] returnFields) throws NameAlreadyBoundException, IdentityStoreException {
+
+		if (failure instanceof NameAlreadyBoundException) {
+			throw (NameAlreadyBoundException) failure;
+		}
+		if (failure != null) {
+			checkAvailable(failure);
+			log.error("Problem creating user: " + failure);
+			throw refused("Unable to create user", failure);
+		}
+
+		return entry != null ? entry : getEntryByDn(dn, returnFields);
+	}
+
+	private LdapEntry add(String dn, AttributeMap defaultAttributes, String[] returnFields) throws NamingException {
+		return backend.add(dn, addAttributes(defaultAttributes), postReadFields(returnFields));
+	}
+
+	private Map<String, List<String>> addAttributes(AttributeMap defaultAttributes) {
+
+    	Map<String, List<String>> attributesToAdd = new LinkedHashMap<String, List<String>>();
+
+    	attributesToAdd.put("objectClass", userObjectClasses);
+    	
+        AttributeMappingPlan plan = mappingPlan;
+
+        for (Map.Entry<String, AttributeValue> e : defaultAttributes.entrySet())
+        {
+        	AttributeMappingPlan.Rule rule = plan.forAdd(e.getKey());
+
+        	Collection<String> values = valuesOf(e.getValue());
+
+        	// every value, a multi-valued attribute must not lose all but its first
+        	if (rule.getAction() != AttributeMappingPlan.Action.SKIP && values != null && !values.isEmpty()) {
+        		attributesToAdd.put(rule.getTargetName(), new ArrayList<String>(values));
+        	}
+        }
+
+        // attribute names only, values may be personal data
+        if (log.isDebugEnabled()) {
+        	log.debug("add attributes=" + attributesToAdd.keySet());
+        }
+
+        return attributesToAdd;
+	}
 	
-	public Boolean modifyEntry(String dn, AttributeMap origAttributes, AttributeMap changedAttributes) {
+	public Boolean modifyEntry(String dn, AttributeMap origAttributes, AttributeMap changedAttributes) throws IdentityStoreException {
 
     	log.debug("---[ modifyEntry ]------");
 		
+        NamingException failure = null;
         try {
+            modify(dn, origAttributes, changedAttributes, null);
+        } catch (NamingException e) {
+            failure = e;
+        }
 
-        	ArrayList<ModificationItem> attributesToMod = new ArrayList<ModificationItem>();
-        	
-        	
-            for (Map.Entry<String, AttributeValue> e : changedAttributes.entrySet())
-            {
-            	log.info("Checking attribute: " + e.getKey() + " -- " + e.getValue().getValue());
-
-            	if (e.getKey().equalsIgnoreCase("whenCreated")) {
-            		log.info("skipping");
-            	} else if (e.getKey().equalsIgnoreCase("whenChanged")) {
-            		log.info("skipping");
-            	} else if (e.getKey().equalsIgnoreCase("userName")) {
-            		// compare to cn
-            		if (!origAttributes.getSingleValue("cn").equals(e.getValue().getValue())) {
-            			log.info("Modifying " + e.getKey() + " changing " + origAttributes.getSingleValue(e.getKey()) + " to " + e.getValue().getValue());
-            			attributesToMod.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("cn", e.getValue().getValue())));
-            		}
-            	} else if (e.getKey().equalsIgnoreCase("id")) {
-            		log.info("skipping");
-            	} else {
-            		String originalValue = origAttributes.getSingleValue(e.getKey());
-            		
-            		if (originalValue != null) {
-            			if (!originalValue.equals(e.getValue().getValue())) {
-            				log.info("Modifying " + e.getKey() + " changing " + origAttributes.getSingleValue(e.getKey()) + " to " + e.getValue().getValue());
-            				attributesToMod.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(e.getKey(), e.getValue().getValue())));
-            			}
-            		} else {
-        				log.info("Adding " + e.getKey() + " setting value to " + e.getValue().getValue());
-        				attributesToMod.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(e.getKey(), e.getValue().getValue())));
-            		}
-            	}
-            }
+        return modifyEntryCompleted(failure);
+	}
 
-            ModificationItem[] mods = new ModificationItem[attributesToMod.size()];
-            mods = attributesToMod.toArray(mods);
-            
-            //Create the initial directory context
-            LdapContext ctx = new InitialLdapContext(ldapEnvironment, null);
-            ctx.modifyAttributes(dn, mods);
-            ctx.close();
-            
-            return true;
+	public Boolean modifyEntryCompleted(NamingException failure) throws IdentityStoreException {
+
+		if (failure != null) {
+			checkAvailable(failure);
+			log.error("Problem modifying user: " + failure);
+			return false;
+		}
 
+		return true;
+	}
+
+    /**
+     * Modifies an entry and returns it as stored by the directory afterwards, using the post-read
+     * control when the server supports it and reading the entry back otherwise. When the update
+     * changes nothing no modify is sent and the original attributes are returned. Returns null when
+     * the modify fails.
+     */
+	public LdapEntry modifyEntryAndRead(String dn, AttributeMap origAttributes, AttributeMap changedAttributes, String[] returnFields) throws IdentityStoreException {
+
+    	log.debug("---[ modifyEntryAndRead ]------");
+
+        LdapEntry entry = null;
+        NamingException failure = null;
+        try {
+            entry = modify(dn, origAttributes, changedAttributes, returnFields);
         } catch (NamingException e) {
-            System.err.println("Problem modifying user: " + e);
+            failure = e;
         }
-        
-        return false;
+
+        return modifyEntryAndReadCompleted(dn, entry, failure, returnFields);
+	}
+
+    /**
+     * Sends the modify of modifyEntryAndRead, or of modifyEntry when returnFields is null, through a
+     * pipeline without waiting for it. The listener gets the outcome, which modifyEntryAndReadCompleted
+     * or modifyEntryCompleted turns into what those return. Sends nothing and returns false when the
+     * update changes nothing.
+     */
+	public boolean modifyEntry(LdapPipeline pipeline, String dn, AttributeMap origAttributes, AttributeMap changedAttributes, String[] returnFields, LdapPipeline.Listener listener) throws NamingException {
+
+		List<AttributeChange> attributesToMod = computeChanges(origAttributes, changedAttributes);
+		if (attributesToMod.isEmpty()) {
+			return false;
+		}
+
+		pipeline.modify(dn, attributesToMod, returnFields != null ? postReadFields(returnFields) : null, listener);
+		return true;
+	}
+
+	public LdapEntry modifyEntryAndReadCompleted(String dn, LdapEntry entry, NamingException failure, String[] returnFields) throws IdentityStoreException {
+
+		if (failure != null) {
+			checkAvailable(failure);
+			log.error("Problem modifying user: " + failure);
+			return null;
+		}
+
+		return entry != null ? entry : getEntryByDn(dn, returnFields);
+	}
+
+	private LdapEntry modify(String dn, AttributeMap origAttributes, AttributeMap changedAttributes, String[] returnFields) throws NamingException {
+
+    	List<AttributeChange> attributesToMod = computeChanges(origAttributes, changedAttributes);
+
+        if (log.isDebugEnabled()) {
+        	log.debug("modify changes=" + attributesToMod.size() + " for " + changedAttributes.size() + " attributes");
+        }
+
+        if (attributesToMod.isEmpty()) {
+        	// nothing to write, the entry is as it was read
+        	return new LdapEntry(dn, origAttributes);
+        }
+
+        return backend.modify(dn, attributesToMod, postReadFields(returnFields));
+	}
+
+    /**
+     * Whether an update would leave an entry as read unchanged. Fingerprints of the attributes the
+     * update can write rule out most real changes cheaply; when they match, the exact changes decide,
+     * so a hash collision cannot drop an update.
+     */
+	public boolean isUnchanged(AttributeMap origAttributes, AttributeMap changedAttributes) {
+		AttributeMappingPlan plan = mappingPlan;
+		if (AttributeFingerprint.ofEntry(plan, origAttributes) != AttributeFingerprint.ofUpdate(plan, changedAttributes)) {
+			return false;
+		}
+		return computeChanges(origAttributes, changedAttributes).isEmpty();
+	}
+
+    /**
+     * Works out the changes that turn an entry as read from the directory into the entry an update
+     * describes: per value changes for each attribute in the update, and a delete for each client
+     * managed attribute the update no longer carries. Empty when the update changes nothing.
+     */
+	public List<AttributeChange> computeChanges(AttributeMap origAttributes, AttributeMap changedAttributes) {
+
+    	List<AttributeChange> changes = new ArrayList<AttributeChange>();
+    	Set<String> written = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        AttributeMappingPlan plan = mappingPlan;
+
+        for (Map.Entry<String, AttributeValue> e : changedAttributes.entrySet())
+        {
+        	AttributeMappingPlan.Rule rule = plan.forModify(e.getKey());
+
+        	if (rule.getAction() == AttributeMappingPlan.Action.SKIP) {
+        		continue;
+        	}
+
+        	// the original entry is keyed by directory attribute name
+        	String ldapName = rule.getTargetName();
+        	written.add(ldapName);
+
+        	AttributeDiff.diff(ldapName, valuesOf(origAttributes.get(ldapName)), valuesOf(e.getValue()), changes);
+        }
+
+        for (Map.Entry<String, AttributeValue> e : origAttributes.entrySet())
+        {
+        	if (!written.contains(e.getKey()) && plan.isClientManaged(e.getKey())) {
+        		AttributeDiff.diff(e.getKey(), valuesOf(e.getValue()), null, changes);
+        	}
+        }
+
+        return changes;
+	}
+
+	private static Collection<String> valuesOf(AttributeValue value) {
+		return value != null ? value.getValues() : null;
 	}
 	
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-	public AttributeMap getEntry(String ldapFilter, String[] returnFields, String baseDn) {
+    /**
+     * Streams every entry below baseDn matching the filter to handler, pageSize entries at a time,
+     * without holding more than one page in memory. Returns the number of entries handed over.
+     * Fails with an IdentityStoreException if the search cannot be completed, also when some
+     * entries have already been handed over.
+     */
+	public int streamEntries(String baseDn, LdapFilter filter, String[] returnFields, int pageSize, LdapEntryHandler handler) throws IdentityStoreException {
 
-    	log.debug("---[ getEntry ]------");
+    	log.debug("---[ streamEntries ]------");
 
-    	AttributeMap returnValues = new AttributeMap();
-    	
         try {
 
-            //Create the initial directory context
-            LdapContext ctx = new InitialLdapContext(ldapEnvironment, null);
+            // no paging control at all for servers known to lack it
+            DirectoryCapabilities probed = capabilities;
+            int size = probed.isRootDseKnown() && !probed.isControlSupported(PAGED_RESULTS_OID) ? 0 : Math.max(1, pageSize);
 
-            //Create the search controls 		
-            SearchControls userSearchCtls = new SearchControls();
+            return backend.searchPaged(baseDn, filter.getFilter(), filter.getArgs(), returnFields, size, handler);
 
-            //Specify the search scope
-            userSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        } catch (NamingException e) {
+            checkAvailable(e);
+            throw new IdentityStoreException("Problem searching directory: " + e.getExplanation());
+        }
+	}
 
-            //Specify the attributes to return
-            userSearchCtls.setReturningAttributes(returnFields);
+	public AttributeMap getEntry(String ldapFilter, String[] returnFields, String baseDn) throws IdentityStoreException {
 
-            //Search for objects using the filter
-            NamingEnumeration userAnswer = ctx.search(baseDn, ldapFilter, userSearchCtls);
+    	log.debug("---[ getEntry ]------");
+
+    	AttributeMap returnValues = new AttributeMap();
+    	
+        try {
 
             //Loop through the search results
-            while (userAnswer.hasMoreElements()) {
-                SearchResult sr = (SearchResult) userAnswer.next();
-                Attributes attrs = sr.getAttributes();
-
-                if (attrs != null) {
-                    try {
-                    	for (String thisAttrib : returnFields) {
-                    		log.debug("Checking Attribute: " + thisAttrib);
-                    		List<String> returnAV = new ArrayList<String>();
-                    		
-                        	Attribute returnedAttribute = attrs.get(thisAttrib);
-                        	
-                        	if (returnedAttribute != null) { // we have a value
-                        		NamingEnumeration allValues = returnedAttribute.getAll();
-                        		while (allValues.hasMore()) {
-                        			String av = null;
-                        			try {
-                        				av = (String)allValues.next();
-                        			} catch(Exception ex) {
-                        				log.debug("Unable to convert attribute: " + returnedAttribute);
-                        			}
-                        			returnAV.add(av);
-                        			log.debug("Adding Value: " + thisAttrib + " -> " + av);
-                        		}
-                        	} else {
-                        		log.debug("Adding: " + thisAttrib + " -> null");
-                        	}
-                    		AttributeValue returnedAttributeValues = new AttributeValue(returnAV);
-                    		returnValues.put(thisAttrib, returnedAttributeValues);
-                    	}
-                    } catch (Exception ex) {
-                    	log.debug(ex.getMessage());
-                 }
-                 }
+            for (LdapEntry entry : backend.search(baseDn, ldapFilter, null, returnFields, 0)) {
+                returnValues.putAll(entry.getAttributes());
             }
 
-            ctx.close();
-
         } catch (NamingException e) {
+            checkAvailable(e);
             log.info("Problem searching directory: " + e);
         }
         
         return returnValues;
     }
 
+    /**
+     * Reads a single entry by its DN with a base-object read. Returns null when no entry exists at
+     * that DN; any other failure, such as refused access, is thrown, never taken for a missing entry.
+     */
+	public LdapEntry getEntryByDn(String dn, String[] returnFields) throws IdentityStoreException {
+
+    	log.debug("---[ getEntryByDn ]------");
+
+        try {
+
+            return backend.read(dn, returnFields);
+
+        } catch (NameNotFoundException e) {
+            return null;
+        } catch (NamingException e) {
+            checkAvailable(e);
+            log.error("Problem reading entry: " + e);
+            throw lookupFailed("Problem reading entry", e);
+        }
+    }
+
+    /**
+     * Finds the first entry matching a filter anywhere below baseDn. The filter may reference
+     * filterArgs as {0}, {1}, ... which are escaped before being substituted. Returns null when
+     * nothing matches, also when baseDn does not exist; any other failure is thrown.
+     */
+	public LdapEntry findEntry(String ldapFilter, Object[] filterArgs, String[] returnFields, String baseDn) throws IdentityStoreException {
+
+    	log.debug("---[ findEntry ]------");
+
+        try {
+
+            List<LdapEntry> entries = backend.search(baseDn, ldapFilter, filterArgs, returnFields, 1);
+            return entries.isEmpty() ? null : entries.get(0);
+
+        } catch (NameNotFoundException e) {
+            return null;
+        } catch (NamingException e) {
+            checkAvailable(e);
+            log.error("Problem searching directory: " + e);
+            throw lookupFailed("Problem searching directory", e);
+        }
+    }
+
+    /**
+     * Whether the server advertises the post-read control in its root DSE. Taken from the probed
+     * capabilities, or checked once and cached when they are not known.
+     */
+	public boolean isPostReadSupported() {
+
+		Boolean supported = postReadSupported;
+
+		if (supported == null) {
+			try {
+				supported = backend.isControlSupported(PostReadControl.OID);
+			} catch (NamingException e) {
+				log.info("Problem reading root DSE: " + e);
+				return false;
+			}
+			postReadSupported = supported;
+		}
+
+		return supported;
+	}
+
+	private String[] postReadFields(String[] returnFields) {
+		return returnFields != null && isPostReadSupported() ? returnFields : null;
+	}
+
 }
@@ -0,0 +1,290 @@
+package com.pingidentity.helper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.CommunicationException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per-operation counters and latency histograms for the provisioner and its directory calls,
+ * published as JMX MBeans.
+ *
+ * Operations are tracked by name ("scim.readUser", "ldap.modify", ...), results by operation and
+ * result code, and the number of directory round trips is tracked per SCIM request. Each metric is
+ * created and registered the first time it is used; afterwards recording is lock-free.
+ */
+public class LdapMetrics {
+
+    private static final Log log = LogFactory.getLog(LdapMetrics.class);
+
+    public static final String JMX_DOMAIN = "com.pingidentity.identitystoreprovisioner";
+
+    // Result label for operations that completed normally
+    public static final String SUCCESS = "0";
+
+    private static final Pattern LDAP_ERROR_CODE = Pattern.compile("error code (\\d+)");
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+    private final ConcurrentMap<String, Counter> results = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, RoundTripMetrics> roundTrips = new ConcurrentHashMap<String, RoundTripMetrics>();
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    private final ThreadLocal<int[]> requestRoundTrips = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private volatile String instanceName;
+
+    public OperationMetrics operation(String name) {
+
+        OperationMetrics metrics = operations.get(name);
+
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics();
+            metrics = operations.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created, "Operation", name, null);
+            }
+        }
+
+        return metrics;
+    }
+
+    public void recordResult(String operation, String resultCode) {
+
+        String key = operation + "|" + resultCode;
+        Counter counter = results.get(key);
+
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = results.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+                register(created, "Result", operation, resultCode);
+            }
+        }
+
+        counter.increment();
+    }
+
+    /**
+     * A named event counter, such as updates that turned out to change nothing.
+     */
+    public Counter counter(String name) {
+
+        Counter counter = counters.get(name);
+
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+                register(created, "Counter", name, null);
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Records one directory operation: its latency, its result code and one round trip against the
+     * SCIM request running on this thread.
+     */
+    public void recordLdapOperation(String operation, long elapsedNanos, String resultCode) {
+
+        operation(operation).record(elapsedNanos, SUCCESS.equals(resultCode));
+        recordResult(operation, resultCode);
+        requestRoundTrips.get()[0]++;
+    }
+
+    /**
+     * Marks the start of a SCIM request on this thread and returns its start time.
+     */
+    public long beginRequest() {
+        requestRoundTrips.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a finished SCIM request started with {@link #beginRequest()} and returns its duration.
+     */
+    public long endRequest(String operation, long startNanos, String result) {
+        return endRequest(operation, startNanos, result, requestRoundTrips.get()[0]);
+    }
+
+    /**
+     * Records a finished SCIM request that made the given number of round trips, for requests that
+     * did not run on one thread from start to end.
+     */
+    public long endRequest(String operation, long startNanos, String result, int roundTripCount) {
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        operation(operation).record(elapsedNanos, SUCCESS.equals(result));
+        recordResult(operation, result);
+
+        RoundTripMetrics metrics = roundTrips.get(operation);
+        if (metrics == null) {
+            RoundTripMetrics created = new RoundTripMetrics();
+            metrics = roundTrips.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created, "RoundTrips", operation, null);
+            }
+        }
+
+        metrics.record(roundTripCount);
+
+        return elapsedNanos;
+    }
+
+    /**
+     * Number of directory round trips made so far by the SCIM request running on this thread.
+     */
+    public int getRequestRoundTrips() {
+        return requestRoundTrips.get()[0];
+    }
+
+    /**
+     * Takes the round trips made on this thread since the count was at since off the SCIM request
+     * running on it and returns them, for work this thread did on behalf of another request.
+     */
+    public int takeRequestRoundTrips(int since) {
+
+        int[] count = requestRoundTrips.get();
+        int taken = count[0] - since;
+        count[0] = since;
+        return taken;
+    }
+
+    /**
+     * Counts round trips made on another thread against the SCIM request running on this one.
+     */
+    public void addRequestRoundTrips(int roundTrips) {
+        requestRoundTrips.get()[0] += roundTrips;
+    }
+
+    public OperationMetrics getOperation(String name) {
+        return operations.get(name);
+    }
+
+    /**
+     * Publishes all metrics, current and future, under the given instance name.
+     */
+    public synchronized void registerMBeans(String instanceName) {
+
+        this.instanceName = instanceName;
+
+        for (java.util.Map.Entry<String, OperationMetrics> e : operations.entrySet()) {
+            register(e.getValue(), "Operation", e.getKey(), null);
+        }
+        for (java.util.Map.Entry<String, RoundTripMetrics> e : roundTrips.entrySet()) {
+            register(e.getValue(), "RoundTrips", e.getKey(), null);
+        }
+        for (java.util.Map.Entry<String, Counter> e : results.entrySet()) {
+            String[] key = e.getKey().split("\\|", 2);
+            register(e.getValue(), "Result", key[0], key[1]);
+        }
+    }
+
+    /**
+     * Registers an additional MBean under this instance, for example pool or cache statistics.
+     */
+    public void registerMBean(Object mbean, String group, String name) {
+        register(mbean, group, name, null);
+    }
+
+    public synchronized void unregisterMBeans() {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.debug("Unable to unregister MBean " + name + ": " + e);
+            }
+        }
+
+        registeredNames.clear();
+        instanceName = null;
+    }
+
+    /**
+     * Result code of a failed directory operation, taken from the LDAP error code in the message
+     * when the provider reports one.
+     */
+    public static String resultCode(NamingException e) {
+
+        if (e instanceof NameAlreadyBoundException) {
+            return "68";
+        }
+        if (e instanceof NameNotFoundException) {
+            return "32";
+        }
+
+        String message = e.getMessage();
+        if (message != null) {
+            Matcher matcher = LDAP_ERROR_CODE.matcher(message);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+
+        if (e instanceof ServiceUnavailableException) {
+            return "52";
+        }
+        if (e instanceof CommunicationException) {
+            return "91";
+        }
+
+        return e.getClass().getSimpleName();
+    }
+
+    private synchronized void register(Object mbean, String group, String name, String resultCode) {
+
+        if (instanceName == null) {
+            return;
+        }
+
+        try {
+            StringBuilder objectName = new StringBuilder(JMX_DOMAIN)
+                    .append(":type=LdapProvisioner,instance=").append(ObjectName.quote(instanceName))
+                    .append(",group=").append(group)
+                    .append(",name=").append(ObjectName.quote(name));
+            if (resultCode != null) {
+                objectName.append(",code=").append(ObjectName.quote(resultCode));
+            }
+
+            ObjectName on = new ObjectName(objectName.toString());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            if (!server.isRegistered(on)) {
+                server.registerMBean(mbean, on);
+                registeredNames.add(on);
+            }
+        } catch (JMException e) {
+            log.debug("Unable to register MBean for " + name + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.pingidentity.helper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.naming.NamingException;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * Writes sent over one pooled connection without waiting for their results, so that many requests,
+ * each with its own message ID, are outstanding on the connection at once. Opened by
+ * {@link UnboundIdLdapBackend#openPipeline(int)}.
+ *
+ * Sending a write waits only while the maximum number of writes is outstanding. Its outcome is
+ * handed to a {@link Listener} on the connection's reader thread, in the order the server answers,
+ * so writes to the same entry must not be outstanding together. Closing waits for the outstanding
+ * writes and returns the connection to the pool.
+ */
+public class LdapPipeline {
+
+    /**
+     * Receives the outcome of one write: the entry as stored when the post-read control was asked
+     * for and returned, or the failure, and the time from sending the write to its result. Runs on
+     * the connection's reader thread and must not block.
+     */
+    public interface Listener {
+        void completed(LdapEntry entry, NamingException failure, long elapsedNanos);
+    }
+
+    private final UnboundIdLdapBackend backend;
+    private final LDAPConnectionPool pool;
+    private final LDAPConnection connection;
+    private final int maxOutstanding;
+    private final Semaphore slots;
+
+    private volatile boolean defunct;
+    private boolean closed;
+
+    LdapPipeline(UnboundIdLdapBackend backend, LDAPConnectionPool pool, LDAPConnection connection, int maxOutstanding) {
+        this.backend = backend;
+        this.pool = pool;
+        this.connection = connection;
+        this.maxOutstanding = maxOutstanding;
+        this.slots = new Semaphore(maxOutstanding);
+    }
+
+    public void add(String dn, Map<String, List<String>> attributes, String[] postReadFields, Listener listener) throws NamingException {
+
+        slots.acquireUninterruptibly();
+        try {
+            connection.asyncAdd(UnboundIdLdapBackend.toAddRequest(dn, attributes, postReadFields), new Completion(dn, postReadFields, listener));
+        } catch (LDAPException e) {
+            throw notSent(e);
+        }
+    }
+
+    public void modify(String dn, List<AttributeChange> changes, String[] postReadFields, Listener listener) throws NamingException {
+
+        slots.acquireUninterruptibly();
+        try {
+            connection.asyncModify(UnboundIdLdapBackend.toModifyRequest(dn, changes, postReadFields), new Completion(dn, postReadFields, listener));
+        } catch (LDAPException e) {
+            throw notSent(e);
+        }
+    }
+
+    public void delete(String dn, Listener listener) throws NamingException {
+
+        slots.acquireUninterruptibly();
+        try {
+            connection.asyncDelete(new DeleteRequest(dn), new Completion(dn, null, listener));
+        } catch (LDAPException e) {
+            throw notSent(e);
+        }
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public int getOutstanding() {
+        return maxOutstanding - slots.availablePermits();
+    }
+
+    /**
+     * Waits for the outstanding writes, then returns the connection to the pool, or drops it when it
+     * was lost along the way.
+     */
+    public void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        slots.acquireUninterruptibly(maxOutstanding);
+
+        if (defunct) {
+            pool.releaseDefunctConnection(connection);
+        } else {
+            pool.releaseConnection(connection);
+        }
+    }
+
+    private NamingException notSent(LDAPException e) {
+
+        slots.release();
+        if (!ResultCode.isConnectionUsable(e.getResultCode())) {
+            defunct = true;
+        }
+        return UnboundIdLdapBackend.toNamingException(e);
+    }
+
+    private final class Completion implements AsyncResultListener {
+
+        private final String dn;
+        private final String[] postReadFields;
+        private final Listener listener;
+        private final long sentNanos = System.nanoTime();
+
+        Completion(String dn, String[] postReadFields, Listener listener) {
+            this.dn = dn;
+            this.postReadFields = postReadFields;
+            this.listener = listener;
+        }
+
+        public void ldapResultReceived(AsyncRequestID requestID, LDAPResult result) {
+
+            try {
+                if (result.getResultCode() == ResultCode.SUCCESS) {
+                    backend.recordWrite(dn);
+                    listener.completed(postReadFields != null ? UnboundIdLdapBackend.getPostReadEntry(result, dn, postReadFields) : null, null,
+                            System.nanoTime() - sentNanos);
+                } else {
+                    if (!ResultCode.isConnectionUsable(result.getResultCode())) {
+                        defunct = true;
+                    }
+                    listener.completed(null, UnboundIdLdapBackend.toNamingException(new LDAPException(result)), System.nanoTime() - sentNanos);
+                }
+            } finally {
+                slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.pingidentity.helper;
+
+/**
+ * Sizing, lifetime, server selection and transport security settings for an {@link LdapConnectionPool}.
+ */
+public class LdapPoolSettings {
+
+    private int maxSize = 10;
+    private int minIdle = 1;
+    private int maxIdle = 5;
+    private long maxConnectionAgeMillis = 30L * 60L * 1000L;
+    private long healthCheckIntervalMillis = 30L * 1000L;
+    private long borrowTimeoutMillis = 10L * 1000L;
+    private int connectTimeoutMillis = 3000;
+    private LdapServerSet.Strategy loadBalancing = LdapServerSet.Strategy.FAILOVER;
+    private long readAfterWriteWindowMillis = 0L;
+    private int readAfterWriteMaxEntries = 10000;
+    private LdapTls tls;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        this.minIdle = Math.max(0, minIdle);
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    public long getMaxConnectionAgeMillis() {
+        return maxConnectionAgeMillis;
+    }
+
+    // 0 means connections never expire because of their age
+    public void setMaxConnectionAgeMillis(long maxConnectionAgeMillis) {
+        this.maxConnectionAgeMillis = Math.max(0L, maxConnectionAgeMillis);
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    // an idle connection unused for longer than this is checked before it is handed out
+    public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+        this.healthCheckIntervalMillis = Math.max(0L, healthCheckIntervalMillis);
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = Math.max(0L, borrowTimeoutMillis);
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    // 0 leaves the connect timeout to the operating system
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = Math.max(0, connectTimeoutMillis);
+    }
+
+    public LdapServerSet.Strategy getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    public void setLoadBalancing(LdapServerSet.Strategy loadBalancing) {
+        this.loadBalancing = loadBalancing != null ? loadBalancing : LdapServerSet.Strategy.FAILOVER;
+    }
+
+    public long getReadAfterWriteWindowMillis() {
+        return readAfterWriteWindowMillis;
+    }
+
+    // reads of an entry written within this window go to the server that took the write, 0 disables
+    public void setReadAfterWriteWindowMillis(long readAfterWriteWindowMillis) {
+        this.readAfterWriteWindowMillis = Math.max(0L, readAfterWriteWindowMillis);
+    }
+
+    public int getReadAfterWriteMaxEntries() {
+        return readAfterWriteMaxEntries;
+    }
+
+    public void setReadAfterWriteMaxEntries(int readAfterWriteMaxEntries) {
+        this.readAfterWriteMaxEntries = Math.max(1, readAfterWriteMaxEntries);
+    }
+
+    public LdapTls getTls() {
+        return tls;
+    }
+
+    // null connects in the clear, unless a server is listed with an ldaps:// URL
+    public void setTls(LdapTls tls) {
+        this.tls = tls;
+    }
+}
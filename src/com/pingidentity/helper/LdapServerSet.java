@@ -0,0 +1,207 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The directory servers listed in a data store, each with its own {@link LdapConnectionPool}.
+ *
+ * Writes always go to the first server that is up, so they stick to the preferred primary (the
+ * first URL) and fail over in the configured order. Reads are spread across the servers according to
+ * the {@link Strategy}. A server that fails to connect is marked down and moved to the back of the
+ * order until its retry interval has passed; it is still tried as a last resort.
+ */
+public class LdapServerSet {
+
+    private static final Log log = LogFactory.getLog(LdapServerSet.class);
+
+    /**
+     * How reads are spread across the servers.
+     */
+    public enum Strategy {
+        // reads go to the primary, like writes
+        FAILOVER,
+        // reads rotate over the servers
+        ROUND_ROBIN,
+        // reads go to the server with the fewest connections in use
+        FEWEST_CONNECTIONS
+    }
+
+    private static final Comparator<Server> BY_ACTIVE_CONNECTIONS = new Comparator<Server>() {
+        public int compare(Server a, Server b) {
+            return Integer.compare(a.getPool().getActiveCount(), b.getPool().getActiveCount());
+        }
+    };
+
+    private final List<Server> servers;
+    private final Strategy strategy;
+    private final long retryIntervalMillis;
+    private final AtomicInteger nextRead = new AtomicInteger();
+
+    /**
+     * Creates a pool for each URL, connecting with a copy of the given JNDI environment.
+     */
+    public LdapServerSet(List<String> urls, Hashtable<String, Object> environment, LdapPoolSettings settings) {
+
+        List<Server> list = new ArrayList<Server>(urls.size());
+        for (String url : urls) {
+            Hashtable<String, Object> serverEnvironment = new Hashtable<String, Object>(environment);
+            serverEnvironment.put(javax.naming.Context.PROVIDER_URL, url);
+            list.add(new Server(url, new LdapConnectionPool(serverEnvironment, settings)));
+        }
+
+        this.servers = Collections.unmodifiableList(list);
+        this.strategy = settings.getLoadBalancing();
+        this.retryIntervalMillis = Math.max(1000L, settings.getHealthCheckIntervalMillis());
+    }
+
+    /**
+     * Splits the space separated URL list of a data store.
+     */
+    public static List<String> parseUrls(String serverUrl) {
+        return Arrays.asList(serverUrl.trim().split("\\s+"));
+    }
+
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Servers to try for a write, preferred primary first.
+     */
+    public List<Server> getWriteOrder() {
+        return upFirst(servers);
+    }
+
+    /**
+     * Servers to try for a read, in the order chosen by the strategy.
+     */
+    public List<Server> getReadOrder() {
+
+        if (servers.size() == 1 || strategy == Strategy.FAILOVER) {
+            return upFirst(servers);
+        }
+
+        List<Server> order = new ArrayList<Server>(servers);
+
+        if (strategy == Strategy.ROUND_ROBIN) {
+            Collections.rotate(order, -((nextRead.getAndIncrement() & Integer.MAX_VALUE) % order.size()));
+        } else {
+            Collections.sort(order, BY_ACTIVE_CONNECTIONS);
+        }
+
+        return upFirst(order);
+    }
+
+    /**
+     * As {@link #getReadOrder()}, but starting with the given server while it is up, used to read
+     * an entry back from the server that just wrote it.
+     */
+    public List<Server> getReadOrder(Server preferred) {
+
+        List<Server> order = getReadOrder();
+
+        if (preferred != null && !preferred.isDown() && order.get(0) != preferred) {
+            order.remove(preferred);
+            order.add(0, preferred);
+        }
+
+        return order;
+    }
+
+    public void markDown(Server server) {
+
+        if (!server.isDown()) {
+            log.warn("LDAP server " + server.getUrl() + " is unreachable, retrying it in " + retryIntervalMillis + " ms");
+        }
+        server.downUntil = System.currentTimeMillis() + retryIntervalMillis;
+    }
+
+    public void markUp(Server server) {
+
+        if (server.downUntil != 0L) {
+            server.downUntil = 0L;
+            log.info("LDAP server " + server.getUrl() + " is reachable again");
+        }
+    }
+
+    public void close() {
+        for (Server server : servers) {
+            server.getPool().close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return strategy + " " + servers;
+    }
+
+    // stable partition, servers that are down keep their relative order at the end
+    private static List<Server> upFirst(List<Server> order) {
+
+        List<Server> up = new ArrayList<Server>(order.size());
+        List<Server> down = null;
+
+        for (Server server : order) {
+            if (server.isDown()) {
+                if (down == null) {
+                    down = new ArrayList<Server>(order.size());
+                }
+                down.add(server);
+            } else {
+                up.add(server);
+            }
+        }
+
+        if (down != null) {
+            up.addAll(down);
+        }
+
+        return up;
+    }
+
+    /**
+     * One directory server and its connection pool.
+     */
+    public static class Server {
+
+        private final String url;
+        private final LdapConnectionPool pool;
+        private volatile long downUntil;
+
+        Server(String url, LdapConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public LdapConnectionPool getPool() {
+            return pool;
+        }
+
+        public boolean isDown() {
+            long until = downUntil;
+            return until != 0L && System.currentTimeMillis() < until;
+        }
+
+        @Override
+        public String toString() {
+            return url + (isDown() ? " (down) " : " ") + pool;
+        }
+    }
+}
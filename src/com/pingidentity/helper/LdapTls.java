@@ -0,0 +1,244 @@
+package com.pingidentity.helper;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+import javax.net.SocketFactory;
+import javax.net.ssl.TrustManager;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.PostConnectProcessor;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.StartTLSPostConnectProcessor;
+import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
+import com.unboundid.util.ssl.HostNameSSLSocketVerifier;
+
+/**
+ * Transport security for the connections of one configuration: LDAPS for servers listed with an
+ * ldaps:// URL, and optionally StartTLS (RFC 4513, section 3) for the others, all through one
+ * {@link TlsSocketFactory} so TLS sessions are shared and resumed across the connections of every
+ * pool, server and client library. Server host names are checked against their certificates.
+ *
+ * JNDI contexts are opened through {@link #connect}; for the UnboundID SDK this class supplies the
+ * socket factory, connection options and post-connect processing.
+ */
+public class LdapTls implements LdapTlsMBean {
+
+    /**
+     * JNDI environment property that carries the LdapTls of a configuration to
+     * {@link LdapConnectionPool}. Removed before the environment reaches JNDI.
+     */
+    public static final String ENVIRONMENT_PROPERTY = LdapTls.class.getName();
+
+    private static final String SOCKET_FACTORY_PROPERTY = "java.naming.ldap.factory.socket";
+
+    // root DSE read without attributes, to bind right after StartTLS
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    private final TlsSocketFactory socketFactory;
+    private final boolean startTls;
+
+    public LdapTls(boolean startTls, String[] protocols, String[] cipherSuites, int sessionLifetimeSeconds) throws GeneralSecurityException {
+        this(startTls, protocols, cipherSuites, sessionLifetimeSeconds, null);
+    }
+
+    /**
+     * As above, trusting the given trust managers instead of the JVM's default trust store.
+     */
+    public LdapTls(boolean startTls, String[] protocols, String[] cipherSuites, int sessionLifetimeSeconds, TrustManager[] trustManagers) throws GeneralSecurityException {
+        this.socketFactory = new TlsSocketFactory(protocols, cipherSuites, sessionLifetimeSeconds, trustManagers);
+        this.startTls = startTls;
+    }
+
+    public static boolean isLdaps(String url) {
+        return url != null && url.trim().toLowerCase().startsWith("ldaps:");
+    }
+
+    /**
+     * Whether any of the URLs needs TLS with these settings.
+     */
+    public static boolean isNeeded(List<String> urls, boolean startTls) {
+
+        if (startTls) {
+            return true;
+        }
+
+        for (String url : urls) {
+            if (isLdaps(url)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public TlsSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    public boolean isStartTls() {
+        return startTls;
+    }
+
+    /**
+     * Opens and binds a JNDI context for the environment's PROVIDER_URL: over TLS from the first byte
+     * for an ldaps:// URL, after StartTLS when enabled, in the clear otherwise.
+     */
+    public LdapContext connect(Hashtable<?, ?> environment) throws NamingException {
+
+        Hashtable<Object, Object> env = new Hashtable<Object, Object>(environment);
+        env.remove(ENVIRONMENT_PROPERTY);
+
+        if (isLdaps((String) env.get(Context.PROVIDER_URL))) {
+            env.put(SOCKET_FACTORY_PROPERTY, TlsSocketFactory.class.getName());
+            return connectWithFactory(env);
+        }
+
+        if (!startTls) {
+            return new InitialLdapContext(env, null);
+        }
+
+        // connect anonymously, secure the connection, then bind with the real credentials over it
+        Hashtable<Object, Object> anonymous = new Hashtable<Object, Object>(env);
+        anonymous.put(Context.SECURITY_AUTHENTICATION, "none");
+        anonymous.remove(Context.SECURITY_PRINCIPAL);
+        anonymous.remove(Context.SECURITY_CREDENTIALS);
+
+        LdapContext ctx = new InitialLdapContext(anonymous, null);
+
+        try {
+            StartTlsResponse tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
+            tls.negotiate(socketFactory);
+
+            for (Object property : Arrays.asList(Context.SECURITY_AUTHENTICATION, Context.SECURITY_PRINCIPAL, Context.SECURITY_CREDENTIALS)) {
+                if (env.containsKey(property)) {
+                    ctx.addToEnvironment((String) property, env.get(property));
+                }
+            }
+            // the changed credentials are presented with the next operation
+            ctx.getAttributes("", NO_ATTRIBUTES);
+
+            return ctx;
+
+        } catch (IOException e) {
+            closeQuietly(ctx);
+            CommunicationException failure = new CommunicationException("StartTLS negotiation failed: " + e.getMessage());
+            failure.setRootCause(e);
+            throw failure;
+        } catch (NamingException e) {
+            closeQuietly(ctx);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(ctx);
+            throw e;
+        }
+    }
+
+    /**
+     * The socket factory the UnboundID SDK should connect with for these URLs: this one when they
+     * use LDAPS, null for plain sockets.
+     */
+    public SocketFactory socketFactoryFor(List<String> urls) {
+        return isLdaps(urls.get(0)) ? socketFactory : null;
+    }
+
+    /**
+     * Post-connect processing that runs StartTLS on each new UnboundID connection, or null when none
+     * is needed.
+     */
+    public PostConnectProcessor postConnectProcessorFor(List<String> urls) {
+        return startTls && !isLdaps(urls.get(0)) ? new StartTLSPostConnectProcessor(socketFactory) : null;
+    }
+
+    /**
+     * Runs StartTLS on an UnboundID connection that is not yet secured, when enabled.
+     */
+    public void startTls(LDAPConnection connection, List<String> urls) throws LDAPException {
+
+        if (postConnectProcessorFor(urls) == null) {
+            return;
+        }
+
+        ResultCode resultCode = connection.processExtendedOperation(new StartTLSExtendedRequest(socketFactory)).getResultCode();
+        if (resultCode != ResultCode.SUCCESS) {
+            throw new LDAPException(resultCode, "StartTLS failed");
+        }
+    }
+
+    /**
+     * Adds host name checking of server certificates to UnboundID connection options.
+     */
+    public void configure(LDAPConnectionOptions options) {
+        options.setSSLSocketVerifier(new HostNameSSLSocketVerifier(true));
+    }
+
+    public String getMode() {
+        return startTls ? "StartTLS" : "LDAPS";
+    }
+
+    public String[] getProtocols() {
+        return socketFactory.getProtocols();
+    }
+
+    public String[] getCipherSuites() {
+        return socketFactory.getCipherSuites();
+    }
+
+    public boolean isResumptionEnabled() {
+        return socketFactory.isResumptionEnabled();
+    }
+
+    public long getHandshakeCount() {
+        return socketFactory.getHandshakeCount();
+    }
+
+    public long getResumedHandshakeCount() {
+        return socketFactory.getResumedHandshakeCount();
+    }
+
+    public int getCachedSessionCount() {
+        return socketFactory.getCachedSessionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "LdapTls[" + getMode() + ", handshakes=" + getHandshakeCount() + ", resumed=" + getResumedHandshakeCount() + "]";
+    }
+
+    private LdapContext connectWithFactory(Hashtable<Object, Object> env) throws NamingException {
+
+        // JNDI loads the factory class through the context class loader and asks it for an instance
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+
+        thread.setContextClassLoader(TlsSocketFactory.class.getClassLoader());
+        socketFactory.beginConnecting();
+
+        try {
+            return new InitialLdapContext(env, null);
+        } finally {
+            TlsSocketFactory.endConnecting();
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private static void closeQuietly(LdapContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            // already failing
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of {@link LdapTls}.
+ */
+public interface LdapTlsMBean {
+
+    String getMode();
+
+    String[] getProtocols();
+
+    String[] getCipherSuites();
+
+    boolean isResumptionEnabled();
+
+    long getHandshakeCount();
+
+    long getResumedHandshakeCount();
+
+    int getCachedSessionCount();
+}
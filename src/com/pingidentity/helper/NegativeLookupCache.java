@@ -0,0 +1,174 @@
+package com.pingidentity.helper;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A compact, fixed-size record of DNs recently found not to exist.
+ *
+ * Only a 64-bit hash of each normalized DN is kept, in a direct-mapped table of two long arrays, so
+ * the memory footprint is fixed at 16 bytes per slot however many distinct DNs are probed. A newer
+ * miss simply overwrites an older one that hashes to the same slot, which can only cost an extra
+ * directory lookup, never a wrong answer beyond the 64-bit hash collision odds.
+ *
+ * Each slot also has a write stamp that remove and clear move on. A lookup takes the stamp before
+ * asking the directory and records its miss with recordMissingIfUnchanged, which ignores the miss
+ * when an entry may have been created at the DN since, so a create racing with the lookup is not
+ * hidden behind a stale miss.
+ */
+public class NegativeLookupCache implements NegativeLookupCacheMBean {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] hashes;
+    private final long[] expires;
+    private final long[] stamps;
+    private final int mask;
+    private final long windowMillis;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong recordedCount = new AtomicLong();
+
+    public NegativeLookupCache(int size, long windowMillis) {
+
+        int capacity = Integer.highestOneBit(Math.max(2, Math.min(size, 1 << 24)) - 1) << 1;
+
+        this.hashes = new long[capacity];
+        this.expires = new long[capacity];
+        this.stamps = new long[capacity];
+        this.mask = capacity - 1;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Whether dn was recorded as missing within the window.
+     */
+    public boolean isMissing(String dn) {
+
+        long hash = hash(dn);
+        int slot = slot(hash);
+
+        synchronized (this) {
+            if (hashes[slot] == hash && expires[slot] > System.currentTimeMillis()) {
+                hitCount.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The write stamp of dn, to be taken before looking the DN up in the directory.
+     */
+    public long stamp(String dn) {
+
+        int slot = slot(hash(dn));
+
+        synchronized (this) {
+            return stamps[slot];
+        }
+    }
+
+    /**
+     * Records dn as missing unless it has been removed, or the cache cleared, since the stamp was
+     * taken. Returns whether it was recorded.
+     */
+    public boolean recordMissingIfUnchanged(String dn, long stamp) {
+
+        long hash = hash(dn);
+        int slot = slot(hash);
+
+        synchronized (this) {
+            if (stamps[slot] != stamp) {
+                return false;
+            }
+            hashes[slot] = hash;
+            expires[slot] = System.currentTimeMillis() + windowMillis;
+        }
+
+        recordedCount.incrementAndGet();
+        return true;
+    }
+
+    public void recordMissing(String dn) {
+
+        long hash = hash(dn);
+        int slot = slot(hash);
+
+        synchronized (this) {
+            hashes[slot] = hash;
+            expires[slot] = System.currentTimeMillis() + windowMillis;
+        }
+
+        recordedCount.incrementAndGet();
+    }
+
+    /**
+     * Forgets a DN, for example because an entry has just been created there.
+     */
+    public void remove(String dn) {
+
+        long hash = hash(dn);
+        int slot = slot(hash);
+
+        synchronized (this) {
+            stamps[slot]++;
+            if (hashes[slot] == hash) {
+                hashes[slot] = 0L;
+                expires[slot] = 0L;
+            }
+        }
+    }
+
+    /**
+     * Forgets every DN, for example because changes to the directory may have been missed.
+     */
+    public synchronized void clear() {
+        Arrays.fill(hashes, 0L);
+        Arrays.fill(expires, 0L);
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i]++;
+        }
+    }
+
+    public int getCapacity() {
+        return hashes.length;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeLookupCache[capacity=" + getCapacity() + ", hits=" + getHitCount() + ", recorded=" + getRecordedCount() + "]";
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    // FNV-1a over the normalized DN; 0 marks an empty slot so it is never returned
+    private static long hash(String dn) {
+
+        String normalized = EntryCache.normalizeDn(dn);
+        long hash = FNV_OFFSET_BASIS;
+
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= FNV_PRIME;
+        }
+
+        return hash == 0L ? 1L : hash;
+    }
+}
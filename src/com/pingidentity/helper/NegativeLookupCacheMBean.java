@@ -0,0 +1,15 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of the statistics of a {@link NegativeLookupCache}.
+ */
+public interface NegativeLookupCacheMBean {
+
+    int getCapacity();
+
+    long getWindowMillis();
+
+    long getHitCount();
+
+    long getRecordedCount();
+}
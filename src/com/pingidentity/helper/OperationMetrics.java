@@ -0,0 +1,55 @@
+package com.pingidentity.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call count, error count and latency histogram of one operation type, e.g. an LDAP modify or a
+ * SCIM update. Latencies are recorded in nanoseconds and reported in microseconds.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final Histogram latency = new Histogram();
+    private final LongAdder errorCount = new LongAdder();
+
+    public void record(long elapsedNanos, boolean success) {
+
+        latency.record(elapsedNanos);
+
+        if (!success) {
+            errorCount.increment();
+        }
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    public double getMeanMicros() {
+        return latency.getMean() / 1000.0;
+    }
+
+    public long getP50Micros() {
+        return toMicros(latency.getValueAtPercentile(50.0));
+    }
+
+    public long getP90Micros() {
+        return toMicros(latency.getValueAtPercentile(90.0));
+    }
+
+    public long getP99Micros() {
+        return toMicros(latency.getValueAtPercentile(99.0));
+    }
+
+    public long getMaxMicros() {
+        return toMicros(latency.getMax());
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,21 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of the counters and latency distribution of one operation type.
+ */
+public interface OperationMetricsMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,66 @@
+package com.pingidentity.helper;
+
+import javax.naming.ldap.Control;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.controls.PostReadRequestControl;
+import com.unboundid.ldap.sdk.controls.PostReadResponseControl;
+
+/**
+ * JNDI adapter for the RFC 4527 post-read control. Asks the server to return the entry as it looks
+ * after an add or modify, which saves reading it back with a separate search.
+ */
+public class PostReadControl implements Control {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String OID = PostReadRequestControl.POST_READ_REQUEST_OID;
+
+    private final byte[] encodedValue;
+
+    public PostReadControl(String[] returnFields) {
+        // not critical, so the write still goes through should the server decline to honour it
+        encodedValue = new PostReadRequestControl(false, returnFields).getValue().getValue();
+    }
+
+    public String getID() {
+        return OID;
+    }
+
+    public boolean isCritical() {
+        return false;
+    }
+
+    public byte[] getEncodedValue() {
+        return encodedValue;
+    }
+
+    /**
+     * Extracts the post-read entry from the response controls of a write, converted to the same
+     * shape LdapHelper returns for reads. Returns null when the response carries no post-read control.
+     */
+    public static LdapEntry getEntry(Control[] responseControls, String dn, String[] returnFields) {
+
+        if (responseControls == null) {
+            return null;
+        }
+
+        for (Control control : responseControls) {
+            if (!PostReadResponseControl.POST_READ_RESPONSE_OID.equals(control.getID())) {
+                continue;
+            }
+
+            try {
+                PostReadResponseControl response = new PostReadResponseControl(control.getID(), control.isCritical(),
+                        new ASN1OctetString(control.getEncodedValue()));
+                return UnboundIdLdapBackend.toLdapEntry(response.getEntry(), dn, returnFields);
+
+            } catch (LDAPException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+}
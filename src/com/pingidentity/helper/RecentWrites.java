@@ -0,0 +1,128 @@
+package com.pingidentity.helper;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, time-decaying record of recently written keys, each with a value such as the server
+ * that took the write. Entries disappear once the window has passed, so the map only ever holds
+ * the writes of the last few seconds. Should it still outgrow its bound, the oldest writes are
+ * dropped first, which only loses the routing hint for writes about to expire anyway.
+ *
+ * Writes also go on a queue in the order they were made, which with a fixed window is the order
+ * they expire in. Each record takes expired or excess writes off the head of the queue, so every
+ * write is removed once and recording stays constant time on average. Writes superseded by a later
+ * write of their key are swept off the queue in place once they pile up behind a live one, so the
+ * queue keeps its expiry order.
+ */
+public class RecentWrites<V> {
+
+    private final ConcurrentHashMap<String, Write<V>> writes = new ConcurrentHashMap<String, Write<V>>();
+    private final ConcurrentLinkedQueue<Write<V>> expiryQueue = new ConcurrentLinkedQueue<Write<V>>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // one thread trims at a time, the others leave it to that one
+    private final ReentrantLock trimLock = new ReentrantLock();
+    private final int maxSize;
+    private final long windowMillis;
+
+    public RecentWrites(int maxSize, long windowMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.windowMillis = windowMillis;
+    }
+
+    public void record(String key, V value) {
+
+        Write<V> write = new Write<V>(key, value, System.currentTimeMillis() + windowMillis);
+
+        writes.put(key, write);
+        expiryQueue.add(write);
+        queued.incrementAndGet();
+
+        trim();
+    }
+
+    /**
+     * Returns the value recorded for a write of key within the window, or null.
+     */
+    public V get(String key) {
+
+        Write<V> write = writes.get(key);
+
+        if (write == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= write.expires) {
+            writes.remove(key, write);
+            return null;
+        }
+
+        return write.value;
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    private void trim() {
+
+        if (!trimLock.tryLock()) {
+            return;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+
+            for (Write<V> oldest = expiryQueue.peek(); oldest != null; oldest = expiryQueue.peek()) {
+
+                // a key written again leaves its earlier write behind on the queue
+                boolean live = writes.get(oldest.key) == oldest;
+
+                if (!live || now >= oldest.expires || writes.size() > maxSize) {
+                    expiryQueue.poll();
+                    queued.decrementAndGet();
+                    writes.remove(oldest.key, oldest);
+                    continue;
+                }
+
+                if (queued.get() > writes.size() + maxSize) {
+                    sweepSuperseded();
+                }
+                return;
+            }
+        } finally {
+            trimLock.unlock();
+        }
+    }
+
+    // too many rewritten ones behind the oldest live write, take them out without moving the others
+    private void sweepSuperseded() {
+
+        for (Iterator<Write<V>> it = expiryQueue.iterator(); it.hasNext();) {
+            Write<V> write = it.next();
+            if (writes.get(write.key) != write) {
+                it.remove();
+                queued.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Write<V> {
+
+        private final String key;
+        private final V value;
+        private final long expires;
+
+        Write(String key, V value, long expires) {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
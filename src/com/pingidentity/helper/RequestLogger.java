@@ -0,0 +1,138 @@
+package com.pingidentity.helper;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Structured, sampled logging of SCIM requests: one line of key=value pairs per request instead of
+ * a line per attribute. Successful requests are sampled at a configurable rate while failures are
+ * always logged. User ids are written as a token, a keyed hash (HMAC-SHA256) that lets the lines of
+ * one user be correlated but cannot be turned back into the id without the key. Attribute values
+ * are never logged.
+ */
+public class RequestLogger {
+
+    private static final Log log = LogFactory.getLog(RequestLogger.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String HMAC = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Hex digits of a token, 64 bits of the hash. */
+    private static final int TOKEN_LENGTH = 16;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int sampleRate = 100;
+    private volatile SecretKeySpec tokenKey = randomKey();
+
+    // Mac instances are not thread safe and costly to look up, so each thread keeps its own
+    private final ThreadLocal<KeyedMac> macs = new ThreadLocal<KeyedMac>();
+
+    /**
+     * Logs one in every sampleRate successful requests, 100 by default; 0 logs failed requests only.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(0, sampleRate);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the key user ids are hashed with. Nodes with the same key write the same token for a
+     * user; without one, a random key is used, so tokens only match within one run.
+     */
+    public void setTokenKey(String key) {
+        tokenKey = key != null && key.length() > 0 ? new SecretKeySpec(key.getBytes(UTF_8), HMAC) : randomKey();
+    }
+
+    public void logRequest(String operation, String userId, String entityId, String result, long elapsedNanos, int roundTrips) {
+
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+
+        if (LdapMetrics.SUCCESS.equals(result)) {
+            int rate = sampleRate;
+            if (rate <= 0 || sequence.incrementAndGet() % rate != 0) {
+                return;
+            }
+        }
+
+        StringBuilder line = new StringBuilder(128)
+                .append("op=").append(operation)
+                .append(" user=").append(redact(userId))
+                .append(" entityId=").append(entityId)
+                .append(" result=").append(result)
+                .append(" us=").append(elapsedNanos / 1000L)
+                .append(" ldapOps=").append(roundTrips);
+
+        log.info(line.toString());
+    }
+
+    /**
+     * A stable token for a value that must not appear in the logs, so the lines of one user can still
+     * be correlated: the first 64 bits of its HMAC-SHA256 under the token key, in hex.
+     */
+    public String redact(String value) {
+
+        if (value == null) {
+            return "-";
+        }
+
+        byte[] hash = mac().doFinal(value.getBytes(UTF_8));
+
+        char[] token = new char[TOKEN_LENGTH];
+        for (int i = 0; i < TOKEN_LENGTH / 2; i++) {
+            token[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            token[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+
+        return new String(token);
+    }
+
+    private Mac mac() {
+
+        SecretKeySpec key = tokenKey;
+        KeyedMac keyed = macs.get();
+        if (keyed == null || keyed.key != key) {
+            keyed = new KeyedMac(key);
+            macs.set(keyed);
+        }
+        return keyed.mac;
+    }
+
+    private static SecretKeySpec randomKey() {
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, HMAC);
+    }
+
+    private static class KeyedMac {
+
+        final SecretKeySpec key;
+        final Mac mac;
+
+        KeyedMac(SecretKeySpec key) {
+            this.key = key;
+            try {
+                mac = Mac.getInstance(HMAC);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                // every Java platform is required to support HmacSHA256
+                throw new IllegalStateException("Unable to hash user ids for the request log", e);
+            }
+        }
+    }
+}
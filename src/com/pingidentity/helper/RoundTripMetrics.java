@@ -0,0 +1,33 @@
+package com.pingidentity.helper;
+
+/**
+ * Distribution of directory round trips per request of one kind.
+ */
+public class RoundTripMetrics implements RoundTripMetricsMBean {
+
+    private final Histogram roundTrips = new Histogram();
+
+    public void record(int count) {
+        roundTrips.record(count);
+    }
+
+    public long getRequestCount() {
+        return roundTrips.getCount();
+    }
+
+    public double getMeanRoundTrips() {
+        return roundTrips.getMean();
+    }
+
+    public long getP50RoundTrips() {
+        return roundTrips.getValueAtPercentile(50.0);
+    }
+
+    public long getP99RoundTrips() {
+        return roundTrips.getValueAtPercentile(99.0);
+    }
+
+    public long getMaxRoundTrips() {
+        return roundTrips.getMax();
+    }
+}
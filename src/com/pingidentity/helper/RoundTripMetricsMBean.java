@@ -0,0 +1,17 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of the number of directory round trips made per request.
+ */
+public interface RoundTripMetricsMBean {
+
+    long getRequestCount();
+
+    double getMeanRoundTrips();
+
+    long getP50RoundTrips();
+
+    long getP99RoundTrips();
+
+    long getMaxRoundTrips();
+}
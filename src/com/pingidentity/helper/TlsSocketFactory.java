@@ -0,0 +1,260 @@
+package com.pingidentity.helper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The SSL socket factory behind every TLS connection of one configuration, for LDAPS and StartTLS
+ * and for both client libraries.
+ *
+ * All connections share one SSLContext and so one client session cache: a new connection to a
+ * server this factory has talked to before offers the cached session and, when the server accepts,
+ * skips the certificate exchange and key agreement of a full handshake. With a session lifetime of 0
+ * every session is dropped once its handshake completes, so each connection pays a full handshake.
+ * The enabled protocols and cipher suites can be narrowed; names the JVM does not support are
+ * ignored with a warning. Handshakes are counted, those that resumed a session separately.
+ *
+ * JNDI names its socket factory by class and asks the class for an instance through a static
+ * getDefault(), so {@link #getDefault()} hands out the factory of the configuration that is opening
+ * a connection on the current thread (see {@link LdapTls}).
+ */
+public class TlsSocketFactory extends SSLSocketFactory {
+
+    private static final Log log = LogFactory.getLog(TlsSocketFactory.class);
+
+    // the factory of the JNDI connection being opened on this thread
+    private static final ThreadLocal<TlsSocketFactory> CONNECTING = new ThreadLocal<TlsSocketFactory>();
+
+    private final SSLSocketFactory delegate;
+    private final SSLSessionContext sessionContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final boolean resumption;
+
+    private final AtomicLong handshakeCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    /**
+     * A factory over a new SSLContext. Null protocols or cipher suites keep the JVM defaults, null
+     * trust managers the JVM's default trust store.
+     */
+    public TlsSocketFactory(String[] protocols, String[] cipherSuites, int sessionLifetimeSeconds, TrustManager[] trustManagers) throws GeneralSecurityException {
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers, null);
+
+        this.delegate = context.getSocketFactory();
+        this.sessionContext = context.getClientSessionContext();
+        this.resumption = sessionLifetimeSeconds > 0;
+
+        if (resumption) {
+            sessionContext.setSessionTimeout(sessionLifetimeSeconds);
+        }
+
+        SSLParameters supported = context.getSupportedSSLParameters();
+        this.protocols = supported("protocol", protocols, supported.getProtocols());
+        this.cipherSuites = supported("cipher suite", cipherSuites, supported.getCipherSuites());
+    }
+
+    /**
+     * Called by JNDI for each LDAPS connection it opens.
+     */
+    public static SocketFactory getDefault() {
+        TlsSocketFactory factory = CONNECTING.get();
+        return factory != null ? factory : SSLSocketFactory.getDefault();
+    }
+
+    /**
+     * Makes this the factory {@link #getDefault()} returns on the current thread until
+     * {@link #endConnecting()}.
+     */
+    void beginConnecting() {
+        CONNECTING.set(this);
+    }
+
+    static void endConnecting() {
+        CONNECTING.remove();
+    }
+
+    public String[] getProtocols() {
+        return protocols != null ? protocols.clone() : null;
+    }
+
+    public String[] getCipherSuites() {
+        return cipherSuites != null ? cipherSuites.clone() : null;
+    }
+
+    public boolean isResumptionEnabled() {
+        return resumption;
+    }
+
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    public long getResumedHandshakeCount() {
+        return resumedCount.get();
+    }
+
+    public int getCachedSessionCount() {
+
+        int count = 0;
+        for (Enumeration<byte[]> ids = sessionContext.getIds(); ids.hasMoreElements(); ids.nextElement()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return cipherSuites != null ? cipherSuites.clone() : delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return configure(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return configure(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return configure(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return configure(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return configure(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return configure(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket configure(Socket socket) {
+
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+
+        SSLSocket sslSocket = (SSLSocket) socket;
+
+        if (!resumption) {
+            // the handshake listener runs on its own thread, so a session it drops may still be
+            // offered by a connection opened right after
+            forgetSessions();
+        }
+
+        if (protocols != null) {
+            sslSocket.setEnabledProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            sslSocket.setEnabledCipherSuites(cipherSuites);
+        }
+
+        final long createdMillis = System.currentTimeMillis();
+
+        sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                handshakeCount.incrementAndGet();
+
+                // a resumed session keeps the creation time of the handshake that established it
+                if (event.getSession().getCreationTime() < createdMillis) {
+                    resumedCount.incrementAndGet();
+                }
+
+                if (!resumption) {
+                    event.getSession().invalidate();
+                }
+            }
+        });
+
+        return sslSocket;
+    }
+
+    private void forgetSessions() {
+
+        for (Enumeration<byte[]> ids = sessionContext.getIds(); ids.hasMoreElements();) {
+            SSLSession session = sessionContext.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    private static String[] supported(String kind, String[] requested, String[] supported) {
+
+        if (requested == null || requested.length == 0) {
+            return null;
+        }
+
+        List<String> available = Arrays.asList(supported);
+        List<String> enabled = new ArrayList<String>();
+
+        for (String name : requested) {
+            if (available.contains(name)) {
+                enabled.add(name);
+            } else {
+                log.warn("Ignoring TLS " + kind + " " + name + ", not supported by this JVM");
+            }
+        }
+
+        if (enabled.isEmpty()) {
+            log.warn("None of the configured TLS " + kind + "s " + Arrays.toString(requested) + " is supported, using the JVM defaults");
+            return null;
+        }
+
+        return enabled.toArray(new String[enabled.size()]);
+    }
+
+    /**
+     * Splits a comma or space separated list of protocol or cipher suite names, or returns null for
+     * an empty one.
+     */
+    public static String[] parseList(String value) {
+
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<String>();
+        Collections.addAll(names, value.trim().split("[\\s,]+"));
+        return names.toArray(new String[names.size()]);
+    }
+}
@@ -0,0 +1,499 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.PartialResultException;
+import javax.naming.directory.AttributeInUseException;
+import javax.naming.directory.InvalidAttributeIdentifierException;
+import javax.naming.directory.InvalidAttributeValueException;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.directory.SchemaViolationException;
+import javax.net.SocketFactory;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.saml20.domain.datasource.info.LdapInfo;
+import org.sourceid.util.log.AttributeMap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.FailoverServerSet;
+import com.unboundid.ldap.sdk.FewestConnectionsServerSet;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.PostConnectProcessor;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.RoundRobinServerSet;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.controls.PostReadRequestControl;
+import com.unboundid.ldap.sdk.controls.PostReadResponseControl;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * LDAP backend on the UnboundID LDAP SDK, using its {@link LDAPConnectionPool} and native entry and
+ * modification types instead of JNDI contexts.
+ *
+ * Writes use a pool over a {@link FailoverServerSet} in the configured URL order, so they stick to
+ * the preferred primary. When reads are load balanced they use a second pool over a round-robin or
+ * fewest-connections server set across all URLs.
+ */
+public class UnboundIdLdapBackend implements LdapBackend {
+
+    private final LDAPConnectionPool connectionPool;
+    private final LDAPConnectionPool readPool;
+
+    // DNs written recently, read back through the write pool; null unless reads are load balanced
+    private final RecentWrites<Boolean> recentWrites;
+
+    public UnboundIdLdapBackend(LdapInfo ldapConnection, LdapPoolSettings poolSettings) throws NamingException {
+        this(ldapConnection.getServerUrl(), ldapConnection.getPrincipal(), ldapConnection.getCredentials(), poolSettings);
+    }
+
+    /**
+     * A backend for the given space separated server URLs and bind credentials, without an LDAP data
+     * store, such as for a directory run in process.
+     */
+    public UnboundIdLdapBackend(String serverUrl, String principal, String credentials, LdapPoolSettings poolSettings) throws NamingException {
+
+        try {
+            List<String> urls = LdapServerSet.parseUrls(serverUrl);
+            String[] hosts = new String[urls.size()];
+            int[] ports = new int[urls.size()];
+            for (int i = 0; i < hosts.length; i++) {
+                LDAPURL url = new LDAPURL(urls.get(i));
+                hosts[i] = url.getHost();
+                ports[i] = url.getPort();
+            }
+
+            LDAPConnectionOptions options = new LDAPConnectionOptions();
+            options.setConnectTimeoutMillis(poolSettings.getConnectTimeoutMillis());
+
+            // one server set covers every URL, so the first one decides between LDAPS and StartTLS
+            LdapTls tls = poolSettings.getTls();
+            SocketFactory socketFactory = null;
+            PostConnectProcessor startTls = null;
+            if (tls != null) {
+                tls.configure(options);
+                socketFactory = tls.socketFactoryFor(urls);
+                startTls = tls.postConnectProcessorFor(urls);
+            }
+
+            ServerSet writeServers = hosts.length == 1 ? new SingleServerSet(hosts[0], ports[0], socketFactory, options)
+                    : new FailoverServerSet(hosts, ports, socketFactory, options);
+            connectionPool = createPool(writeServers, startTls, principal, credentials, poolSettings, "pf-identitystoreprovisioner-ldap");
+
+            if (hosts.length > 1 && poolSettings.getLoadBalancing() == LdapServerSet.Strategy.ROUND_ROBIN) {
+                readPool = createPool(new RoundRobinServerSet(hosts, ports, socketFactory, options), startTls, principal, credentials, poolSettings, "pf-identitystoreprovisioner-ldap-read");
+            } else if (hosts.length > 1 && poolSettings.getLoadBalancing() == LdapServerSet.Strategy.FEWEST_CONNECTIONS) {
+                readPool = createPool(new FewestConnectionsServerSet(hosts, ports, socketFactory, options), startTls, principal, credentials, poolSettings, "pf-identitystoreprovisioner-ldap-read");
+            } else {
+                readPool = connectionPool;
+            }
+
+            recentWrites = readPool != connectionPool && poolSettings.getReadAfterWriteWindowMillis() > 0
+                    ? new RecentWrites<Boolean>(poolSettings.getReadAfterWriteMaxEntries(), poolSettings.getReadAfterWriteWindowMillis())
+                    : null;
+
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    private static LDAPConnectionPool createPool(ServerSet servers, PostConnectProcessor postConnect, String principal, String credentials, LdapPoolSettings poolSettings, String name) throws LDAPException {
+
+        // an unreachable directory must not fail configuration, connections are retried on use
+        LDAPConnectionPool pool = new LDAPConnectionPool(servers,
+                new SimpleBindRequest(principal, credentials),
+                Math.min(poolSettings.getMinIdle(), poolSettings.getMaxSize()), poolSettings.getMaxSize(), postConnect, false);
+
+        pool.setConnectionPoolName(name);
+        pool.setMaxConnectionAgeMillis(poolSettings.getMaxConnectionAgeMillis());
+        pool.setMaxWaitTimeMillis(poolSettings.getBorrowTimeoutMillis());
+        pool.setHealthCheckIntervalMillis(Math.max(1L, poolSettings.getHealthCheckIntervalMillis()));
+        pool.setMinimumAvailableConnectionGoal(poolSettings.getMinIdle());
+
+        return pool;
+    }
+
+    /**
+     * The pool used for writes, and for reads unless they are load balanced.
+     */
+    public LDAPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public LDAPConnectionPool getReadPool() {
+        return readPool;
+    }
+
+    /**
+     * Opens a pipeline on a connection of the write pool, for sending up to maxOutstanding writes
+     * without waiting for their results.
+     */
+    public LdapPipeline openPipeline(int maxOutstanding) throws NamingException {
+
+        try {
+            return new LdapPipeline(this, connectionPool, connectionPool.getConnection(), Math.max(1, maxOutstanding));
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    public LdapEntry add(String dn, Map<String, List<String>> attributes, String[] postReadFields) throws NamingException {
+
+        try {
+            LDAPResult result = connectionPool.add(toAddRequest(dn, attributes, postReadFields));
+            recordWrite(dn);
+            return postReadFields != null ? getPostReadEntry(result, dn, postReadFields) : null;
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    public LdapEntry modify(String dn, List<AttributeChange> changes, String[] postReadFields) throws NamingException {
+
+        try {
+            LDAPResult result = connectionPool.modify(toModifyRequest(dn, changes, postReadFields));
+            recordWrite(dn);
+            return postReadFields != null ? getPostReadEntry(result, dn, postReadFields) : null;
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    public void delete(String dn) throws NamingException {
+
+        try {
+            connectionPool.delete(dn);
+            recordWrite(dn);
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    public LdapEntry read(String dn, String[] returnFields) throws NamingException {
+
+        try {
+            SearchResultEntry entry = readPoolFor(dn).getEntry(dn, returnFields);
+            return entry != null ? toLdapEntry(entry, dn, returnFields) : null;
+        } catch (LDAPException e) {
+            if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+                return null;
+            }
+            throw toNamingException(e);
+        }
+    }
+
+    public List<LdapEntry> search(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int sizeLimit) throws NamingException {
+
+        List<SearchResultEntry> searchEntries;
+
+        try {
+            SearchRequest searchRequest = new SearchRequest(baseDn, SearchScope.SUB, formatFilter(filter, filterArgs), returnFields);
+            searchRequest.setSizeLimit(sizeLimit);
+
+            searchEntries = readPool.search(searchRequest).getSearchEntries();
+
+        } catch (LDAPSearchException e) {
+            if (e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED) {
+                throw toNamingException(e);
+            }
+            // more matches than asked for, keep the ones already read
+            searchEntries = e.getSearchEntries();
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+
+        List<LdapEntry> entries = new ArrayList<LdapEntry>(searchEntries.size());
+        for (SearchResultEntry entry : searchEntries) {
+            entries.add(toLdapEntry(entry, entry.getDN(), returnFields));
+        }
+
+        return entries;
+    }
+
+    public int searchPaged(String baseDn, String filter, Object[] filterArgs, final String[] returnFields, int pageSize, final LdapEntryHandler handler) throws NamingException {
+
+        // the paging cookie is only valid on the connection that issued it
+        LDAPConnection connection;
+        try {
+            connection = readPool.getConnection();
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+
+        // the listener runs on the connection's reader thread
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<RuntimeException> handlerFailure = new AtomicReference<RuntimeException>();
+
+        boolean defunct = false;
+
+        try {
+            SearchRequest request = new SearchRequest(new SearchResultListener() {
+                public void searchEntryReturned(SearchResultEntry entry) {
+                    if (stopped.get()) {
+                        return;
+                    }
+                    delivered.incrementAndGet();
+                    try {
+                        if (!handler.entryReturned(toLdapEntry(entry, entry.getDN(), returnFields))) {
+                            stopped.set(true);
+                        }
+                    } catch (RuntimeException e) {
+                        handlerFailure.set(e);
+                        stopped.set(true);
+                    }
+                }
+
+                public void searchReferenceReturned(SearchResultReference reference) {
+                }
+            }, baseDn, SearchScope.SUB, formatFilter(filter, filterArgs), returnFields);
+
+            ASN1OctetString cookie = null;
+            do {
+                if (pageSize > 0) {
+                    request.setControls(new SimplePagedResultsControl(pageSize, cookie, false));
+                }
+                SimplePagedResultsControl response = SimplePagedResultsControl.get(connection.search(request));
+                cookie = response != null && response.moreResultsToReturn() ? response.getCookie() : null;
+            } while (cookie != null && !stopped.get());
+
+            if (cookie != null) {
+                // a page size of 0 tells the server to drop the rest of the result set
+                request.setControls(new SimplePagedResultsControl(0, cookie, false));
+                try {
+                    connection.search(request);
+                } catch (LDAPException e) {
+                    defunct = !ResultCode.isConnectionUsable(e.getResultCode());
+                }
+            }
+
+        } catch (LDAPException e) {
+            defunct = !ResultCode.isConnectionUsable(e.getResultCode());
+            NamingException namingException = toNamingException(e);
+            if (delivered.get() > 0) {
+                PartialResultException partial = new PartialResultException("Paged search ended after " + delivered.get() + " entries: " + namingException.getExplanation());
+                partial.setRootCause(e);
+                throw partial;
+            }
+            throw namingException;
+        } finally {
+            if (defunct) {
+                readPool.releaseDefunctConnection(connection);
+            } else {
+                readPool.releaseConnection(connection);
+            }
+        }
+
+        if (handlerFailure.get() != null) {
+            throw handlerFailure.get();
+        }
+
+        return delivered.get();
+    }
+
+    public boolean isControlSupported(String oid) throws NamingException {
+
+        try {
+            RootDSE rootDSE = connectionPool.getRootDSE();
+            return rootDSE != null && rootDSE.supportsControl(oid);
+        } catch (LDAPException e) {
+            throw toNamingException(e);
+        }
+    }
+
+    public void close() {
+        connectionPool.close();
+        if (readPool != connectionPool) {
+            readPool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnboundID " + connectionPool.getConnectionPoolStatistics()
+                + (readPool != connectionPool ? " reads " + readPool.getConnectionPoolStatistics() : "");
+    }
+
+    void recordWrite(String dn) {
+        if (recentWrites != null) {
+            recentWrites.record(EntryCache.normalizeDn(dn), Boolean.TRUE);
+        }
+    }
+
+    // the write pool prefers the primary that took the write, while the read pool may land on a lagging replica
+    private LDAPConnectionPool readPoolFor(String dn) {
+        return recentWrites != null && recentWrites.get(EntryCache.normalizeDn(dn)) != null ? connectionPool : readPool;
+    }
+
+    /**
+     * Converts an SDK entry to the shape LdapHelper returns for reads: one value list per requested
+     * attribute, empty when the entry does not have it.
+     */
+    static LdapEntry toLdapEntry(Entry entry, String dn, String[] returnFields) {
+
+        AttributeMap returnValues = new AttributeMap();
+
+        for (String thisAttrib : returnFields) {
+            List<String> returnAV = new ArrayList<String>();
+
+            String[] values = entry.getAttributeValues(thisAttrib);
+            if (values != null) {
+                for (String value : values) {
+                    returnAV.add(value);
+                }
+            }
+
+            returnValues.put(thisAttrib, new AttributeValue(returnAV));
+        }
+
+        return new LdapEntry(dn, returnValues);
+    }
+
+    /**
+     * Maps SDK result codes onto the JNDI exceptions LdapHelper distinguishes, as JNDI maps them.
+     */
+    static NamingException toNamingException(LDAPException e) {
+
+        NamingException namingException;
+
+        if (e.getResultCode() == ResultCode.ENTRY_ALREADY_EXISTS) {
+            namingException = new NameAlreadyBoundException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+            namingException = new NameNotFoundException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.INVALID_DN_SYNTAX) {
+            namingException = new InvalidNameException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.INSUFFICIENT_ACCESS_RIGHTS) {
+            namingException = new NoPermissionException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.INVALID_CREDENTIALS || e.getResultCode() == ResultCode.INAPPROPRIATE_AUTHENTICATION) {
+            namingException = new AuthenticationException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.OBJECT_CLASS_VIOLATION || e.getResultCode() == ResultCode.NAMING_VIOLATION
+                || e.getResultCode() == ResultCode.NOT_ALLOWED_ON_RDN || e.getResultCode() == ResultCode.OBJECT_CLASS_MODS_PROHIBITED) {
+            namingException = new SchemaViolationException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.CONSTRAINT_VIOLATION || e.getResultCode() == ResultCode.INVALID_ATTRIBUTE_SYNTAX) {
+            namingException = new InvalidAttributeValueException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.UNDEFINED_ATTRIBUTE_TYPE) {
+            namingException = new InvalidAttributeIdentifierException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.ATTRIBUTE_OR_VALUE_EXISTS) {
+            namingException = new AttributeInUseException(e.getMessage());
+        } else if (e.getResultCode() == ResultCode.NO_SUCH_ATTRIBUTE) {
+            namingException = new NoSuchAttributeException(e.getMessage());
+        } else if (!ResultCode.isConnectionUsable(e.getResultCode())) {
+            namingException = new CommunicationException(e.getMessage());
+        } else {
+            namingException = new NamingException("[LDAP: error code " + e.getResultCode().intValue() + "] " + e.getMessage());
+        }
+
+        namingException.setRootCause(e);
+        return namingException;
+    }
+
+    static AddRequest toAddRequest(String dn, Map<String, List<String>> attributes, String[] postReadFields) {
+
+        List<Attribute> attributesToAdd = new ArrayList<Attribute>(attributes.size());
+        for (Map.Entry<String, List<String>> e : attributes.entrySet()) {
+            attributesToAdd.add(new Attribute(e.getKey(), e.getValue()));
+        }
+
+        AddRequest addRequest = new AddRequest(dn, attributesToAdd);
+        if (postReadFields != null) {
+            addRequest.addControl(new PostReadRequestControl(false, postReadFields));
+        }
+        return addRequest;
+    }
+
+    static ModifyRequest toModifyRequest(String dn, List<AttributeChange> changes, String[] postReadFields) {
+
+        List<Modification> mods = new ArrayList<Modification>(changes.size());
+        for (AttributeChange change : changes) {
+            mods.add(new Modification(toModificationType(change.getType()), change.getName(),
+                    change.getValues().toArray(new String[change.getValues().size()])));
+        }
+
+        ModifyRequest modifyRequest = new ModifyRequest(dn, mods);
+        if (postReadFields != null) {
+            modifyRequest.addControl(new PostReadRequestControl(false, postReadFields));
+        }
+        return modifyRequest;
+    }
+
+    static LdapEntry getPostReadEntry(LDAPResult result, String dn, String[] postReadFields) {
+
+        try {
+            PostReadResponseControl response = PostReadResponseControl.get(result);
+            return response != null ? toLdapEntry(response.getEntry(), dn, postReadFields) : null;
+        } catch (LDAPException e) {
+            return null;
+        }
+    }
+
+    private static ModificationType toModificationType(AttributeChange.Type type) {
+
+        switch (type) {
+        case ADD:
+            return ModificationType.ADD;
+        case DELETE:
+            return ModificationType.DELETE;
+        default:
+            return ModificationType.REPLACE;
+        }
+    }
+
+    // substitutes {0}, {1}, ... with escaped values the same way JNDI does for filter arguments
+    private static String formatFilter(String filter, Object[] filterArgs) {
+
+        if (filterArgs == null || filterArgs.length == 0) {
+            return filter;
+        }
+
+        StringBuilder formatted = new StringBuilder(filter.length() + 32);
+        int i = 0;
+
+        while (i < filter.length()) {
+            char c = filter.charAt(i);
+            int close = c == '{' ? filter.indexOf('}', i) : -1;
+
+            if (close > i + 1) {
+                int index = Integer.parseInt(filter.substring(i + 1, close));
+                formatted.append(Filter.encodeValue(String.valueOf(filterArgs[index])));
+                i = close + 1;
+            } else {
+                formatted.append(c);
+                i++;
+            }
+        }
+
+        return formatted.toString();
+    }
+}
@@ -0,0 +1,328 @@
+package com.pingidentity.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+
+/**
+ * Runs the writes for each key, such as a user's DN, one at a time and in arrival order, while
+ * writes for different keys run in parallel.
+ *
+ * Each key with writes in flight has its own queue; there is no global lock and no thread of its
+ * own. The caller that finds a queue idle runs the write at its head, then hands over to the
+ * caller of the next queued write, so each caller runs at most one batch. Writes marked as
+ * coalescible that queue up back to back form one batch: only the last of them is run and every
+ * caller in the batch receives its outcome. This suits full replacements such as SCIM PUTs, where
+ * the last write wins anyway and the ones before it need never reach the directory. Should the last
+ * write fail, the others in its batch are run one by one in order, so each caller still gets the
+ * outcome of its own write.
+ *
+ * A caller waits for its turn at most the wait timeout, then takes its write off the queue and
+ * gives up, so a hung write does not hold the callers queued behind it indefinitely.
+ */
+public class WriteLanes<R> implements WriteLanesMBean {
+
+    /**
+     * One write, run on the thread of whichever caller is running the queue at the time.
+     */
+    public interface Write<R> {
+        R run() throws IdentityStoreException;
+    }
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    private volatile long waitTimeoutMillis;
+
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    /**
+     * @param waitTimeoutMillis longest a write waits behind others for the same key, 0 for no limit
+     */
+    public WriteLanes(long waitTimeoutMillis) {
+        setWaitTimeoutMillis(waitTimeoutMillis);
+    }
+
+    /**
+     * Queues a write behind the others for key and returns its outcome, or the outcome of a later
+     * coalescible write that superseded it.
+     */
+    public R submit(String key, boolean coalescible, Write<R> write) throws IdentityStoreException {
+
+        Pending pending = new Pending(coalescible, write);
+        Lane lane = enqueue(key, pending);
+
+        if (lane == null) {
+            lane = lanes.get(key);
+            if (!awaitTurn(lane, pending)) {
+                return pending.get();
+            }
+        }
+
+        runBatch(key, lane);
+
+        return pending.get();
+    }
+
+    public int getActiveLanes() {
+        return lanes.size();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    /**
+     * Changes the wait timeout for writes submitted from now on; queues in use are kept, so writes
+     * for a key stay in order across a change.
+     */
+    public void setWaitTimeoutMillis(long waitTimeoutMillis) {
+        this.waitTimeoutMillis = Math.max(0L, waitTimeoutMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "WriteLanes[active=" + getActiveLanes() + ", writes=" + getWriteCount() + ", coalesced=" + getCoalescedCount() + "]";
+    }
+
+    /**
+     * Adds pending to key's queue. Returns the lane when the caller is to run it, null when it is to
+     * wait for its turn.
+     */
+    private Lane enqueue(String key, Pending pending) {
+
+        while (true) {
+            Lane lane = lanes.get(key);
+
+            if (lane == null) {
+                Lane created = new Lane();
+                lane = lanes.putIfAbsent(key, created);
+                if (lane == null) {
+                    lane = created;
+                }
+            }
+
+            synchronized (lane) {
+                if (lane.retired) {
+                    // emptied and removed since it was looked up
+                    continue;
+                }
+
+                lane.queue.add(pending);
+
+                if (!lane.running) {
+                    lane.running = true;
+                    return lane;
+                }
+
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Runs the batch at the head of the queue, then hands the queue to the caller of the next write
+     * or retires it.
+     */
+    private void runBatch(String key, Lane lane) {
+
+        List<Pending> batch = new ArrayList<Pending>();
+
+        synchronized (lane) {
+            Pending head = lane.queue.poll();
+            batch.add(head);
+
+            if (head.coalescible) {
+                while (!lane.queue.isEmpty() && lane.queue.peek().coalescible) {
+                    batch.add(lane.queue.poll());
+                }
+            }
+        }
+
+        Pending last = batch.get(batch.size() - 1);
+
+        if (run(last) || batch.size() == 1) {
+            coalescedCount.addAndGet(batch.size() - 1);
+            for (Pending pending : batch) {
+                pending.complete(last.result, last.failure);
+            }
+        } else {
+            // the merged write failed, which may be down to its own payload
+            for (Pending pending : batch.subList(0, batch.size() - 1)) {
+                run(pending);
+                pending.complete(pending.result, pending.failure);
+            }
+            last.complete(last.result, last.failure);
+        }
+
+        synchronized (lane) {
+            if (lane.queue.isEmpty()) {
+                lane.running = false;
+                lane.retired = true;
+                lanes.remove(key, lane);
+            } else {
+                lane.queue.peek().promote();
+            }
+        }
+    }
+
+    /**
+     * Runs one write, keeping its outcome on it until it is completed. Returns whether it succeeded.
+     */
+    private boolean run(Pending pending) {
+
+        R result = null;
+        Throwable failure = null;
+
+        try {
+            result = pending.write.run();
+        } catch (IdentityStoreException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Error e) {
+            failure = e;
+        }
+
+        writeCount.incrementAndGet();
+
+        synchronized (pending) {
+            pending.result = result;
+            pending.failure = failure;
+        }
+
+        return failure == null;
+    }
+
+    /**
+     * Waits until pending has been run by another caller, returning false, or until it is this
+     * caller's turn to run the queue, returning true. Once the wait timeout has passed a write still
+     * queued is withdrawn and fails.
+     */
+    private boolean awaitTurn(Lane lane, Pending pending) {
+
+        long timeoutMillis = waitTimeoutMillis;
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0L;
+
+        if (pending.awaitTurn(deadline)) {
+            return pending.isPromoted();
+        }
+
+        synchronized (lane) {
+            if (!pending.isPromoted() && lane.queue.remove(pending)) {
+                timedOutCount.incrementAndGet();
+                pending.complete(null, new IdentityStoreException("Timed out after " + timeoutMillis + " ms waiting for earlier writes to the same user"));
+                return false;
+            }
+        }
+
+        // already taken into a batch or promoted, which is bounded by the directory call's own deadline
+        pending.awaitTurn(0L);
+        return pending.isPromoted();
+    }
+
+    private final class Lane {
+        final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+        boolean running;
+        boolean retired;
+    }
+
+    private final class Pending {
+
+        final boolean coalescible;
+        final Write<R> write;
+
+        private boolean done;
+        private boolean promoted;
+        private R result;
+        private Throwable failure;
+
+        Pending(boolean coalescible, Write<R> write) {
+            this.coalescible = coalescible;
+            this.write = write;
+        }
+
+        synchronized void complete(R result, Throwable failure) {
+            this.result = result;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void promote() {
+            promoted = true;
+            notifyAll();
+        }
+
+        synchronized boolean isPromoted() {
+            return promoted && !done;
+        }
+
+        /**
+         * Waits until this write has been run or it is this caller's turn to run the queue, or until
+         * the deadline, if not 0, has passed. Returns false only on reaching the deadline.
+         */
+        synchronized boolean awaitTurn(long deadline) {
+
+            boolean interrupted = false;
+
+            // an interrupt is kept for later, the caller withdraws the write only at the deadline
+            try {
+                while (!done && !promoted) {
+                    long left = deadline != 0L ? deadline - System.nanoTime() : 0L;
+                    if (deadline != 0L && left <= 0L) {
+                        return false;
+                    }
+                    try {
+                        if (deadline == 0L) {
+                            wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this, left);
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        synchronized R get() throws IdentityStoreException {
+
+            if (failure instanceof IdentityStoreException) {
+                throw (IdentityStoreException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.pingidentity.helper;
+
+/**
+ * JMX view of {@link WriteLanes}.
+ */
+public interface WriteLanesMBean {
+
+    int getActiveLanes();
+
+    long getWriteCount();
+
+    long getCoalescedCount();
+
+    long getTimedOutCount();
+
+    long getWaitTimeoutMillis();
+}
@@ -0,0 +1,392 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.pingidentity.helper.LdapEntry;
+import com.pingidentity.helper.LdapPipeline;
+import com.pingidentity.sdk.provision.exception.ConflictException;
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+import com.pingidentity.sdk.provision.exception.NotFoundException;
+import com.pingidentity.sdk.provision.users.request.CreateUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.DeleteUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.UpdateUserRequestContext;
+import com.pingidentity.sdk.provision.users.response.UserResponseContextImpl;
+
+/**
+ * Runs batches of create, update and delete requests against a configured {@link LdapProvisioner}
+ * with bounded concurrency, for initial loads and other large imports.
+ *
+ * Requests are spread over a fixed number of lanes by the DN of their user, compared as the entry
+ * cache compares DNs. With the UnboundID client each lane holds one pooled connection as an
+ * {@link LdapPipeline} and sends its writes asynchronously, many outstanding at once, while it makes
+ * the checks and reads of the next requests; at most one write per user is outstanding, so the
+ * requests for a user keep their batch order. With JNDI, which waits for each result, a lane runs
+ * its requests one after the other. Every request gets its own {@link Result}; one failing request
+ * does not stop the rest of the batch.
+ */
+public class BulkProvisioner {
+
+    private static final Log log = LogFactory.getLog(BulkProvisioner.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /** Writes outstanding per connection unless given. */
+    public static final int DEFAULT_OUTSTANDING = 32;
+
+    private final LdapProvisioner provisioner;
+    private final int concurrency;
+    private final int outstandingPerConnection;
+    private final ExecutorService executor;
+
+    /**
+     * @param concurrency number of lanes, each with a connection of its own, best kept below the connection pool size
+     */
+    public BulkProvisioner(LdapProvisioner provisioner, int concurrency) {
+        this(provisioner, concurrency, DEFAULT_OUTSTANDING);
+    }
+
+    /**
+     * @param concurrency number of lanes, each with a connection of its own, best kept below the connection pool size
+     * @param outstandingPerConnection writes a lane sends before the first of them is answered
+     */
+    public BulkProvisioner(LdapProvisioner provisioner, int concurrency, int outstandingPerConnection) {
+
+        this.provisioner = provisioner;
+        this.concurrency = Math.max(1, concurrency);
+        this.outstandingPerConnection = Math.max(1, outstandingPerConnection);
+        this.executor = Executors.newFixedThreadPool(this.concurrency, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ldap-bulk-" + THREAD_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Executes a batch and returns one result per operation, in the order of the batch.
+     */
+    public List<Result> execute(final List<Operation> operations) throws InterruptedException {
+
+        final Result[] results = new Result[operations.size()];
+        final String[] keys = new String[results.length];
+
+        // one lane per worker, a user always lands in the same lane
+        List<List<Integer>> lanes = new ArrayList<List<Integer>>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            lanes.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < results.length; i++) {
+            try {
+                keys[i] = operations.get(i).getUserKey(provisioner);
+            } catch (RuntimeException e) {
+                results[i] = new Result(Status.ERROR, null, e.toString());
+                continue;
+            }
+            lanes.get((keys[i].hashCode() & Integer.MAX_VALUE) % concurrency).add(i);
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(concurrency);
+
+        for (final List<Integer> lane : lanes) {
+            if (lane.isEmpty()) {
+                continue;
+            }
+
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    runLane(operations, keys, lane, results);
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // run() reports every failure as a result, so this is unexpected
+                log.error("Bulk lane failed", e.getCause());
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new Result(Status.ERROR, null, "Not executed");
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stops the worker threads. Batches already running are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void runLane(List<Operation> operations, String[] keys, List<Integer> lane, Result[] results) throws InterruptedException {
+
+        LdapPipeline pipeline = null;
+        try {
+            pipeline = provisioner.openPipeline(outstandingPerConnection);
+        } catch (NamingException e) {
+            log.warn("Unable to open a pipeline, sending the writes one at a time: " + e);
+        }
+
+        if (pipeline == null) {
+            for (int index : lane) {
+                results[index] = run(operations.get(index));
+            }
+            return;
+        }
+
+        try {
+            runPipelined(operations, keys, lane, results, pipeline);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Sends the writes of a lane through its pipeline, finishing each request on this thread once its
+     * write is answered. A request waits to be sent while a write for its user is still outstanding.
+     */
+    private void runPipelined(List<Operation> operations, String[] keys, List<Integer> lane, Result[] results,
+            LdapPipeline pipeline) throws InterruptedException {
+
+        BlockingQueue<Sent> answered = new LinkedBlockingQueue<Sent>();
+        Set<String> outstandingUsers = new HashSet<String>();
+
+        for (int index : lane) {
+
+            while (outstandingUsers.contains(keys[index]) || outstandingUsers.size() >= pipeline.getMaxOutstanding()) {
+                finish(answered.take(), results, outstandingUsers);
+            }
+
+            Sent sent;
+            try {
+                sent = new Sent(index, keys[index], operations.get(index).pipelined(provisioner), answered);
+                if (sent.write.send(pipeline, sent)) {
+                    outstandingUsers.add(sent.key);
+                    continue;
+                }
+            } catch (IdentityStoreException e) {
+                results[index] = toResult(e);
+                continue;
+            } catch (RuntimeException e) {
+                results[index] = new Result(Status.ERROR, null, e.toString());
+                continue;
+            }
+
+            // done without a write
+            finish(sent, results, null);
+        }
+
+        while (!outstandingUsers.isEmpty()) {
+            finish(answered.take(), results, outstandingUsers);
+        }
+    }
+
+    private void finish(Sent sent, Result[] results, Set<String> outstandingUsers) {
+
+        if (outstandingUsers != null) {
+            outstandingUsers.remove(sent.key);
+        }
+
+        try {
+            UserResponseContextImpl response = sent.write.finish(sent.entry, sent.failure);
+            results[sent.index] = new Result(Status.SUCCESS, response, null);
+        } catch (IdentityStoreException e) {
+            results[sent.index] = toResult(e);
+        } catch (RuntimeException e) {
+            results[sent.index] = new Result(Status.ERROR, null, e.toString());
+        }
+    }
+
+    private static Result toResult(IdentityStoreException e) {
+
+        if (e instanceof ConflictException) {
+            return new Result(Status.CONFLICT, null, e.getMessage());
+        }
+        if (e instanceof NotFoundException) {
+            return new Result(Status.NOT_FOUND, null, e.getMessage());
+        }
+        return new Result(Status.ERROR, null, e.getMessage());
+    }
+
+    private Result run(Operation operation) {
+
+        try {
+            switch (operation.type) {
+            case CREATE:
+                return new Result(Status.SUCCESS, provisioner.createUser(operation.createRequest), null);
+            case UPDATE:
+                return new Result(Status.SUCCESS, provisioner.updateUser(operation.updateRequest), null);
+            default:
+                provisioner.deleteUser(operation.deleteRequest);
+                return new Result(Status.SUCCESS, null, null);
+            }
+        } catch (IdentityStoreException e) {
+            return toResult(e);
+        } catch (RuntimeException e) {
+            return new Result(Status.ERROR, null, e.toString());
+        }
+    }
+
+    /**
+     * Outcome of a single request in a batch.
+     */
+    public enum Status {
+        SUCCESS,
+        CONFLICT,
+        NOT_FOUND,
+        ERROR
+    }
+
+    /**
+     * A create, update or delete request in a batch.
+     */
+    public static class Operation {
+
+        private enum Type { CREATE, UPDATE, DELETE }
+
+        private final Type type;
+        private final CreateUserRequestContext createRequest;
+        private final UpdateUserRequestContext updateRequest;
+        private final DeleteUserRequestContext deleteRequest;
+
+        private Operation(Type type, CreateUserRequestContext createRequest, UpdateUserRequestContext updateRequest,
+                DeleteUserRequestContext deleteRequest) {
+            this.type = type;
+            this.createRequest = createRequest;
+            this.updateRequest = updateRequest;
+            this.deleteRequest = deleteRequest;
+        }
+
+        public static Operation create(CreateUserRequestContext request) {
+            return new Operation(Type.CREATE, request, null, null);
+        }
+
+        public static Operation update(UpdateUserRequestContext request) {
+            return new Operation(Type.UPDATE, null, request, null);
+        }
+
+        public static Operation delete(DeleteUserRequestContext request) {
+            return new Operation(Type.DELETE, null, null, request);
+        }
+
+        // the DN of the user the request is about, for keeping requests on one user in order
+        String getUserKey(LdapProvisioner provisioner) {
+
+            String id;
+            switch (type) {
+            case CREATE:
+                id = createRequest.getUserAttributes().getSingleValue(LdapProvisioner.USERNAME);
+                break;
+            case UPDATE:
+                id = updateRequest.getUserId();
+                break;
+            default:
+                id = deleteRequest.getUserId();
+            }
+
+            if (id == null) {
+                throw new IllegalArgumentException("No user id in the " + type.name().toLowerCase(Locale.ENGLISH) + " request");
+            }
+            return provisioner.writeLaneKey(id);
+        }
+
+        LdapProvisioner.PipelinedWrite pipelined(LdapProvisioner provisioner) {
+            switch (type) {
+            case CREATE:
+                return provisioner.pipelinedCreate(createRequest);
+            case UPDATE:
+                return provisioner.pipelinedUpdate(updateRequest);
+            default:
+                return provisioner.pipelinedDelete(deleteRequest);
+            }
+        }
+    }
+
+    /**
+     * A request whose write is in the pipeline, handed back to its lane once answered.
+     */
+    private static final class Sent implements LdapPipeline.Listener {
+
+        final int index;
+        final String key;
+        final LdapProvisioner.PipelinedWrite write;
+        private final BlockingQueue<Sent> answered;
+
+        LdapEntry entry;
+        NamingException failure;
+
+        Sent(int index, String key, LdapProvisioner.PipelinedWrite write, BlockingQueue<Sent> answered) {
+            this.index = index;
+            this.key = key;
+            this.write = write;
+            this.answered = answered;
+        }
+
+        public void completed(LdapEntry entry, NamingException failure, long elapsedNanos) {
+            this.entry = entry;
+            this.failure = failure;
+            answered.add(this);
+        }
+    }
+
+    /**
+     * Result of one request: its status, the user as stored for a successful create or update, and
+     * the error message otherwise.
+     */
+    public static class Result {
+
+        private final Status status;
+        private final UserResponseContextImpl response;
+        private final String message;
+
+        Result(Status status, UserResponseContextImpl response, String message) {
+            this.status = status;
+            this.response = response;
+            this.message = message;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public UserResponseContextImpl getResponse() {
+            return response;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return message != null ? status + ": " + message : status.toString();
+        }
+    }
+}
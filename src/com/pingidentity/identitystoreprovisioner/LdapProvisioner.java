@@ -16,11 +16,18 @@
  **************************************************************************/
 package com.pingidentity.identitystoreprovisioner;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,12 +37,12 @@ import org.sourceid.saml20.adapter.conf.Configuration;
 import org.sourceid.saml20.adapter.gui.RadioGroupFieldDescriptor;
 import org.sourceid.saml20.adapter.gui.LdapDatastoreFieldDescriptor;
 import org.sourceid.saml20.adapter.gui.TextFieldDescriptor;
+import org.sourceid.saml20.adapter.gui.validation.impl.IntegerValidator;
 import org.sourceid.util.log.AttributeMap;
 
 import com.pingidentity.sdk.GuiConfigDescriptor;
 import com.pingidentity.sdk.IdentityStoreProvisionerDescriptor;
 import com.pingidentity.sdk.PluginDescriptor;
-import com.pingidentity.sdk.provision.Constants;
 import com.pingidentity.sdk.provision.IdentityStoreUserProvisioner;
 import com.pingidentity.sdk.provision.exception.BadRequestException;
 import com.pingidentity.sdk.provision.exception.ConflictException;
@@ -49,7 +56,35 @@ import com.pingidentity.sdk.provision.users.response.UserResponseContextImpl;
 
 import com.pingidentity.access.DataSourceAccessor;
 import org.sourceid.saml20.domain.datasource.info.LdapInfo;
+import com.pingidentity.helper.AdaptiveLimiter;
+import com.pingidentity.helper.AttributeMappingPlan;
+import com.pingidentity.helper.CacheInvalidator;
+import com.pingidentity.helper.CircuitBreaker;
+import com.pingidentity.helper.DirectoryCapabilities;
+import com.pingidentity.helper.DirectoryCapabilityMonitor;
+import com.pingidentity.helper.DirectoryChangeListener;
+import com.pingidentity.helper.EntryCache;
+import com.pingidentity.helper.ExecutorLdapBackend;
+import com.pingidentity.helper.GuardedLdapBackend;
+import com.pingidentity.helper.InstrumentedLdapBackend;
+import com.pingidentity.helper.JndiLdapBackend;
+import com.pingidentity.helper.LdapBackend;
+import com.pingidentity.helper.LdapEntry;
+import com.pingidentity.helper.LdapEntryHandler;
+import com.pingidentity.helper.LdapExecutor;
+import com.pingidentity.helper.LdapFilter;
 import com.pingidentity.helper.LdapHelper;
+import com.pingidentity.helper.LdapPipeline;
+import com.pingidentity.helper.LdapTls;
+import com.pingidentity.helper.LdapMetrics;
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.helper.LdapServerSet;
+import com.pingidentity.helper.NegativeLookupCache;
+import com.pingidentity.helper.RecentWrites;
+import com.pingidentity.helper.RequestLogger;
+import com.pingidentity.helper.TlsSocketFactory;
+import com.pingidentity.helper.UnboundIdLdapBackend;
+import com.pingidentity.helper.WriteLanes;
 
 import com.unboundid.util.StaticUtils;
 
@@ -72,6 +107,120 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
     private static final String RADIO_BUTTON_NAME = "Delete user behavior";
     private static final String RADIO_BUTTON_DESCRIPTION = "Select whether a user should be disabled or permanently deleted when a delete request is sent to the plugin";
 
+    private static final String BACKEND_NAME = "LDAP client";
+    private static final String BACKEND_DESCRIPTION = "Select the LDAP client library used to talk to the data store.";
+
+    // Constants for LDAP client radio options
+    private static final String BACKEND_JNDI = "JNDI";
+    private static final String BACKEND_UNBOUNDID = "UnboundID LDAP SDK";
+
+    private static final String LOAD_BALANCING_NAME = "Read load balancing";
+    private static final String LOAD_BALANCING_DESCRIPTION = "Select how reads are spread across the servers of the data store. Writes always go to the first server that is available, in the order the servers are listed.";
+
+    // Constants for load balancing radio options
+    private static final String LOAD_BALANCING_FAILOVER = "Failover";
+    private static final String LOAD_BALANCING_ROUND_ROBIN = "Round robin";
+    private static final String LOAD_BALANCING_FEWEST_CONNECTIONS = "Fewest connections";
+
+    private static final String TLS_MODE_NAME = "Transport security";
+    private static final String TLS_MODE_DESCRIPTION = "Select whether servers listed with ldap:// URLs are connected to in the clear or secured with StartTLS before binding. Servers listed with ldaps:// URLs always use TLS.";
+
+    // Constants for transport security radio options
+    private static final String TLS_PER_URL = "As in data store URLs";
+    private static final String TLS_START_TLS = "StartTLS";
+
+    private static final String TLS_PROTOCOLS_NAME = "TLS protocols";
+    private static final String TLS_PROTOCOLS_DESCRIPTION = "Comma separated TLS protocol versions to offer, such as TLSv1.3, TLSv1.2 (empty for the JVM defaults).";
+
+    private static final String TLS_CIPHERS_NAME = "TLS cipher suites";
+    private static final String TLS_CIPHERS_DESCRIPTION = "Comma separated TLS cipher suites to offer (empty for the JVM defaults).";
+
+    private static final String TLS_SESSION_LIFETIME_NAME = "TLS session lifetime";
+    private static final String TLS_SESSION_LIFETIME_DESCRIPTION = "Time in seconds a TLS session is kept so new connections to the same server can resume it instead of repeating the full handshake (0 to do a full handshake on every connection).";
+
+    private static final String CONNECT_TIMEOUT_NAME = "Connect timeout";
+    private static final String CONNECT_TIMEOUT_DESCRIPTION = "Time in milliseconds to wait for a connection to a server before trying the next one (0 to wait indefinitely).";
+
+    private static final String READ_AFTER_WRITE_NAME = "Read-after-write window";
+    private static final String READ_AFTER_WRITE_DESCRIPTION = "Time in seconds during which reads of a user written by this node go to the server that took the write rather than a replica that may not have it yet (0 to disable).";
+
+    private static final String MAX_CONCURRENCY_NAME = "Maximum concurrent LDAP operations";
+    private static final String MAX_CONCURRENCY_DESCRIPTION = "Directory calls beyond this number fail at once as unavailable instead of all reaching the directory at once; a call that timed out keeps its slot until the directory answers it (0 for no limit). Setting this or the operation timeout runs directory calls on virtual threads where the JVM supports them.";
+
+    private static final String OPERATION_TIMEOUT_NAME = "LDAP operation timeout";
+    private static final String OPERATION_TIMEOUT_DESCRIPTION = "Time in milliseconds a directory call may take before the request fails (0 for no limit).";
+
+    private static final String BREAKER_THRESHOLD_NAME = "Circuit breaker threshold";
+    private static final String BREAKER_THRESHOLD_DESCRIPTION = "Number of consecutive directory calls failing because the directory is unreachable, overloaded or too slow after which calls are rejected at once for a while (0 to disable).";
+
+    private static final String BREAKER_OPEN_NAME = "Circuit breaker open time";
+    private static final String BREAKER_OPEN_DESCRIPTION = "Time in seconds calls are rejected once the circuit breaker opens, before a single probe call checks whether the directory has recovered.";
+
+    private static final String ADAPTIVE_LIMIT_NAME = "Adaptive concurrency limit";
+    private static final String ADAPTIVE_LIMIT_DESCRIPTION = "Upper bound of an adaptive limit on concurrent directory calls. The limit shrinks when calls slow down or fail and grows back while the directory keeps up; calls above it are rejected (0 to disable).";
+
+    private static final String ADAPTIVE_FLOOR_NAME = "Adaptive concurrency floor";
+    private static final String ADAPTIVE_FLOOR_DESCRIPTION = "Lowest value the adaptive concurrency limit shrinks to, so that some calls always get through to a slow directory.";
+
+    private static final String POOL_SIZE_NAME = "Connection pool size";
+    private static final String POOL_SIZE_DESCRIPTION = "Maximum number of LDAP connections held open to the data store.";
+
+    private static final String POOL_MIN_IDLE_NAME = "Minimum idle connections";
+    private static final String POOL_MIN_IDLE_DESCRIPTION = "Number of idle LDAP connections kept open and ready for use.";
+
+    private static final String POOL_MAX_IDLE_NAME = "Maximum idle connections";
+    private static final String POOL_MAX_IDLE_DESCRIPTION = "Idle LDAP connections above this number are closed.";
+
+    private static final String POOL_MAX_AGE_NAME = "Maximum connection age";
+    private static final String POOL_MAX_AGE_DESCRIPTION = "Time in seconds after which an LDAP connection is closed and replaced (0 to disable).";
+
+    private static final String LOOKUP_MODE_NAME = "User lookup";
+    private static final String LOOKUP_MODE_DESCRIPTION = "Select whether users are read directly by DN (cn=<id> under the container) or searched for anywhere below the container, for directories where users live in nested OUs.";
+
+    // Constants for user lookup radio options
+    private static final String LOOKUP_BY_DN = "Read by DN";
+    private static final String LOOKUP_BY_SEARCH = "Search container";
+
+    private static final String CACHE_SIZE_NAME = "Entry cache size";
+    private static final String CACHE_SIZE_DESCRIPTION = "Maximum number of user entries cached in memory for reads (0 to disable the cache).";
+
+    private static final String CACHE_TTL_NAME = "Entry cache lifetime";
+    private static final String CACHE_TTL_DESCRIPTION = "Time in seconds a cached user entry is used before it is read from the directory again.";
+
+    private static final String NEGATIVE_CACHE_SIZE_NAME = "Not-found cache size";
+    private static final String NEGATIVE_CACHE_SIZE_DESCRIPTION = "Number of slots used to remember user ids recently found not to exist (0 to disable).";
+
+    private static final String NEGATIVE_CACHE_WINDOW_NAME = "Not-found cache lifetime";
+    private static final String NEGATIVE_CACHE_WINDOW_DESCRIPTION = "Time in seconds a user id found not to exist is answered without asking the directory again.";
+
+    private static final String CHANGE_LISTENER_NAME = "Directory change listener";
+    private static final String CHANGE_LISTENER_DESCRIPTION = "Select whether to watch the container for changes made by other nodes or applications, so cached entries are dropped within seconds instead of at the end of their lifetime. Automatic uses content synchronization (RFC 4533) where the directory supports it and persistent search otherwise; content synchronization first lists the DN of every entry in the container on each node at every start. Only used when a cache is enabled.";
+
+    // Constants for change listener radio options
+    private static final String CHANGE_LISTENER_DISABLED = "Disabled";
+    private static final String CHANGE_LISTENER_AUTO = "Automatic";
+    private static final String CHANGE_LISTENER_SYNC = "Content synchronization";
+    private static final String CHANGE_LISTENER_PSEARCH = "Persistent search";
+
+    private static final String CAPABILITY_REFRESH_NAME = "Capability refresh interval";
+    private static final String CAPABILITY_REFRESH_DESCRIPTION = "Time in minutes after which the supported controls and the schema are read from the directory again (0 to read them only once after the configuration is saved; a failed read is retried until it succeeds). Attributes the schema does not define are rejected without a directory call.";
+
+    private static final String PAGE_SIZE_NAME = "Listing page size";
+    private static final String PAGE_SIZE_DESCRIPTION = "Number of users fetched from the directory per page when users are listed for reconciliation.";
+
+    private static final String LOG_SAMPLE_RATE_NAME = "Request log sampling";
+    private static final String LOG_SAMPLE_RATE_DESCRIPTION = "Log a summary line for one in this many successful requests (default 100; 1 logs every request, 0 logs failed requests only). Failed requests are always logged.";
+
+    private static final String LOG_TOKEN_KEY_NAME = "Request log key";
+    private static final String LOG_TOKEN_KEY_DESCRIPTION = "Secret the user ids in the request log are hashed with, so the lines of one user can be correlated without the id being recoverable from the log. Use the same key on every node to correlate across the cluster; leave empty to use a random key that changes at every start.";
+
+    private static final String CREATE_MODE_NAME = "Create behavior";
+    private static final String CREATE_MODE_DESCRIPTION = "Select whether to look for an existing user before every create, or to attempt the create directly and only look up the existing user when the directory reports that it already exists.";
+
+    // Constants for create radio options
+    private static final String CREATE_CHECK_FIRST = "Check for existing user";
+    private static final String CREATE_OPTIMISTIC = "Optimistic create";
+
     // Base Dn to provision to
     // AttributeName to use for OU?
     // Attribute list ? (get from context?)
@@ -84,21 +233,79 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
     private static final String ACTIVE = "accountActive";
 
     // The username is a required core contract attribute that must be fulfilled at runtime.
-    private static final String USERNAME = "username";
+    static final String USERNAME = "username";
+
+    // Matches the entries createUser adds.
+    private static final LdapFilter USER_FILTER = new LdapFilter("(objectClass=inetOrgPerson)", null);
 
     // Static "User not found" exception message.
     private static final String USER_NOT_FOUND = "User not found";
 
+    // Numbers the provisioner instances in this JVM so each gets its own set of MBeans.
+    private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+
     // The PluginDescriptor that defines this plugin.
     private final PluginDescriptor descriptor;
 
     // Runtime value of the delete/disable radio option in the plugin Admin UI.
     private boolean permanentlyDeleteUser;
 
+    // Runtime value of the user lookup radio option; false reads users directly by DN.
+    private boolean searchForUsers;
+
+    // Runtime value of the create radio option; true skips the conflict search before each add.
+    private boolean optimisticCreate;
+
     private LdapHelper ldapHelper;
+
+    // The client-specific backend under the decorators LdapHelper talks to.
+    private LdapBackend ldapBackend;
+
+    // Runs directory calls off the request thread, null when disabled.
+    private LdapExecutor ldapExecutor;
+
+    // Protection against a failing or overloaded directory, each null when disabled.
+    private CircuitBreaker circuitBreaker;
+    private AdaptiveLimiter adaptiveLimiter;
+
+    // Latency and result counters for SCIM requests and the directory calls they make, published over JMX.
+    private final LdapMetrics metrics = new LdapMetrics();
+    private final String instanceName = "provisioner-" + INSTANCE_COUNT.incrementAndGet();
+
+    // One summary line per request in place of per-attribute logging.
+    private final RequestLogger requestLogger = new RequestLogger();
+
+    // Cache of user entries read or written by this node, null when disabled.
+    private EntryCache entryCache;
+
+    // Recently missed user DNs, null when disabled.
+    private NegativeLookupCache notFoundCache;
+
+    // Drops cached entries changed in the directory by anyone else, null when disabled.
+    private DirectoryChangeListener changeListener;
+
+    // Shared TLS context and session cache of the LDAPS or StartTLS connections, null without TLS.
+    private LdapTls tls;
+
+    // Probes the supported controls and the schema at configure time and then in the background.
+    private DirectoryCapabilityMonitor capabilityMonitor;
+
+    // Runtime value of the listing page size.
+    private int pageSize;
+
+    // Orders the updates and deletes of each user, merging updates that queue up behind each other.
+    private final WriteLanes<UserResponseContextImpl> userWriteLanes = new WriteLanes<UserResponseContextImpl>(0L);
+
+    // DN of each user written within the read-after-write window, kept in search mode only.
+    private RecentWrites<String> recentlyWrittenDns;
     private String BaseDn;
     private String[] ldapAttributeList;
 
+    // ldapAttributeList plus the active flag, so the active check needs no extra round trip
+    private String[] userFetchAttributeList;
+    private boolean returnActiveAttribute;
+    private AttributeMappingPlan mappingPlan = AttributeMappingPlan.DEFAULT;
+
     /**
      * Creates a new sample identity store provisioner and initialize its GUI descriptor.
      */
@@ -134,6 +341,76 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
         // Add the field to the gui descriptor object.
         guiDescriptor.addField(disableOrDeleteRadioButtonDescriptor);
 
+        // Define a radio option for how existing users are located.
+        String[] lookupOptions = {LOOKUP_BY_DN, LOOKUP_BY_SEARCH};
+        RadioGroupFieldDescriptor lookupModeDescriptor = new RadioGroupFieldDescriptor(LOOKUP_MODE_NAME, LOOKUP_MODE_DESCRIPTION, lookupOptions);
+        lookupModeDescriptor.setDefaultValue(LOOKUP_BY_DN);
+        guiDescriptor.addField(lookupModeDescriptor);
+
+        // Define a radio option for conflict detection on create.
+        String[] createOptions = {CREATE_CHECK_FIRST, CREATE_OPTIMISTIC};
+        RadioGroupFieldDescriptor createModeDescriptor = new RadioGroupFieldDescriptor(CREATE_MODE_NAME, CREATE_MODE_DESCRIPTION, createOptions);
+        createModeDescriptor.setDefaultValue(CREATE_CHECK_FIRST);
+        guiDescriptor.addField(createModeDescriptor);
+
+        // Define a radio option for the LDAP client library.
+        String[] backendOptions = {BACKEND_JNDI, BACKEND_UNBOUNDID};
+        RadioGroupFieldDescriptor backendDescriptor = new RadioGroupFieldDescriptor(BACKEND_NAME, BACKEND_DESCRIPTION, backendOptions);
+        backendDescriptor.setDefaultValue(BACKEND_JNDI);
+        guiDescriptor.addAdvancedField(backendDescriptor);
+
+        // Define a radio option for spreading reads across servers.
+        String[] loadBalancingOptions = {LOAD_BALANCING_FAILOVER, LOAD_BALANCING_ROUND_ROBIN, LOAD_BALANCING_FEWEST_CONNECTIONS};
+        RadioGroupFieldDescriptor loadBalancingDescriptor = new RadioGroupFieldDescriptor(LOAD_BALANCING_NAME, LOAD_BALANCING_DESCRIPTION, loadBalancingOptions);
+        loadBalancingDescriptor.setDefaultValue(LOAD_BALANCING_FAILOVER);
+        guiDescriptor.addAdvancedField(loadBalancingDescriptor);
+        guiDescriptor.addAdvancedField(integerField(CONNECT_TIMEOUT_NAME, CONNECT_TIMEOUT_DESCRIPTION, "3000", 0, Integer.MAX_VALUE));
+
+        // Define a radio option for securing ldap:// connections, and the TLS tuning.
+        String[] tlsModeOptions = {TLS_PER_URL, TLS_START_TLS};
+        RadioGroupFieldDescriptor tlsModeDescriptor = new RadioGroupFieldDescriptor(TLS_MODE_NAME, TLS_MODE_DESCRIPTION, tlsModeOptions);
+        tlsModeDescriptor.setDefaultValue(TLS_PER_URL);
+        guiDescriptor.addAdvancedField(tlsModeDescriptor);
+        guiDescriptor.addAdvancedField(new TextFieldDescriptor(TLS_PROTOCOLS_NAME, TLS_PROTOCOLS_DESCRIPTION));
+        guiDescriptor.addAdvancedField(new TextFieldDescriptor(TLS_CIPHERS_NAME, TLS_CIPHERS_DESCRIPTION));
+        guiDescriptor.addAdvancedField(integerField(TLS_SESSION_LIFETIME_NAME, TLS_SESSION_LIFETIME_DESCRIPTION, "3600", 0, Integer.MAX_VALUE));
+
+        guiDescriptor.addAdvancedField(integerField(READ_AFTER_WRITE_NAME, READ_AFTER_WRITE_DESCRIPTION, "5", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(MAX_CONCURRENCY_NAME, MAX_CONCURRENCY_DESCRIPTION, "0", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(OPERATION_TIMEOUT_NAME, OPERATION_TIMEOUT_DESCRIPTION, "0", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(BREAKER_THRESHOLD_NAME, BREAKER_THRESHOLD_DESCRIPTION, "5", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(BREAKER_OPEN_NAME, BREAKER_OPEN_DESCRIPTION, "10", 1, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(ADAPTIVE_LIMIT_NAME, ADAPTIVE_LIMIT_DESCRIPTION, "0", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(ADAPTIVE_FLOOR_NAME, ADAPTIVE_FLOOR_DESCRIPTION, "4", 1, Integer.MAX_VALUE));
+
+        // Connection pool tuning
+        guiDescriptor.addAdvancedField(integerField(POOL_SIZE_NAME, POOL_SIZE_DESCRIPTION, "10", 1, 1000));
+        guiDescriptor.addAdvancedField(integerField(POOL_MIN_IDLE_NAME, POOL_MIN_IDLE_DESCRIPTION, "1", 0, 1000));
+        guiDescriptor.addAdvancedField(integerField(POOL_MAX_IDLE_NAME, POOL_MAX_IDLE_DESCRIPTION, "5", 0, 1000));
+        guiDescriptor.addAdvancedField(integerField(POOL_MAX_AGE_NAME, POOL_MAX_AGE_DESCRIPTION, "1800", 0, Integer.MAX_VALUE));
+
+        // Entry cache tuning
+        guiDescriptor.addAdvancedField(integerField(CACHE_SIZE_NAME, CACHE_SIZE_DESCRIPTION, "0", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(CACHE_TTL_NAME, CACHE_TTL_DESCRIPTION, "60", 1, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(NEGATIVE_CACHE_SIZE_NAME, NEGATIVE_CACHE_SIZE_DESCRIPTION, "0", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(integerField(NEGATIVE_CACHE_WINDOW_NAME, NEGATIVE_CACHE_WINDOW_DESCRIPTION, "5", 1, Integer.MAX_VALUE));
+
+        // Define a radio option for keeping the caches coherent with the directory.
+        String[] changeListenerOptions = {CHANGE_LISTENER_DISABLED, CHANGE_LISTENER_AUTO, CHANGE_LISTENER_SYNC, CHANGE_LISTENER_PSEARCH};
+        RadioGroupFieldDescriptor changeListenerDescriptor = new RadioGroupFieldDescriptor(CHANGE_LISTENER_NAME, CHANGE_LISTENER_DESCRIPTION, changeListenerOptions);
+        changeListenerDescriptor.setDefaultValue(CHANGE_LISTENER_DISABLED);
+        guiDescriptor.addAdvancedField(changeListenerDescriptor);
+
+        // Capability discovery
+        guiDescriptor.addAdvancedField(integerField(CAPABILITY_REFRESH_NAME, CAPABILITY_REFRESH_DESCRIPTION, "15", 0, Integer.MAX_VALUE));
+
+        // Listing
+        guiDescriptor.addAdvancedField(integerField(PAGE_SIZE_NAME, PAGE_SIZE_DESCRIPTION, "500", 1, 100000));
+
+        // Logging
+        guiDescriptor.addAdvancedField(integerField(LOG_SAMPLE_RATE_NAME, LOG_SAMPLE_RATE_DESCRIPTION, "100", 0, Integer.MAX_VALUE));
+        guiDescriptor.addAdvancedField(new TextFieldDescriptor(LOG_TOKEN_KEY_NAME, LOG_TOKEN_KEY_DESCRIPTION, true));
+
         // Load the guiDescriptor into the PluginDescriptor.
         descriptor = new IdentityStoreProvisionerDescriptor(PLUGIN_TYPE, this, guiDescriptor, new HashSet<String>(),
                                                             PLUGIN_VERSION);
@@ -152,7 +429,91 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
     	String ldapDatastoreValue = configuration.getFieldValue(LDAP_DATA_STORE_NAME);
     	DataSourceAccessor dataSourceAccessor = new DataSourceAccessor();
     	LdapInfo ldapConnectionInfo = dataSourceAccessor.getLdapInfo(ldapDatastoreValue);
-    	ldapHelper = new LdapHelper(ldapConnectionInfo);
+
+    	configure(configuration, ldapConnectionInfo.getServerUrl(), ldapConnectionInfo.getPrincipal(), ldapConnectionInfo.getCredentials());
+    }
+
+    /**
+     * Configures the provisioner against the given space separated server URLs and bind credentials
+     * instead of the selected LDAP data store, such as a directory run in process for load tests.
+     * Every other setting applies as it does for the data store.
+     */
+    public void configure(Configuration configuration, String serverUrl, String principal, String credentials)
+    {
+    	LdapPoolSettings poolSettings = new LdapPoolSettings();
+    	poolSettings.setMaxSize(configuration.getIntFieldValue(POOL_SIZE_NAME));
+    	poolSettings.setMinIdle(configuration.getIntFieldValue(POOL_MIN_IDLE_NAME));
+    	poolSettings.setMaxIdle(configuration.getIntFieldValue(POOL_MAX_IDLE_NAME));
+    	poolSettings.setMaxConnectionAgeMillis(configuration.getIntFieldValue(POOL_MAX_AGE_NAME) * 1000L);
+    	poolSettings.setConnectTimeoutMillis(configuration.getIntFieldValue(CONNECT_TIMEOUT_NAME));
+    	poolSettings.setLoadBalancing(toStrategy(configuration.getFieldValue(LOAD_BALANCING_NAME)));
+    	poolSettings.setReadAfterWriteWindowMillis(configuration.getIntFieldValue(READ_AFTER_WRITE_NAME) * 1000L);
+    	poolSettings.setTls(createTls(configuration, serverUrl));
+
+    	closeBackend();
+    	ldapBackend = createBackend(configuration.getFieldValue(BACKEND_NAME), serverUrl, principal, credentials, poolSettings);
+    	configureRequests(configuration, poolSettings);
+
+        changeListener = createChangeListener(configuration.getFieldValue(CHANGE_LISTENER_NAME), serverUrl, principal, credentials, poolSettings);
+
+        registerMBeans(ldapBackend);
+    }
+
+    /**
+     * Configures the provisioner on top of the given backend instead of the selected LDAP data store,
+     * for example an in-memory directory for offline load tests. The connection, pool and transport
+     * security settings do not apply, and no directory change listener is started.
+     */
+    public void configure(Configuration configuration, LdapBackend backend)
+    {
+    	LdapPoolSettings poolSettings = new LdapPoolSettings();
+    	poolSettings.setReadAfterWriteWindowMillis(configuration.getIntFieldValue(READ_AFTER_WRITE_NAME) * 1000L);
+    	tls = null;
+
+    	closeBackend();
+    	ldapBackend = backend;
+    	configureRequests(configuration, poolSettings);
+
+        registerMBeans(ldapBackend);
+    }
+
+    // releases the connections and listener of a previous configuration
+    private void closeBackend()
+    {
+    	if (capabilityMonitor != null) {
+    		capabilityMonitor.close();
+    	}
+    	if (ldapHelper != null) {
+    		ldapHelper.close();
+    	}
+        if (changeListener != null) {
+        	changeListener.close();
+        	changeListener = null;
+        }
+    }
+
+    // everything below the backend: decorators, request handling options, caches and attribute mapping
+    private void configureRequests(Configuration configuration, LdapPoolSettings poolSettings)
+    {
+    	// optionally move directory calls off the request thread, behind a concurrency gate and deadline
+    	int maxConcurrency = configuration.getIntFieldValue(MAX_CONCURRENCY_NAME);
+    	long operationTimeout = configuration.getIntFieldValue(OPERATION_TIMEOUT_NAME);
+    	ldapExecutor = maxConcurrency > 0 || operationTimeout > 0 ? new LdapExecutor(maxConcurrency, operationTimeout) : null;
+
+    	LdapBackend backend = ldapExecutor != null ? new ExecutorLdapBackend(ldapBackend, ldapExecutor) : ldapBackend;
+    	// writes queued behind others for the same user give up on the same deadline
+    	userWriteLanes.setWaitTimeoutMillis(operationTimeout);
+
+    	// fail fast while the directory is down or overloaded
+    	int breakerThreshold = configuration.getIntFieldValue(BREAKER_THRESHOLD_NAME);
+    	int adaptiveLimit = configuration.getIntFieldValue(ADAPTIVE_LIMIT_NAME);
+    	circuitBreaker = breakerThreshold > 0 ? new CircuitBreaker(breakerThreshold, configuration.getIntFieldValue(BREAKER_OPEN_NAME) * 1000L) : null;
+    	adaptiveLimiter = adaptiveLimit > 0 ? new AdaptiveLimiter(configuration.getIntFieldValue(ADAPTIVE_FLOOR_NAME), adaptiveLimit) : null;
+    	if (circuitBreaker != null || adaptiveLimiter != null) {
+    		backend = new GuardedLdapBackend(backend, circuitBreaker, adaptiveLimiter);
+    	}
+
+    	ldapHelper = new LdapHelper(new InstrumentedLdapBackend(backend, metrics));
     	
         // Use the RadioGroupFieldDescriptor name to get the correct fieldValue.
         String fieldValue = configuration.getFieldValue(RADIO_BUTTON_NAME);
@@ -161,6 +522,25 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
         // Register the user's selection from the Identity Store Admin UI so it can be used at runtime.
         permanentlyDeleteUser = DELETE_USER.equals(fieldValue);
 
+        searchForUsers = LOOKUP_BY_SEARCH.equals(configuration.getFieldValue(LOOKUP_MODE_NAME));
+
+        recentlyWrittenDns = searchForUsers && poolSettings.getReadAfterWriteWindowMillis() > 0
+                ? new RecentWrites<String>(poolSettings.getReadAfterWriteMaxEntries(), poolSettings.getReadAfterWriteWindowMillis())
+                : null;
+
+        optimisticCreate = CREATE_OPTIMISTIC.equals(configuration.getFieldValue(CREATE_MODE_NAME));
+
+        requestLogger.setSampleRate(configuration.getIntFieldValue(LOG_SAMPLE_RATE_NAME));
+        requestLogger.setTokenKey(configuration.getFieldValue(LOG_TOKEN_KEY_NAME));
+
+        pageSize = configuration.getIntFieldValue(PAGE_SIZE_NAME);
+
+        int cacheSize = configuration.getIntFieldValue(CACHE_SIZE_NAME);
+        entryCache = cacheSize > 0 ? new EntryCache(cacheSize, configuration.getIntFieldValue(CACHE_TTL_NAME) * 1000L) : null;
+
+        int notFoundCacheSize = configuration.getIntFieldValue(NEGATIVE_CACHE_SIZE_NAME);
+        notFoundCache = notFoundCacheSize > 0 ? new NegativeLookupCache(notFoundCacheSize, configuration.getIntFieldValue(NEGATIVE_CACHE_WINDOW_NAME) * 1000L) : null;
+
         ArrayList<String> attribList = new ArrayList<String>();
         
         for (String attr : configuration.getAdditionalAttrNames()) {
@@ -174,6 +554,31 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
         
         ldapAttributeList = new String[attribList.size()];
         ldapAttributeList = attribList.toArray(ldapAttributeList);
+
+        // only hand the active flag back to the client when it is part of the contract
+        returnActiveAttribute = attribList.contains(ACTIVE);
+        if (!returnActiveAttribute) { attribList.add(ACTIVE); };
+
+        userFetchAttributeList = attribList.toArray(new String[attribList.size()]);
+
+        AttributeMappingPlan.Builder plan = AttributeMappingPlan.builder();
+        for (String attr : configuration.getAdditionalAttrNames()) {
+        	plan.passthrough(attr);
+        }
+        if (!returnActiveAttribute) { plan.skipOnRead(ACTIVE); };
+
+        mappingPlan = plan.build();
+        ldapHelper.setMappingPlan(mappingPlan);
+        log.debug("Attribute mapping: " + mappingPlan);
+
+        capabilityMonitor = new DirectoryCapabilityMonitor(ldapHelper, configuration.getIntFieldValue(CAPABILITY_REFRESH_NAME) * 60000L);
+        // read in the background; the schema check waits for the first successful read
+        final Collection<String> attributeNames = new ArrayList<String>(configuration.getAdditionalAttrNames());
+        capabilityMonitor.start(new Runnable() {
+            public void run() {
+                checkSchema(attributeNames);
+            }
+        });
     }
 
     @Override
@@ -184,24 +589,87 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
 
     @Override
     public UserResponseContextImpl createUser(CreateUserRequestContext createRequestCtx) throws IdentityStoreException
+    {
+        long start = metrics.beginRequest();
+        String result = LdapMetrics.SUCCESS;
+
+        try {
+            return doCreateUser(createRequestCtx);
+        } catch (IdentityStoreException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } catch (RuntimeException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            endRequest("createUser", createRequestCtx.getUserAttributes().getSingleValue(USERNAME), createRequestCtx.getEntityId(), start, result);
+        }
+    }
+
+    private UserResponseContextImpl doCreateUser(CreateUserRequestContext createRequestCtx) throws IdentityStoreException
     {
         AttributeMap attributeMap = createRequestCtx.getUserAttributes();
+        String id = startCreate(attributeMap);
+
+        // the add hands back the stored entry, so no separate read is needed for the response
+        LdapEntry userEntry;
+        try {
+            userEntry = ldapHelper.addEntryAndRead(userDn(id), attributeMap, userFetchAttributeList);
+        } catch (NameAlreadyBoundException e) {
+            userEntry = addedOverExisting(id, attributeMap);
+        }
+
+        return finishCreate(id, userEntry);
+    }
+
+    // the checks of a create before its add, returning the id of the user
+    private String startCreate(AttributeMap attributeMap) throws IdentityStoreException
+    {
+        // refuse what the schema rules out before any directory call
+        ldapHelper.checkAttributes(attributeMap, true);
         
-        // verify we don't already have this user
-        checkForConflict(attributeMap);
+        // verify we don't already have this user, unless we leave that to the directory
+        if (!optimisticCreate) {
+            checkForConflict(attributeMap);
+        }
 
         // use email address as the id for this poc
-        String id = escapeCN(attributeMap.getSingleValue(USERNAME));
+        return attributeMap.getSingleValue(USERNAME);
+    }
 
-        if (ldapHelper.addEntry("cn=" + id + "," + BaseDn, attributeMap)) {
-            log.info("Created User: " + id);
-            log.info("Entity ID: " + createRequestCtx.getEntityId());
+    // an add that found an entry at the user's DN
+    private LdapEntry addedOverExisting(String id, AttributeMap attributeMap) throws IdentityStoreException
+    {
+        forgetMissing(id);
+
+        // entryAlreadyExists - only an inactive user in disable mode is not a conflict
+        if (permanentlyDeleteUser) {
+            throw new ConflictException("User already exists: " + id);
+        }
+        checkForConflict(attributeMap);
+        return null;
+    }
+
+    private UserResponseContextImpl finishCreate(String id, LdapEntry userEntry) throws IdentityStoreException
+    {
+        if (userEntry != null) {
+            forgetMissing(id);
+            rememberWrite(id, userEntry.getDn());
+
+            if (entryCache != null) {
+                entryCache.put(userEntry);
+            }
         } else {
-        	log.info("FAILED");
+        	log.debug("Add did not return the entry, reading it back");
+        	userEntry = ldapHelper.getEntryByDn(userDn(id), ldapAttributeList);
+
+        	if (userEntry == null) {
+        		// never report a create as done when there is no user to show for it
+        		throw new IdentityStoreException("Error creating user: " + id);
+        	}
         }
 
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + id, ldapAttributeList, BaseDn);
-        AttributeMap returnAttributeMap = userEntryToAttributeMap(userEntry);
+        AttributeMap returnAttributeMap = userEntryToAttributeMap(userEntry.getAttributes());
 
         // Send back the response
         return new UserResponseContextImpl(returnAttributeMap);
@@ -209,30 +677,43 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
 
     @Override
     public UserResponseContextImpl readUser(ReadUserRequestContext readRequestCtx) throws IdentityStoreException
+    {
+        long start = metrics.beginRequest();
+        String result = LdapMetrics.SUCCESS;
+
+        try {
+            return doReadUser(readRequestCtx);
+        } catch (IdentityStoreException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } catch (RuntimeException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            endRequest("readUser", readRequestCtx.getUserId(), readRequestCtx.getEntityId(), start, result);
+        }
+    }
+
+    private UserResponseContextImpl doReadUser(ReadUserRequestContext readRequestCtx) throws IdentityStoreException
     {
         AttributeMap attributeMap = null;
 
-        String id = escapeCN(readRequestCtx.getUserId());
-        log.info("reading user id=" + id);
+        String id = readRequestCtx.getUserId();
         
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + id, ldapAttributeList, BaseDn);
+        // answer repeated probes for missing users without going back to the directory
+        if (isKnownMissing(id)) {
+            throw new NotFoundException(USER_NOT_FOUND + ": " + id);
+        }
+
+        long missingStamp = missingStamp(id);
+        LdapEntry userEntry = fetchUserCached(id);
 
         if (userEntry != null) {
         	
-            if (permanentlyDeleteUser || isActive(id))
+            if (permanentlyDeleteUser || isActive(userEntry))
             {
 
-            	attributeMap = userEntryToAttributeMap(userEntry);
-            	
-                // Print out some info to show the user attributes for testing.
-                log.info("Read User: " + id);
-                log.info("Entity ID: " + readRequestCtx.getEntityId());
-                log.info("Attributes:");
-                for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-                {
-                    log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-                }
-                
+            	attributeMap = userEntryToAttributeMap(userEntry.getAttributes());
             }
             else
             {
@@ -242,6 +723,7 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
             }
         } else {
             // couldn't find the user in memory
+            recordMissing(id, missingStamp);
             throw new NotFoundException(USER_NOT_FOUND + ": " + id);
         }
 
@@ -250,81 +732,251 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
     }
 
     @Override
-    public UserResponseContextImpl updateUser(UpdateUserRequestContext updateRequestCtx) throws IdentityStoreException
+    public UserResponseContextImpl updateUser(final UpdateUserRequestContext updateRequestCtx) throws IdentityStoreException
+    {
+        long start = metrics.beginRequest();
+        String result = LdapMetrics.SUCCESS;
+
+        UserWrite write = new UserWrite() {
+            UserResponseContextImpl write() throws IdentityStoreException {
+                return doUpdateUser(updateRequestCtx);
+            }
+        };
+
+        try {
+            // A PUT replaces the whole user, so of several queued for one user only the last is written.
+            return userWriteLanes.submit(writeLaneKey(updateRequestCtx.getUserId()), true, write);
+        } catch (IdentityStoreException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } catch (RuntimeException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            metrics.addRequestRoundTrips(write.getRoundTrips());
+            endRequest("updateUser", updateRequestCtx.getUserId(), updateRequestCtx.getEntityId(), start, result);
+        }
+    }
+
+    private UserResponseContextImpl doUpdateUser(UpdateUserRequestContext updateRequestCtx) throws IdentityStoreException
     {
     	
     	log.debug("---[ updateUser ]------");
 
-    	AttributeMap updatedAttributeMap = null;
-        String id = escapeCN(updateRequestCtx.getUserId());
+        String id = updateRequestCtx.getUserId();
+        LdapEntry userEntry = startUpdate(updateRequestCtx);
 
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + id, ldapAttributeList, BaseDn);
+        if (ldapHelper.isUnchanged(userEntry.getAttributes(), updateRequestCtx.getUserAttributes())) {
+            return unchangedUpdate(userEntry);
+        }
 
-        if (userEntry != null) {
+        LdapEntry updatedEntry;
+        try {
+            updatedEntry = ldapHelper.modifyEntryAndRead(userEntry.getDn(), userEntry.getAttributes(), updateRequestCtx.getUserAttributes(), userFetchAttributeList);
+        } finally {
+            // also when the modify failed, it may have been applied all the same
+            forgetCachedEntry(userEntry.getDn());
+        }
 
-            if (permanentlyDeleteUser || isActive(id)) {
+        return finishUpdate(id, updatedEntry);
+    }
 
-                if (ldapHelper.modifyEntry("cn=" + id + "," + BaseDn, userEntry, updateRequestCtx.getUserAttributes())) {
-                	userEntry = ldapHelper.getEntry("cn=" + id, ldapAttributeList, BaseDn);
-                    updatedAttributeMap = userEntryToAttributeMap(userEntry);
-                } else {
-                	throw new BadRequestException("Error modifying user");
-                }
+    // the checks and read of an update before its modify, returning the user as stored
+    private LdapEntry startUpdate(UpdateUserRequestContext updateRequestCtx) throws IdentityStoreException
+    {
+        String id = updateRequestCtx.getUserId();
 
-            } else {
-                // Since we're in "disable user on delete" mode and the user is inactive (disabled)
-                // the SCIM spec says to return a 404 in this case as though the user doesn't exist.
-                throw new NotFoundException(USER_NOT_FOUND);
-            }
-        } else {
+        ldapHelper.checkAttributes(updateRequestCtx.getUserAttributes(), false);
+
+        LdapEntry userEntry = fetchUser(id, userFetchAttributeList);
+
+        if (userEntry == null) {
             // couldn't find the user in memory
             throw new NotFoundException(USER_NOT_FOUND + ": " + id);
         }
 
+        if (!permanentlyDeleteUser && !isActive(userEntry)) {
+            // Since we're in "disable user on delete" mode and the user is inactive (disabled)
+            // the SCIM spec says to return a 404 in this case as though the user doesn't exist.
+            throw new NotFoundException(USER_NOT_FOUND);
+        }
+
+        return userEntry;
+    }
+
+    // a full PUT of the user as it already is, nothing to write or read back
+    private UserResponseContextImpl unchangedUpdate(LdapEntry userEntry)
+    {
+        metrics.counter("provisioner.update.unchanged").increment();
+        return new UserResponseContextImpl(userEntryToAttributeMap(userEntry.getAttributes()));
+    }
+
+    private UserResponseContextImpl finishUpdate(String id, LdapEntry updatedEntry) throws IdentityStoreException
+    {
+        if (updatedEntry == null) {
+        	throw new BadRequestException("Error modifying user");
+        }
+
+        rememberWrite(id, updatedEntry.getDn());
+
+        if (entryCache != null) {
+            entryCache.put(updatedEntry);
+        }
+
         // Send back the response
-        return new UserResponseContextImpl(updatedAttributeMap);
+        return new UserResponseContextImpl(userEntryToAttributeMap(updatedEntry.getAttributes()));
     }
 
     @Override
-    public void deleteUser(DeleteUserRequestContext deleteRequestCtx) throws IdentityStoreException
+    public void deleteUser(final DeleteUserRequestContext deleteRequestCtx) throws IdentityStoreException
     {
-        String id = escapeCN(deleteRequestCtx.getUserId());
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + id, ldapAttributeList, BaseDn);
+        long start = metrics.beginRequest();
+        String result = LdapMetrics.SUCCESS;
 
-        if (userEntry != null) {
+        UserWrite write = new UserWrite() {
+            UserResponseContextImpl write() throws IdentityStoreException {
+                doDeleteUser(deleteRequestCtx);
+                return null;
+            }
+        };
+
+        try {
+            userWriteLanes.submit(writeLaneKey(deleteRequestCtx.getUserId()), false, write);
+        } catch (IdentityStoreException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } catch (RuntimeException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            metrics.addRequestRoundTrips(write.getRoundTrips());
+            endRequest("deleteUser", deleteRequestCtx.getUserId(), deleteRequestCtx.getEntityId(), start, result);
+        }
+    }
 
-            // Found an existing user - do we disable or delete?
-            if (permanentlyDeleteUser) {
-            	
-            	ldapHelper.deleteEntry("cn=" + id + "," + BaseDn);
-                log.info("Deleted User: " + id);
-                log.info("Entity ID: " + deleteRequestCtx.getEntityId());
+    private void doDeleteUser(DeleteUserRequestContext deleteRequestCtx) throws IdentityStoreException
+    {
+        String id = deleteRequestCtx.getUserId();
+        LdapEntry userEntry = startDelete(id);
+
+        // Found an existing user - do we disable or delete?
+        if (permanentlyDeleteUser) {
+        	
+        	if (ldapHelper.deleteEntry(userEntry.getDn())) {
+        		rememberWrite(id, userEntry.getDn());
+        		forgetCachedEntry(userEntry.getDn());
+        	} else {
+        		throw new IdentityStoreException("Error deleting user");
+        	}
+        } else {
+            // we're not in permanentlyDeleteUser mode and they're active so just disable them
+            if (ldapHelper.modifyEntry(userEntry.getDn(), userEntry.getAttributes(), disabledUser(userEntry))) {
+            	// disabled!
+            	rememberWrite(id, userEntry.getDn());
+            	forgetCachedEntry(userEntry.getDn());
             } else {
-                
-            	if (isActive(id)) {
-                    // we're not in permanentlyDeleteUser mode and they're active so just disable them
-            		AttributeMap disabledUserEntry = new AttributeMap();
-            		disabledUserEntry.putAll(userEntry);
-            		disabledUserEntry.put(ACTIVE, AttrValueSupport.make(false));
-            		
-                    if (ldapHelper.modifyEntry("cn=" + id + "," + BaseDn, userEntry, disabledUserEntry)) {
-                    	// disabled!
-                    } else {
-                    	throw new BadRequestException("Error modifying user");
-                    }
-                    
-                    log.info("Disabled User: " + id);
-                    log.info("Entity ID: " + deleteRequestCtx.getEntityId());
-                } else {
-                    // Since we're in "disable user on delete" mode and the user is inactive (disabled)
-                    // the SCIM spec says to return a 404 in this case as though the user doesn't exist.
-                    throw new NotFoundException(USER_NOT_FOUND);
-                }
+            	throw new BadRequestException("Error modifying user");
             }
-        } else {
+        }
+    }
+
+    // the checks and read of a delete before it deletes or disables the user, returning the user as stored
+    private LdapEntry startDelete(String id) throws IdentityStoreException
+    {
+        if (isKnownMissing(id)) {
+            throw new NotFoundException(USER_NOT_FOUND + ": " + id);
+        }
+
+        long missingStamp = missingStamp(id);
+        LdapEntry userEntry = fetchUser(id, userFetchAttributeList);
+
+        if (userEntry == null) {
             // couldn't find the user in memory
+            recordMissing(id, missingStamp);
             throw new NotFoundException(USER_NOT_FOUND + ": " + id);
         }
+
+        if (!permanentlyDeleteUser && !isActive(userEntry)) {
+            // Since we're in "disable user on delete" mode and the user is inactive (disabled)
+            // the SCIM spec says to return a 404 in this case as though the user doesn't exist.
+            throw new NotFoundException(USER_NOT_FOUND);
+        }
+
+        return userEntry;
+    }
+
+    private static AttributeMap disabledUser(LdapEntry userEntry)
+    {
+        AttributeMap disabledUserEntry = new AttributeMap();
+        disabledUserEntry.putAll(userEntry.getAttributes());
+        disabledUserEntry.put(ACTIVE, AttrValueSupport.make(false));
+        return disabledUserEntry;
+    }
+
+    /**
+     * Drops a user from the entry cache once a write to it has gone through. Doing it before the write
+     * would let a read racing with the write cache the old entry again.
+     */
+    private void forgetCachedEntry(String dn)
+    {
+        if (entryCache != null) {
+            entryCache.invalidate(dn);
+        }
+    }
+
+    /**
+     * Receives the users of a listing one at a time.
+     */
+    public interface UserHandler
+    {
+        /**
+         * Handles one user, mapped as readUser returns it. Returning false ends the listing.
+         */
+        boolean userReturned(AttributeMap user);
+    }
+
+    /**
+     * Lists the users under the container that match a SCIM filter, as readUser would return them,
+     * streaming them page by page to handler in constant memory. Supports equality (userName eq
+     * "bjensen") and presence (title pr) filters; a null filter lists every user. Disabled users are
+     * left out unless users are deleted permanently. Returns the number of users handed over.
+     */
+    public int streamUsers(String scimFilter, final UserHandler handler) throws IdentityStoreException
+    {
+        long start = metrics.beginRequest();
+        String result = LdapMetrics.SUCCESS;
+
+        try {
+            LdapFilter filter;
+            try {
+                filter = USER_FILTER.and(LdapFilter.fromScim(scimFilter, mappingPlan));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+
+            final int[] returned = new int[1];
+
+            ldapHelper.streamEntries(BaseDn, filter, userFetchAttributeList, pageSize, new LdapEntryHandler() {
+                public boolean entryReturned(LdapEntry entry) {
+                    if (!permanentlyDeleteUser && !isActive(entry)) {
+                        return true;
+                    }
+                    returned[0]++;
+                    return handler.userReturned(userEntryToAttributeMap(entry.getAttributes()));
+                }
+            });
+
+            return returned[0];
+
+        } catch (IdentityStoreException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } catch (RuntimeException e) {
+            result = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            endRequest("streamUsers", null, null, start, result);
+        }
     }
 
     public boolean isPermanentlyDeleteUser()
@@ -337,13 +989,221 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
         this.permanentlyDeleteUser = permanentlyDeleteUser;
     }
 
-    private void checkForConflict(AttributeMap attributeMap) throws ConflictException
+    /**
+     * Returns the LDAP backend, and through it the connection pool, used by this provisioner.
+     */
+    public LdapBackend getLdapBackend()
+    {
+        return ldapBackend;
+    }
+
+    /**
+     * Returns the executor running directory calls, or null when they run on the request thread.
+     */
+    public LdapExecutor getLdapExecutor()
+    {
+        return ldapExecutor;
+    }
+
+    /**
+     * Returns the request and directory operation metrics of this provisioner.
+     */
+    public LdapMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    private void endRequest(String operation, String id, String entityId, long start, String result)
+    {
+        endRequest(operation, id, entityId, start, result, metrics.getRequestRoundTrips());
+    }
+
+    private void endRequest(String operation, String id, String entityId, long start, String result, int roundTrips)
+    {
+        long elapsedNanos = metrics.endRequest("scim." + operation, start, result, roundTrips);
+        requestLogger.logRequest(operation, id, entityId, result, elapsedNanos, roundTrips);
+    }
+
+    /**
+     * (Re)publishes the metrics, pool and cache statistics of the current configuration over JMX.
+     */
+    private void registerMBeans(LdapBackend backend)
+    {
+        metrics.unregisterMBeans();
+        metrics.registerMBeans(instanceName);
+
+        if (backend instanceof JndiLdapBackend) {
+            for (LdapServerSet.Server server : ((JndiLdapBackend) backend).getServerSet().getServers()) {
+                metrics.registerMBean(server.getPool(), "ConnectionPool", server.getUrl());
+            }
+        }
+        if (ldapExecutor != null) {
+            metrics.registerMBean(ldapExecutor, "Executor", "ldap");
+        }
+        if (circuitBreaker != null) {
+            metrics.registerMBean(circuitBreaker, "CircuitBreaker", "ldap");
+        }
+        if (adaptiveLimiter != null) {
+            metrics.registerMBean(adaptiveLimiter, "ConcurrencyLimit", "ldap");
+        }
+        if (entryCache != null) {
+            metrics.registerMBean(entryCache, "Cache", "entries");
+        }
+        if (notFoundCache != null) {
+            metrics.registerMBean(notFoundCache, "Cache", "notFound");
+        }
+        if (changeListener != null) {
+            metrics.registerMBean(changeListener, "ChangeListener", "ldap");
+        }
+        if (capabilityMonitor != null) {
+            metrics.registerMBean(capabilityMonitor, "Capabilities", "ldap");
+        }
+        if (tls != null) {
+            metrics.registerMBean(tls, "Tls", "ldap");
+        }
+        metrics.registerMBean(userWriteLanes, "WriteLanes", "users");
+    }
+
+    /**
+     * Warns about configured attributes the directory schema does not define or that no user entry
+     * can hold, which would make every create or update carrying them fail.
+     */
+    private void checkSchema(Collection<String> attributeNames)
+    {
+        DirectoryCapabilities capabilities = ldapHelper.getCapabilities();
+
+        if (!capabilities.isSchemaKnown()) {
+            return;
+        }
+
+        List<String> objectClasses = capabilities.getObjectClassChain(LdapHelper.USER_OBJECT_CLASS);
+
+        for (String name : attributeNames) {
+            if (!capabilities.isAttributeDefined(name)) {
+                log.warn("Attribute " + name + " is not defined in the directory schema, requests carrying it will be rejected");
+            } else if (objectClasses != null && !capabilities.isAllowedBy(objectClasses, name)) {
+                log.warn("Attribute " + name + " is not allowed by " + objectClasses + ", the directory may reject users carrying it");
+            }
+        }
+    }
+
+    /**
+     * Starts a listener that drops entries changed in the directory from this node's caches, or
+     * returns null when it is disabled or there is nothing cached.
+     */
+    private DirectoryChangeListener createChangeListener(String listenerMode, String serverUrl, String principal, String credentials,
+            LdapPoolSettings poolSettings)
+    {
+        EntryCache entries = entryCache;
+        NegativeLookupCache notFound = notFoundCache;
+
+        if (listenerMode == null || CHANGE_LISTENER_DISABLED.equals(listenerMode) || (entries == null && notFound == null)) {
+            return null;
+        }
+
+        DirectoryChangeListener.Mode mode = CHANGE_LISTENER_SYNC.equals(listenerMode) ? DirectoryChangeListener.Mode.CONTENT_SYNC
+                : CHANGE_LISTENER_PSEARCH.equals(listenerMode) ? DirectoryChangeListener.Mode.PERSISTENT_SEARCH
+                : DirectoryChangeListener.Mode.AUTO;
+
+        DirectoryChangeListener listener;
+        try {
+            listener = new DirectoryChangeListener(serverUrl, principal, credentials, poolSettings, BaseDn, mode);
+        } catch (NamingException e) {
+            log.error("Unable to start the directory change listener, cached entries will only expire by age: " + e);
+            return null;
+        }
+
+        listener.addConsumer(new CacheInvalidator(entries, notFound));
+
+        listener.start();
+
+        return listener;
+    }
+
+    private static LdapServerSet.Strategy toStrategy(String loadBalancing)
+    {
+        if (LOAD_BALANCING_ROUND_ROBIN.equals(loadBalancing)) {
+            return LdapServerSet.Strategy.ROUND_ROBIN;
+        } else if (LOAD_BALANCING_FEWEST_CONNECTIONS.equals(loadBalancing)) {
+            return LdapServerSet.Strategy.FEWEST_CONNECTIONS;
+        }
+
+        return LdapServerSet.Strategy.FAILOVER;
+    }
+
+    /**
+     * The shared TLS setup for LDAPS and StartTLS connections, or null when every server is reached
+     * in the clear. Fails rather than fall back to an unprotected connection.
+     */
+    private LdapTls createTls(Configuration configuration, String serverUrl)
+    {
+        boolean startTls = TLS_START_TLS.equals(configuration.getFieldValue(TLS_MODE_NAME));
+
+        if (!LdapTls.isNeeded(LdapServerSet.parseUrls(serverUrl), startTls)) {
+            tls = null;
+            return null;
+        }
+
+        try {
+            tls = new LdapTls(startTls,
+                    TlsSocketFactory.parseList(configuration.getFieldValue(TLS_PROTOCOLS_NAME)),
+                    TlsSocketFactory.parseList(configuration.getFieldValue(TLS_CIPHERS_NAME)),
+                    configuration.getIntFieldValue(TLS_SESSION_LIFETIME_NAME));
+            return tls;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to set up TLS for the LDAP connections: " + e, e);
+        }
+    }
+
+    /**
+     * Creates the client of the selected LDAP library. Overridden by tools that put a decorator
+     * between the provisioner and the directory, such as one injecting latency.
+     */
+    protected LdapBackend createBackend(String backendName, String serverUrl, String principal, String credentials,
+            LdapPoolSettings poolSettings)
+    {
+        if (BACKEND_UNBOUNDID.equals(backendName)) {
+            try {
+                return new UnboundIdLdapBackend(serverUrl, principal, credentials, poolSettings);
+            } catch (NamingException e) {
+                log.error("Unable to use the UnboundID LDAP SDK, falling back to JNDI: " + e);
+            }
+        }
+
+        return new JndiLdapBackend(serverUrl, principal, credentials, poolSettings);
+    }
+
+    /**
+     * Returns the entry cache used by this provisioner, or null when caching is disabled.
+     */
+    public EntryCache getEntryCache()
+    {
+        return entryCache;
+    }
+
+    /**
+     * Returns the cache of user ids recently found not to exist, or null when it is disabled.
+     */
+    public NegativeLookupCache getNotFoundCache()
+    {
+        return notFoundCache;
+    }
+
+    private static TextFieldDescriptor integerField(String name, String description, String defaultValue, int min, int max)
+    {
+        TextFieldDescriptor field = new TextFieldDescriptor(name, description);
+        field.setDefaultValue(defaultValue);
+        field.addValidator(new IntegerValidator(min, max));
+        return field;
+    }
+
+    private void checkForConflict(AttributeMap attributeMap) throws IdentityStoreException
     {
         // Retrieve the username from the attributes sent in the create request since it's a required attribute for
         // SCIM. We know if we got to this portion of the code then it's included.
         String newUserNameValue = attributeMap.getSingleValue(USERNAME);
         
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + newUserNameValue, new String[] { ACTIVE }, BaseDn);
+        LdapEntry userEntry = fetchUser(newUserNameValue, new String[] { ACTIVE });
 
         if (userEntry != null) {
         	// We have an entry.
@@ -352,7 +1212,7 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
             // or if the existing user is active then throw a ConflictException. However, if we're in
             // "disable mode" and the user is inactive then allow them to create another user with the
             // same username but a different id.
-            if (permanentlyDeleteUser || "true".equalsIgnoreCase(userEntry.getSingleValue(ACTIVE)))
+            if (permanentlyDeleteUser || "true".equalsIgnoreCase(userEntry.getAttributes().getSingleValue(ACTIVE)))
             {
                 // if we find a match and they're active then throw a ConflictException
                 throw new ConflictException("User already exists: " + newUserNameValue);
@@ -360,38 +1220,375 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
         }
     }
 
-    private boolean isActive(String id)
+    private boolean isActive(LdapEntry userEntry)
     {
-    	log.info("Checking user is active - id=" + id);
-    	
-        // Determine whether the user is active.
-        AttributeMap userEntry = ldapHelper.getEntry("cn=" + id, new String[] { ACTIVE }, BaseDn);
+        // Determine whether the user is active from the entry we already fetched.
+        return "true".equalsIgnoreCase(userEntry.getAttributes().getSingleValue(ACTIVE));
+    }
 
-        if (userEntry != null) {
-        	return "true".equalsIgnoreCase(userEntry.getSingleValue(ACTIVE));
+    /**
+     * Locates the entry for a user id, either by reading cn=<id> directly under the container or,
+     * in search mode, by searching the whole subtree. Returns null when the user does not exist.
+     */
+    private LdapEntry fetchUser(String id, String[] returnFields) throws IdentityStoreException
+    {
+        if (searchForUsers) {
+            // a user written moments ago is read by DN, which the backend sends to the server that took the write
+            String writtenDn = recentlyWrittenDns != null ? recentlyWrittenDns.get(id) : null;
+            if (writtenDn != null) {
+                return ldapHelper.getEntryByDn(writtenDn, returnFields);
+            }
+
+            return ldapHelper.findEntry("(cn={0})", new Object[] { id }, returnFields, BaseDn);
         }
-        
-        return false;
+
+        return ldapHelper.getEntryByDn(userDn(id), returnFields);
+    }
+
+    /**
+     * As fetchUser, but served from the entry cache when possible. Entries found by searching are
+     * not cached since their DN cannot be derived from the id ahead of the search.
+     */
+    private LdapEntry fetchUserCached(String id) throws IdentityStoreException
+    {
+        if (entryCache == null || searchForUsers) {
+            return fetchUser(id, userFetchAttributeList);
+        }
+
+        LdapEntry userEntry = entryCache.get(userDn(id));
+
+        if (userEntry == null) {
+            // a write while the read is on its way must not have its entry replaced by what was read
+            long stamp = entryCache.stamp(userDn(id));
+            userEntry = fetchUser(id, userFetchAttributeList);
+
+            if (userEntry != null) {
+                entryCache.putIfUnchanged(userEntry, stamp);
+            }
+        }
+
+        return userEntry;
+    }
+
+    /**
+     * Whether the user was found not to exist within the not-found window, so the lookup can be skipped.
+     */
+    private boolean isKnownMissing(String id)
+    {
+        return notFoundCache != null && notFoundCache.isMissing(userDn(id));
+    }
+
+    /**
+     * In search mode, remembers where a user was just written so the read-after-write routing, which
+     * works on DNs, also covers reads that would otherwise search for the user.
+     */
+    private void rememberWrite(String id, String dn)
+    {
+        if (recentlyWrittenDns != null) {
+            recentlyWrittenDns.record(id, dn);
+        }
+    }
+
+    // taken before a lookup, so a create that finishes while the lookup runs is not recorded as missing
+    private long missingStamp(String id)
+    {
+        return notFoundCache != null ? notFoundCache.stamp(userDn(id)) : 0L;
+    }
+
+    private void recordMissing(String id, long stamp)
+    {
+        if (notFoundCache != null) {
+            notFoundCache.recordMissingIfUnchanged(userDn(id), stamp);
+        }
+    }
+
+    private void forgetMissing(String id)
+    {
+        if (notFoundCache != null) {
+            notFoundCache.remove(userDn(id));
+        }
+    }
+
+    /**
+     * The write lane of a user: its DN as the entry cache compares DNs, so ids differing only in case
+     * or escaping share a lane.
+     */
+    String writeLaneKey(String id)
+    {
+        return EntryCache.normalizeDn(userDn(id));
+    }
+
+    private String userDn(String id)
+    {
+        return "cn=" + escapeCN(id) + "," + BaseDn;
+    }
+
+    /**
+     * A write queued in the user write lanes. It may run on the thread of another request's caller,
+     * so its directory round trips are taken off that thread's request and kept with the write, for
+     * its own caller to count once the write is done. A write superseded by a later one made none.
+     */
+    private abstract class UserWrite implements WriteLanes.Write<UserResponseContextImpl>
+    {
+        private int roundTrips;
+
+        abstract UserResponseContextImpl write() throws IdentityStoreException;
+
+        public final UserResponseContextImpl run() throws IdentityStoreException
+        {
+            int before = metrics.getRequestRoundTrips();
+            try {
+                return write();
+            } finally {
+                roundTrips += metrics.takeRequestRoundTrips(before);
+            }
+        }
+
+        // read by the caller once the write lanes have handed it the outcome
+        int getRoundTrips()
+        {
+            return roundTrips;
+        }
+    }
+
+    /**
+     * Opens a pipeline for the writes of a bulk batch on a connection of the UnboundID client, or
+     * returns null when the configured client cannot send a write before the last one is answered.
+     */
+    LdapPipeline openPipeline(int maxOutstanding) throws NamingException
+    {
+        LdapBackend backend = ldapBackend;
+        return backend instanceof UnboundIdLdapBackend ? ((UnboundIdLdapBackend) backend).openPipeline(maxOutstanding) : null;
+    }
+
+    PipelinedWrite pipelinedCreate(CreateUserRequestContext createRequestCtx)
+    {
+        final AttributeMap attributeMap = createRequestCtx.getUserAttributes();
+        final String id = attributeMap.getSingleValue(USERNAME);
+
+        return new PipelinedWrite("createUser", id, createRequestCtx.getEntityId(), "ldap.add") {
+
+            boolean sendWrite(LdapPipeline pipeline, LdapPipeline.Listener listener) throws IdentityStoreException, NamingException
+            {
+                startCreate(attributeMap);
+                ldapHelper.addEntryAndRead(pipeline, userDn(id), attributeMap, userFetchAttributeList, listener);
+                return true;
+            }
+
+            UserResponseContextImpl complete(LdapEntry entry, NamingException failure) throws IdentityStoreException
+            {
+                LdapEntry userEntry;
+                try {
+                    userEntry = ldapHelper.addEntryAndReadCompleted(userDn(id), entry, failure, userFetchAttributeList);
+                } catch (NameAlreadyBoundException e) {
+                    userEntry = addedOverExisting(id, attributeMap);
+                }
+
+                return finishCreate(id, userEntry);
+            }
+        };
+    }
+
+    PipelinedWrite pipelinedUpdate(final UpdateUserRequestContext updateRequestCtx)
+    {
+        final String id = updateRequestCtx.getUserId();
+
+        return new PipelinedWrite("updateUser", id, updateRequestCtx.getEntityId(), "ldap.modify") {
+
+            private LdapEntry userEntry;
+            private boolean unchanged;
+
+            boolean sendWrite(LdapPipeline pipeline, LdapPipeline.Listener listener) throws IdentityStoreException, NamingException
+            {
+                userEntry = startUpdate(updateRequestCtx);
+
+                unchanged = ldapHelper.isUnchanged(userEntry.getAttributes(), updateRequestCtx.getUserAttributes());
+                if (unchanged) {
+                    return false;
+                }
+
+                return ldapHelper.modifyEntry(pipeline, userEntry.getDn(), userEntry.getAttributes(), updateRequestCtx.getUserAttributes(),
+                        userFetchAttributeList, listener);
+            }
+
+            UserResponseContextImpl complete(LdapEntry entry, NamingException failure) throws IdentityStoreException
+            {
+                if (unchanged) {
+                    return unchangedUpdate(userEntry);
+                }
+                if (!isSent()) {
+                    // nothing to write after all, the entry is as it was read
+                    return finishUpdate(id, userEntry);
+                }
+
+                forgetCachedEntry(userEntry.getDn());
+                return finishUpdate(id, ldapHelper.modifyEntryAndReadCompleted(userEntry.getDn(), entry, failure, userFetchAttributeList));
+            }
+        };
+    }
+
+    PipelinedWrite pipelinedDelete(DeleteUserRequestContext deleteRequestCtx)
+    {
+        final String id = deleteRequestCtx.getUserId();
+        final boolean permanently = permanentlyDeleteUser;
+
+        return new PipelinedWrite("deleteUser", id, deleteRequestCtx.getEntityId(), permanently ? "ldap.delete" : "ldap.modify") {
+
+            private LdapEntry userEntry;
+
+            boolean sendWrite(LdapPipeline pipeline, LdapPipeline.Listener listener) throws IdentityStoreException, NamingException
+            {
+                userEntry = startDelete(id);
+
+                if (permanently) {
+                    ldapHelper.deleteEntry(pipeline, userEntry.getDn(), listener);
+                    return true;
+                }
+
+                return ldapHelper.modifyEntry(pipeline, userEntry.getDn(), userEntry.getAttributes(), disabledUser(userEntry), null, listener);
+            }
+
+            UserResponseContextImpl complete(LdapEntry entry, NamingException failure) throws IdentityStoreException
+            {
+                if (permanently) {
+                    if (!ldapHelper.deleteEntryCompleted(failure)) {
+                        throw new IdentityStoreException("Error deleting user");
+                    }
+                } else if (isSent() && !ldapHelper.modifyEntryCompleted(failure)) {
+                    throw new BadRequestException("Error modifying user");
+                }
+
+                if (isSent()) {
+                    rememberWrite(id, userEntry.getDn());
+                }
+                forgetCachedEntry(userEntry.getDn());
+                return null;
+            }
+        };
+    }
+
+    /**
+     * A create, update or delete of a bulk batch split around its one directory write, so the write
+     * can go through an {@link LdapPipeline}: send makes the checks and reads of the request and puts
+     * its write in the pipeline, finish takes the outcome of the write through the rest of the request
+     * as the request would without a pipeline. Both run on the bulk lane's thread with other requests
+     * in between, so the round trips and the request metrics are kept here rather than on the thread.
+     * These writes do not queue in the user write lanes and bypass the circuit breaker and the
+     * adaptive limit; the bulk provisioner keeps their order and bounds them itself.
+     */
+    abstract class PipelinedWrite
+    {
+        private final String operation;
+        private final String id;
+        private final String entityId;
+        private final String ldapOperation;
+        private final long start = System.nanoTime();
+
+        private boolean sent;
+        private volatile long writeNanos;
+        private int roundTrips;
+
+        PipelinedWrite(String operation, String id, String entityId, String ldapOperation)
+        {
+            this.operation = operation;
+            this.id = id;
+            this.entityId = entityId;
+            this.ldapOperation = ldapOperation;
+        }
+
+        /**
+         * Sends the write, the outcome of which goes to listener, and returns true, or returns false
+         * when the request needs no write and finish is to be called right away. A write that cannot
+         * be sent is handed to listener as failed. Throws when the checks or reads end the request.
+         */
+        final boolean send(LdapPipeline pipeline, final LdapPipeline.Listener listener) throws IdentityStoreException
+        {
+            int before = metrics.getRequestRoundTrips();
+            String result = null;
+
+            LdapPipeline.Listener timed = new LdapPipeline.Listener() {
+                public void completed(LdapEntry entry, NamingException failure, long elapsedNanos) {
+                    writeNanos = elapsedNanos;
+                    listener.completed(entry, failure, elapsedNanos);
+                }
+            };
+
+            try {
+                sent = sendWrite(pipeline, timed);
+                return sent;
+            } catch (NamingException e) {
+                sent = true;
+                timed.completed(null, e, 0L);
+                return true;
+            } catch (IdentityStoreException e) {
+                result = e.getClass().getSimpleName();
+                throw e;
+            } catch (RuntimeException e) {
+                result = e.getClass().getSimpleName();
+                throw e;
+            } finally {
+                roundTrips += metrics.takeRequestRoundTrips(before);
+                if (result != null) {
+                    endRequest(operation, id, entityId, start, result, roundTrips);
+                }
+            }
+        }
+
+        /**
+         * Completes the request with the outcome of its write, both null when none was sent.
+         */
+        final UserResponseContextImpl finish(LdapEntry entry, NamingException failure) throws IdentityStoreException
+        {
+            int before = metrics.getRequestRoundTrips();
+            String result = LdapMetrics.SUCCESS;
+
+            try {
+                if (sent) {
+                    metrics.recordLdapOperation(ldapOperation, writeNanos, failure != null ? LdapMetrics.resultCode(failure) : LdapMetrics.SUCCESS);
+                }
+                return complete(entry, failure);
+            } catch (IdentityStoreException e) {
+                result = e.getClass().getSimpleName();
+                throw e;
+            } catch (RuntimeException e) {
+                result = e.getClass().getSimpleName();
+                throw e;
+            } finally {
+                roundTrips += metrics.takeRequestRoundTrips(before);
+                endRequest(operation, id, entityId, start, result, roundTrips);
+            }
+        }
+
+        boolean isSent()
+        {
+            return sent;
+        }
+
+        abstract boolean sendWrite(LdapPipeline pipeline, LdapPipeline.Listener listener) throws IdentityStoreException, NamingException;
+
+        abstract UserResponseContextImpl complete(LdapEntry entry, NamingException failure) throws IdentityStoreException;
     }
 
     
-    private AttributeMap userEntryToAttributeMap(AttributeMap userEntry) {
+    AttributeMap userEntryToAttributeMap(AttributeMap userEntry) {
     
+    	long start = System.nanoTime();
     	AttributeMap returnMap = new AttributeMap();
     	
     	try {
         for (Map.Entry<String, AttributeValue> e : userEntry.entrySet())
         {
-        	log.info("Cleaning up: " + e.getKey());
-        	
-        	if (e.getKey().equalsIgnoreCase("createTimestamp")) {
-        		returnMap.put(Constants.WHEN_CREATED, AttrValueSupport.make(StaticUtils.decodeGeneralizedTime(e.getValue().getValue())));
-        	} else if (e.getKey().equalsIgnoreCase("modifyTimestamp")) {
-        		returnMap.put(Constants.WHEN_CHANGED, AttrValueSupport.make(StaticUtils.decodeGeneralizedTime(e.getValue().getValue())));
-        	} else if (e.getKey().equalsIgnoreCase("cn")) {
-        		returnMap.put(Constants.ID, e.getValue().getValue());
-        	} else {
-        		returnMap.put(e.getKey(), e.getValue().getValue());
+        	AttributeMappingPlan.Rule rule = mappingPlan.forRead(e.getKey());
+
+        	switch (rule.getAction()) {
+        	case SKIP:
+        		break;
+        	case DECODE_TIMESTAMP:
+        		returnMap.put(rule.getTargetName(), AttrValueSupport.make(StaticUtils.decodeGeneralizedTime(e.getValue().getValue())));
+        		break;
+        	default:
+        		// the whole value, so a read followed by a replace keeps every value of a multi-valued attribute
+        		returnMap.put(rule.getTargetName(), e.getValue());
         	}
         }
     
@@ -399,6 +1596,8 @@ public class LdapProvisioner implements IdentityStoreUserProvisioner {
     		
     	}
     	
+    	metrics.operation("provisioner.convert").record(System.nanoTime() - start, true);
+
         return returnMap;
     }
     
@@ -0,0 +1,57 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveLimiterTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void recoversAfterALastingLatencyStep() {
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 100);
+        calls(limiter, 1000, 1 * MILLIS);
+
+        // the directory gets slower for good, the limit dips and then grows back
+        calls(limiter, 100, 5 * MILLIS);
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < 100);
+
+        calls(limiter, 5000, 5 * MILLIS);
+        assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    public void keepsItsLimitForAMixOfFastAndSlowCalls() {
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 100);
+
+        // fast reads with a slow write every tenth call
+        for (int i = 0; i < 10000; i++) {
+            calls(limiter, 1, i % 10 == 9 ? 6 * MILLIS : 1 * MILLIS);
+        }
+
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() >= 90);
+    }
+
+    @Test
+    public void neverDropsBelowTheFloor() {
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(8, 100);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onDropped();
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    private static void calls(AdaptiveLimiter limiter, int count, long elapsedNanos) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onSuccess(elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+
+public class DirectoryCapabilityMonitorTest {
+
+    @Test
+    public void retriesAFailedFirstProbeWithoutPeriodicRefresh() throws Exception {
+
+        ServerSocket reserved = new ServerSocket(0);
+        int port = reserved.getLocalPort();
+        reserved.close();
+
+        LdapHelper helper = new LdapHelper(new UnboundIdLdapBackend("ldap://localhost:" + port, "cn=Directory Manager", "password", new LdapPoolSettings()));
+        DirectoryCapabilityMonitor monitor = new DirectoryCapabilityMonitor(helper, 0L);
+        final CountDownLatch probed = new CountDownLatch(1);
+
+        // nothing listens yet, so the first probe fails
+        monitor.start(new Runnable() {
+            public void run() {
+                probed.countDown();
+            }
+        });
+        assertFalse(probed.await(300L, TimeUnit.MILLISECONDS));
+        assertFalse(monitor.isRootDseKnown());
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials("cn=Directory Manager", "password");
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", port));
+        InMemoryDirectoryServer directory = new InMemoryDirectoryServer(config);
+        directory.startListening();
+
+        try {
+            assertTrue(probed.await(10L, TimeUnit.SECONDS));
+            assertTrue(monitor.isRootDseKnown());
+            assertTrue(monitor.getFailureCount() >= 1);
+        } finally {
+            monitor.close();
+            helper.close();
+            directory.shutDown(true);
+        }
+    }
+}
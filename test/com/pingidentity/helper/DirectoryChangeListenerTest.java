@@ -0,0 +1,127 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sourceid.util.log.AttributeMap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+
+/**
+ * Messages of a sync or persistent search session, fed to a listener that never connects, and
+ * what they do to the caches.
+ */
+public class DirectoryChangeListenerTest {
+
+    private static final String ANN = "cn=ann,ou=people,dc=example,dc=com";
+    private static final String BEN = "cn=ben,ou=people,dc=example,dc=com";
+    private static final String MISSING = "cn=nobody,ou=people,dc=example,dc=com";
+
+    private DirectoryChangeListener listener;
+    private EntryCache entries;
+    private NegativeLookupCache notFound;
+
+    @Before
+    public void createListener() throws Exception {
+
+        listener = new DirectoryChangeListener("ldap://localhost:389", "cn=Directory Manager", "password", new LdapPoolSettings(),
+                "ou=people,dc=example,dc=com", DirectoryChangeListener.Mode.AUTO);
+
+        entries = new EntryCache(100, 60000L);
+        notFound = new NegativeLookupCache(100, 60000L);
+        listener.addConsumer(new CacheInvalidator(entries, notFound));
+
+        entries.put(new LdapEntry(ANN, new AttributeMap()));
+        entries.put(new LdapEntry(BEN, new AttributeMap()));
+        notFound.recordMissing(MISSING);
+    }
+
+    @Test
+    public void changedEntriesAreDroppedFromTheCaches() {
+
+        listener.beginSync();
+        listener.onSyncInfo(ContentSyncInfoIntermediateResponse.createRefreshPresentResponse(cookie("1"), true));
+
+        // DNs compare without regard to case
+        listener.onSyncEntry(syncEntry("CN=Ann,ou=People,dc=example,dc=com", ContentSyncState.MODIFY, "2"));
+        listener.onSyncEntry(syncEntry(MISSING, ContentSyncState.ADD, "3"));
+
+        assertNull(entries.get(ANN));
+        assertFalse(notFound.isMissing(MISSING));
+        assertEquals(2, listener.getChangeCount());
+        assertTrue(listener.isResumable());
+    }
+
+    @Test
+    public void initialRefreshIsReportedAsOneMiss() {
+
+        listener.beginSync();
+        listener.onSyncEntry(syncEntry(ANN, ContentSyncState.ADD, null));
+        listener.onSyncEntry(syncEntry(BEN, ContentSyncState.ADD, null));
+
+        // listed entries are not changes, nothing is dropped while the refresh runs
+        assertNotNull(entries.get(ANN));
+        assertEquals(0, listener.getChangeCount());
+        assertEquals(2, listener.getRefreshEntryCount());
+
+        listener.onSyncInfo(ContentSyncInfoIntermediateResponse.createRefreshPresentResponse(cookie("1"), true));
+
+        assertNull(entries.get(BEN));
+        assertFalse(notFound.isMissing(MISSING));
+        assertEquals(1, listener.getMissedCount());
+
+        // with the cookie a new session resumes instead of listing everything again
+        listener.beginSync();
+        listener.onSyncEntry(syncEntry(ANN, ContentSyncState.PRESENT, "2"));
+        assertEquals(2, listener.getRefreshEntryCount());
+        assertEquals(0, listener.getChangeCount());
+    }
+
+    @Test
+    public void deletesNamedOnlyByUuidDropEverything() {
+
+        listener.beginSync();
+        listener.onSyncInfo(ContentSyncInfoIntermediateResponse.createRefreshPresentResponse(cookie("1"), true));
+        entries.put(new LdapEntry(ANN, new AttributeMap()));
+
+        listener.onSyncInfo(ContentSyncInfoIntermediateResponse.createSyncIDSetResponse(cookie("2"),
+                Collections.singletonList(UUID.randomUUID()), true));
+
+        assertNull(entries.get(ANN));
+        assertEquals(2, listener.getMissedCount());
+    }
+
+    @Test
+    public void renamedEntriesAreDroppedUnderBothNames() {
+
+        EntryChangeNotificationControl rename = new EntryChangeNotificationControl(PersistentSearchChangeType.MODIFY_DN, ANN, 1L);
+        listener.onPersistentSearchEntry(new SearchResultEntry(BEN, new Attribute[0], rename));
+
+        assertNull(entries.get(ANN));
+        assertNull(entries.get(BEN));
+        assertEquals(2, listener.getChangeCount());
+    }
+
+    private static SearchResultEntry syncEntry(String dn, ContentSyncState state, String cookie) {
+        return new SearchResultEntry(dn, new Attribute[0], new ContentSyncStateControl(state, UUID.randomUUID(), cookie != null ? cookie(cookie) : null));
+    }
+
+    private static ASN1OctetString cookie(String value) {
+        return new ASN1OctetString(value);
+    }
+}
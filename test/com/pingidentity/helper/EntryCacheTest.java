@@ -0,0 +1,71 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sourceid.util.log.AttributeMap;
+
+public class EntryCacheTest {
+
+    private static final String DN = "cn=ann,ou=people,dc=example,dc=com";
+
+    @Test
+    public void readIsCachedWhenNothingWasWritten() {
+
+        EntryCache cache = new EntryCache(100, 60000L);
+        long stamp = cache.stamp(DN);
+
+        LdapEntry read = entry("Lee");
+        assertTrue(cache.putIfUnchanged(read, stamp));
+        assertSame(read, cache.get("CN=Ann, ou=people,dc=example,dc=com"));
+    }
+
+    @Test
+    public void readStartedBeforeAnUpdateIsDropped() {
+
+        EntryCache cache = new EntryCache(100, 60000L);
+        long stamp = cache.stamp(DN);
+
+        // the update goes through while the read is on its way
+        LdapEntry updated = entry("Lee-Smith");
+        cache.put(updated);
+
+        assertFalse(cache.putIfUnchanged(entry("Lee"), stamp));
+        assertSame(updated, cache.get(DN));
+    }
+
+    @Test
+    public void readStartedBeforeADeleteIsDropped() {
+
+        EntryCache cache = new EntryCache(100, 60000L);
+        long stamp = cache.stamp(DN);
+
+        cache.invalidate(DN);
+
+        assertFalse(cache.putIfUnchanged(entry("Lee"), stamp));
+        assertNull(cache.get(DN));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void readStartedBeforeMissedChangesIsDropped() {
+
+        EntryCache cache = new EntryCache(100, 60000L);
+        long stamp = cache.stamp(DN);
+
+        cache.clear();
+
+        assertFalse(cache.putIfUnchanged(entry("Lee"), stamp));
+    }
+
+    private static LdapEntry entry(String surname) {
+
+        AttributeMap attributes = new AttributeMap();
+        attributes.put("sn", surname);
+        return new LdapEntry(DN, attributes);
+    }
+}
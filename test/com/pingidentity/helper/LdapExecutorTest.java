@@ -0,0 +1,101 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import org.junit.Test;
+
+public class LdapExecutorTest {
+
+    private static final Callable<String> NEXT = new Callable<String>() {
+        public String call() {
+            return "next";
+        }
+    };
+
+    @Test
+    public void timedOutCallKeepsItsSlotUntilItReturns() throws Exception {
+
+        LdapExecutor executor = new LdapExecutor(1, 200L);
+        final CountDownLatch stuck = new CountDownLatch(1);
+
+        try {
+            executor.call(new Callable<String>() {
+                public String call() {
+                    // like a socket read, deaf to interrupts
+                    boolean done = false;
+                    while (!done) {
+                        try {
+                            done = stuck.await(10L, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                    return "late";
+                }
+            });
+            fail("Expected the call to time out");
+        } catch (TimeLimitExceededException expected) {
+        }
+
+        assertEquals(1, executor.getAbandonedCount());
+        assertEquals(1, executor.getActiveCount());
+
+        stuck.countDown();
+        for (int i = 0; i < 100 && executor.getActiveCount() > 0; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, executor.getAbandonedCount());
+        assertEquals(0, executor.getActiveCount());
+
+        assertEquals("next", executor.call(NEXT));
+        executor.shutdown();
+    }
+
+    @Test
+    public void fullGateFailsFast() throws Exception {
+
+        final LdapExecutor executor = new LdapExecutor(1, 0L);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.call(new Callable<String>() {
+                        public String call() throws InterruptedException {
+                            started.countDown();
+                            release.await(10L, TimeUnit.SECONDS);
+                            return "first";
+                        }
+                    });
+                } catch (Exception e) {
+                }
+            }
+        };
+        holder.start();
+        started.await(10L, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        try {
+            executor.call(NEXT);
+            fail("Expected the full gate to refuse the call");
+        } catch (ServiceUnavailableException expected) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        holder.join(10000L);
+        assertEquals("next", executor.call(NEXT));
+        executor.shutdown();
+    }
+}
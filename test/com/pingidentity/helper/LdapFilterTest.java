@@ -0,0 +1,41 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class LdapFilterTest {
+
+    // as the provisioner configures it: two readable attributes and a hidden active flag
+    private static final AttributeMappingPlan PLAN = AttributeMappingPlan.builder()
+            .passthrough("mail").passthrough("title").passthrough("accountActive").skipOnRead("accountActive").build();
+
+    @Test
+    public void translatesReadableAttributes() {
+
+        LdapFilter filter = LdapFilter.fromScim("mail eq \"ann@example.com\"", PLAN);
+        assertEquals("(mail={0})", filter.getFilter());
+        assertArrayEquals(new Object[] { "ann@example.com" }, filter.getArgs());
+
+        assertEquals("(title=*)", LdapFilter.fromScim("title pr", PLAN).getFilter());
+        assertEquals("(cn={0})", LdapFilter.fromScim("userName eq \"ann\"", PLAN).getFilter());
+        assertEquals("(cn={0})", LdapFilter.fromScim("urn:ietf:params:scim:schemas:core:2.0:User:id eq \"ann\"", PLAN).getFilter());
+    }
+
+    @Test
+    public void rejectsAttributesOutsideTheReadContract() {
+        assertRejected("userPassword eq \"guess\"");
+        assertRejected("accountActive eq true");
+        assertRejected("employeeNumber pr");
+    }
+
+    private static void assertRejected(String scimFilter) {
+        try {
+            LdapFilter.fromScim(scimFilter, PLAN);
+            fail("Accepted " + scimFilter);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NegativeLookupCacheTest {
+
+    private static final String DN = "cn=ann,ou=people,dc=example,dc=com";
+
+    @Test
+    public void missIsRecordedWhenNothingWasCreated() {
+
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 60000L);
+        long stamp = cache.stamp(DN);
+
+        assertTrue(cache.recordMissingIfUnchanged(DN, stamp));
+        assertTrue(cache.isMissing("CN=Ann, ou=people,dc=example,dc=com"));
+    }
+
+    @Test
+    public void missOfALookupThatRacedWithACreateIsIgnored() {
+
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 60000L);
+        long stamp = cache.stamp(DN);
+
+        // the create finishes while the lookup is on its way
+        cache.remove(DN);
+
+        assertFalse(cache.recordMissingIfUnchanged(DN, stamp));
+        assertFalse(cache.isMissing(DN));
+    }
+
+    @Test
+    public void missOfALookupStartedBeforeMissedChangesIsIgnored() {
+
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 60000L);
+        long stamp = cache.stamp(DN);
+
+        cache.clear();
+
+        assertFalse(cache.recordMissingIfUnchanged(DN, stamp));
+        assertFalse(cache.isMissing(DN));
+    }
+}
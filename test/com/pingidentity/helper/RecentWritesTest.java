@@ -0,0 +1,77 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RecentWritesTest {
+
+    @Test
+    public void evictsOldestWritesFirst() {
+
+        RecentWrites<String> writes = new RecentWrites<String>(3, 60000L);
+        for (int i = 0; i < 5; i++) {
+            writes.record("dn" + i, "server" + i);
+        }
+
+        assertEquals(3, writes.size());
+        assertNull(writes.get("dn0"));
+        assertNull(writes.get("dn1"));
+        assertEquals("server2", writes.get("dn2"));
+        assertEquals("server4", writes.get("dn4"));
+    }
+
+    @Test
+    public void rewritingAKeyKeepsTheLatestWrite() {
+
+        RecentWrites<String> writes = new RecentWrites<String>(3, 60000L);
+        writes.record("dn0", "server0");
+        writes.record("dn1", "server1");
+        // the first write of dn0 leaves the queue before the rewrite does
+        for (int i = 0; i < 10; i++) {
+            writes.record("dn0", "server" + i);
+        }
+
+        assertEquals("server9", writes.get("dn0"));
+        assertEquals("server1", writes.get("dn1"));
+    }
+
+    @Test
+    public void forgetsWritesOutsideTheWindow() throws Exception {
+
+        RecentWrites<String> writes = new RecentWrites<String>(100, 20L);
+        writes.record("dn0", "server0");
+        assertEquals("server0", writes.get("dn0"));
+
+        Thread.sleep(40L);
+        assertNull(writes.get("dn0"));
+
+        // expired writes leave the map as new ones are recorded
+        writes.record("dn1", "server1");
+        writes.record("dn2", "server1");
+        Thread.sleep(40L);
+        writes.record("dn3", "server3");
+        assertTrue(writes.size() == 1);
+    }
+
+    @Test
+    public void rewritesDoNotKeepAnOlderWritePastItsWindow() throws Exception {
+
+        RecentWrites<String> writes = new RecentWrites<String>(3, 200L);
+        writes.record("dn0", "server0");
+        Thread.sleep(100L);
+
+        // enough rewrites of dn1 behind dn0 to be swept off the queue
+        for (int i = 0; i < 10; i++) {
+            writes.record("dn1", "server" + i);
+        }
+        Thread.sleep(150L);
+
+        // dn0 has expired, dn1 has not
+        writes.record("dn2", "server2");
+        assertEquals(2, writes.size());
+        assertEquals("server9", writes.get("dn1"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestLoggerTest {
+
+    @Test
+    public void sameKeyGivesTheSameToken() {
+
+        RequestLogger node1 = new RequestLogger();
+        RequestLogger node2 = new RequestLogger();
+        node1.setTokenKey("shared secret");
+        node2.setTokenKey("shared secret");
+
+        assertEquals(node1.redact("ann.lee@example.com"), node2.redact("ann.lee@example.com"));
+        assertFalse(node1.redact("ann.lee@example.com").equals(node1.redact("bob.kim@example.com")));
+        assertTrue(node1.redact("ann.lee@example.com").matches("[0-9a-f]{16}"));
+    }
+
+    @Test
+    public void otherKeyGivesAnotherToken() {
+
+        RequestLogger logger = new RequestLogger();
+        logger.setTokenKey("shared secret");
+        String token = logger.redact("ann.lee@example.com");
+
+        logger.setTokenKey("another secret");
+        assertFalse(token.equals(logger.redact("ann.lee@example.com")));
+
+        // without a key, a random one
+        logger.setTokenKey("");
+        assertFalse(token.equals(logger.redact("ann.lee@example.com")));
+        assertFalse(new RequestLogger().redact("ann.lee@example.com").equals(new RequestLogger().redact("ann.lee@example.com")));
+    }
+
+    @Test
+    public void missingIdIsADash() {
+        assertEquals("-", new RequestLogger().redact(null));
+    }
+}
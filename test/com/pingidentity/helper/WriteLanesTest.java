@@ -0,0 +1,134 @@
+package com.pingidentity.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.pingidentity.sdk.provision.exception.BadRequestException;
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+
+public class WriteLanesTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void stopCallers() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void queuedWriteGivesUpBehindAHungOne() throws Exception {
+
+        final WriteLanes<String> lanes = new WriteLanes<String>(100L);
+        final CountDownLatch hung = new CountDownLatch(1);
+
+        Future<String> first = submit(lanes, "cn=ann", false, blockedWrite("first", hung));
+        Thread.sleep(50L);
+
+        long start = System.nanoTime();
+        Future<String> second = submit(lanes, "cn=ann", false, write("second"));
+        assertFailure(second, IdentityStoreException.class);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        assertEquals(1, lanes.getTimedOutCount());
+
+        hung.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+
+        // the withdrawn write is gone, the lane goes on with new writes
+        assertEquals("third", submit(lanes, "cn=ann", false, write("third")).get(5, TimeUnit.SECONDS));
+        assertEquals(0, lanes.getActiveLanes());
+    }
+
+    @Test
+    public void failedMergedWriteFallsBackToEachWrite() throws Exception {
+
+        final WriteLanes<String> lanes = new WriteLanes<String>(0L);
+        final CountDownLatch busy = new CountDownLatch(1);
+
+        Future<String> first = submit(lanes, "cn=ann", false, blockedWrite("first", busy));
+        Thread.sleep(50L);
+        Future<String> valid = submit(lanes, "cn=ann", true, write("valid"));
+        Thread.sleep(50L);
+        Future<String> invalid = submit(lanes, "cn=ann", true, new WriteLanes.Write<String>() {
+            public String run() throws IdentityStoreException {
+                throw new BadRequestException("Bad attribute");
+            }
+        });
+        Thread.sleep(50L);
+
+        busy.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("valid", valid.get(5, TimeUnit.SECONDS));
+        assertFailure(invalid, BadRequestException.class);
+        assertEquals(0, lanes.getCoalescedCount());
+    }
+
+    @Test
+    public void mergesQueuedReplacements() throws Exception {
+
+        final WriteLanes<String> lanes = new WriteLanes<String>(0L);
+        final CountDownLatch busy = new CountDownLatch(1);
+
+        Future<String> first = submit(lanes, "cn=ann", false, blockedWrite("first", busy));
+        Thread.sleep(50L);
+        Future<String> second = submit(lanes, "cn=ann", true, write("second"));
+        Thread.sleep(50L);
+        Future<String> third = submit(lanes, "cn=ann", true, write("third"));
+        Thread.sleep(50L);
+
+        busy.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("third", second.get(5, TimeUnit.SECONDS));
+        assertEquals("third", third.get(5, TimeUnit.SECONDS));
+        assertEquals(1, lanes.getCoalescedCount());
+    }
+
+    private Future<String> submit(final WriteLanes<String> lanes, final String key, final boolean coalescible, final WriteLanes.Write<String> write) {
+        return callers.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return lanes.submit(key, coalescible, write);
+            }
+        });
+    }
+
+    private static WriteLanes.Write<String> write(final String result) {
+        return new WriteLanes.Write<String>() {
+            public String run() {
+                return result;
+            }
+        };
+    }
+
+    private static WriteLanes.Write<String> blockedWrite(final String result, final CountDownLatch until) {
+        return new WriteLanes.Write<String>() {
+            public String run() {
+                try {
+                    until.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static void assertFailure(Future<String> future, Class<? extends Exception> expected) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getClass());
+            return;
+        }
+        throw new AssertionError("Expected " + expected.getSimpleName());
+    }
+}
@@ -0,0 +1,112 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.helper.UnboundIdLdapBackend;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * Batches written through the pipelines of the UnboundID backend against an in-process directory.
+ */
+public class BulkProvisionerTest {
+
+    private static final String BASE_DN = "ou=people,dc=example,dc=com";
+
+    private InMemoryDirectoryServer directory;
+    private LdapProvisioner provisioner;
+    private BulkProvisioner bulk;
+
+    @Before
+    public void startDirectory() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials("cn=Directory Manager", "password");
+        config.setSchema(null);
+
+        directory = new InMemoryDirectoryServer(config);
+        directory.startListening();
+        directory.add("dn: dc=example,dc=com", "objectClass: top", "objectClass: domain", "dc: example");
+        directory.add("dn: " + BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+
+        provisioner = new LdapProvisioner();
+        TestConfiguration configuration = new TestConfiguration(provisioner)
+                .set("LDAP container to provision", BASE_DN)
+                .attributes("sn", "accountActive");
+        provisioner.configure(configuration, new UnboundIdLdapBackend("ldap://localhost:" + directory.getListenPort(),
+                "cn=Directory Manager", "password", new LdapPoolSettings()));
+
+        bulk = new BulkProvisioner(provisioner, 2, 8);
+    }
+
+    @After
+    public void stopDirectory() {
+        bulk.shutdown();
+        directory.shutDown(true);
+    }
+
+    @Test
+    public void everyRequestGetsItsOwnResult() throws Exception {
+
+        provisioner.createUser(new TestRequest("existing", user("existing", "Lee")));
+
+        List<BulkProvisioner.Result> results = bulk.execute(Arrays.asList(
+                BulkProvisioner.Operation.create(new TestRequest("ann", user("ann", "Lee"))),
+                BulkProvisioner.Operation.create(new TestRequest("existing", user("existing", "Lee"))),
+                BulkProvisioner.Operation.create(new TestRequest(null, new AttributeMap())),
+                BulkProvisioner.Operation.delete(new TestRequest("nobody")),
+                BulkProvisioner.Operation.update(new TestRequest("existing", user("existing", "Kim")))));
+
+        assertEquals(BulkProvisioner.Status.SUCCESS, results.get(0).getStatus());
+        assertEquals("Lee", results.get(0).getResponse().getUserAttributes().getSingleValue("sn"));
+        assertEquals(BulkProvisioner.Status.CONFLICT, results.get(1).getStatus());
+        assertEquals(BulkProvisioner.Status.ERROR, results.get(2).getStatus());
+        assertEquals(BulkProvisioner.Status.NOT_FOUND, results.get(3).getStatus());
+        assertEquals(BulkProvisioner.Status.SUCCESS, results.get(4).getStatus());
+        assertEquals("Kim", directory.getEntry("cn=existing," + BASE_DN).getAttributeValue("sn"));
+    }
+
+    @Test
+    public void requestsForOneUserKeepTheirOrderWhateverTheCase() throws Exception {
+
+        // each user by ids differing in case, which the directory takes as the same DN
+        List<BulkProvisioner.Operation> operations = new ArrayList<BulkProvisioner.Operation>();
+        for (int i = 0; i < 200; i++) {
+            operations.add(BulkProvisioner.Operation.create(new TestRequest("user-" + i, user("user-" + i, "Lee"))));
+            operations.add(BulkProvisioner.Operation.update(new TestRequest("USER-" + i, user("USER-" + i, "Kim"))));
+            if (i % 2 == 0) {
+                operations.add(BulkProvisioner.Operation.delete(new TestRequest("User-" + i)));
+            }
+        }
+
+        List<BulkProvisioner.Result> results = bulk.execute(operations);
+
+        for (BulkProvisioner.Result result : results) {
+            assertEquals(result.toString(), BulkProvisioner.Status.SUCCESS, result.getStatus());
+        }
+        // deleted users are disabled by default
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Kim", directory.getEntry("cn=user-" + i + "," + BASE_DN).getAttributeValue("sn"));
+            assertEquals(i % 2 == 0 ? "false" : "true", directory.getEntry("cn=user-" + i + "," + BASE_DN).getAttributeValue("accountActive"));
+        }
+    }
+
+    private static AttributeMap user(String username, String surname) {
+
+        AttributeMap user = new AttributeMap();
+        user.put("username", username);
+        user.put("sn", surname);
+        user.put("accountActive", "true");
+        return user;
+    }
+}
@@ -0,0 +1,143 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.helper.UnboundIdLdapBackend;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+
+/**
+ * Updates of one user that queue up behind a slow one and are merged by the write lanes: each
+ * request is counted the round trips made for it, whichever caller's thread made them.
+ */
+public class CoalescedUpdateTest {
+
+    private static final String BASE_DN = "ou=people,dc=example,dc=com";
+
+    private final CountDownLatch firstModifyStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstModify = new CountDownLatch(1);
+
+    private InMemoryDirectoryServer directory;
+    private LdapProvisioner provisioner;
+
+    @Before
+    public void startDirectory() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials("cn=Directory Manager", "password");
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processModifyRequest(InMemoryInterceptedModifyRequest request) {
+                if (firstModifyStarted.getCount() > 0) {
+                    firstModifyStarted.countDown();
+                    try {
+                        releaseFirstModify.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+
+        directory = new InMemoryDirectoryServer(config);
+        directory.startListening();
+        directory.add("dn: dc=example,dc=com", "objectClass: top", "objectClass: domain", "dc: example");
+        directory.add("dn: " + BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+
+        provisioner = new LdapProvisioner();
+        TestConfiguration configuration = new TestConfiguration(provisioner)
+                .set("LDAP container to provision", BASE_DN)
+                .attributes("sn", "accountActive");
+        provisioner.configure(configuration, new UnboundIdLdapBackend("ldap://localhost:" + directory.getListenPort(),
+                "cn=Directory Manager", "password", new LdapPoolSettings()));
+
+        provisioner.createUser(new TestRequest("ann", user("Lee")));
+    }
+
+    @After
+    public void stopDirectory() {
+        releaseFirstModify.countDown();
+        directory.shutDown(true);
+    }
+
+    @Test
+    public void mergedUpdatesCountTheirOwnRoundTrips() throws Exception {
+
+        Update first = new Update("Lee-1");
+        first.start();
+        firstModifyStarted.await(10, TimeUnit.SECONDS);
+
+        // queued behind the first, then merged: the second's caller runs only the third's write
+        Update second = new Update("Lee-2");
+        second.start();
+        awaitWaiting(second);
+        Update third = new Update("Lee-3");
+        third.start();
+        awaitWaiting(third);
+
+        releaseFirstModify.countDown();
+        first.join(10000);
+        second.join(10000);
+        third.join(10000);
+
+        assertEquals(null, first.failure);
+        assertEquals(null, second.failure);
+        assertEquals(null, third.failure);
+        assertEquals("Lee-3", directory.getEntry("cn=ann," + BASE_DN).getAttributeValue("sn"));
+
+        assertEquals(2, first.roundTrips);
+        assertEquals(0, second.roundTrips);
+        assertEquals(2, third.roundTrips);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static AttributeMap user(String surname) {
+
+        AttributeMap user = new AttributeMap();
+        user.put("username", "ann");
+        user.put("sn", surname);
+        user.put("accountActive", "true");
+        return user;
+    }
+
+    private class Update extends Thread {
+
+        private final String surname;
+        private volatile int roundTrips = -1;
+        private volatile Exception failure;
+
+        Update(String surname) {
+            this.surname = surname;
+        }
+
+        @Override
+        public void run() {
+            try {
+                provisioner.updateUser(new TestRequest("ann", user(surname)));
+            } catch (Exception e) {
+                failure = e;
+            }
+            roundTrips = provisioner.getMetrics().getRequestRoundTrips();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.helper.UnboundIdLdapBackend;
+import com.pingidentity.sdk.provision.exception.BadRequestException;
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+import com.pingidentity.sdk.provision.exception.NotFoundException;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * Users written and read back through the provisioner against an in-process directory, over the
+ * UnboundID backend.
+ */
+public class LdapProvisionerRoundTripTest {
+
+    private static final String BASE_DN = "ou=people,dc=example,dc=com";
+
+    private InMemoryDirectoryServer directory;
+    private LdapProvisioner provisioner;
+
+    // results the directory answers adds and searches with instead of carrying them out, null to carry them out
+    private volatile ResultCode refuseAdds;
+    private volatile ResultCode refuseSearches;
+
+    @Before
+    public void startDirectory() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials("cn=Directory Manager", "password");
+        // accountActive is not in the standard schema
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processAddRequest(InMemoryInterceptedAddRequest request) throws LDAPException {
+                if (refuseAdds != null) {
+                    throw new LDAPException(refuseAdds);
+                }
+            }
+
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+                if (refuseSearches != null) {
+                    throw new LDAPException(refuseSearches);
+                }
+            }
+        });
+
+        directory = new InMemoryDirectoryServer(config);
+        directory.startListening();
+        directory.add("dn: dc=example,dc=com", "objectClass: top", "objectClass: domain", "dc: example");
+        directory.add("dn: " + BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+
+        provisioner = new LdapProvisioner();
+        configure();
+    }
+
+    // the settings a test needs on top of the defaults, as name, value pairs
+    private void configure(String... settings) throws Exception {
+
+        TestConfiguration configuration = new TestConfiguration(provisioner)
+                .set("LDAP container to provision", BASE_DN)
+                .attributes("givenName", "sn", "telephoneNumber", "accountActive");
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            configuration.set(settings[i], settings[i + 1]);
+        }
+        provisioner.configure(configuration, new UnboundIdLdapBackend("ldap://localhost:" + directory.getListenPort(),
+                "cn=Directory Manager", "password", new LdapPoolSettings()));
+    }
+
+    @After
+    public void stopDirectory() {
+        directory.shutDown(true);
+    }
+
+    @Test
+    public void createKeepsEveryValue() throws Exception {
+
+        provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100", "+1 555 0101")));
+
+        assertEquals(set("+1 555 0100", "+1 555 0101"),
+                set(directory.getEntry("cn=ann," + BASE_DN).getAttributeValues("telephoneNumber")));
+    }
+
+    @Test
+    public void readThenReplaceKeepsEveryValue() throws Exception {
+
+        provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100", "+1 555 0101", "+1 555 0102")));
+
+        // GET, then PUT what came back with one attribute changed
+        AttributeMap read = provisioner.readUser(new TestRequest("ann")).getUserAttributes();
+        assertEquals(set("+1 555 0100", "+1 555 0101", "+1 555 0102"), new HashSet<String>(read.get("telephoneNumber").getValues()));
+
+        AttributeMap replace = new AttributeMap();
+        replace.putAll(read);
+        replace.put("username", "ann");
+        replace.put("sn", "Lee-Smith");
+        provisioner.updateUser(new TestRequest("ann", replace));
+
+        assertEquals(set("+1 555 0100", "+1 555 0101", "+1 555 0102"),
+                set(directory.getEntry("cn=ann," + BASE_DN).getAttributeValues("telephoneNumber")));
+        assertEquals("Lee-Smith", directory.getEntry("cn=ann," + BASE_DN).getAttributeValue("sn"));
+    }
+
+    @Test
+    public void replaceChangesSingleValues() throws Exception {
+
+        provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100", "+1 555 0101")));
+
+        AttributeMap replace = user("ann", "+1 555 0101", "+1 555 0199");
+        provisioner.updateUser(new TestRequest("ann", replace));
+
+        assertEquals(set("+1 555 0101", "+1 555 0199"),
+                set(directory.getEntry("cn=ann," + BASE_DN).getAttributeValues("telephoneNumber")));
+    }
+
+    @Test
+    public void failedPermanentDeleteIsReported() throws Exception {
+
+        configure("Delete user behavior", "Permanently Delete User");
+
+        provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100")));
+        // an entry below the user, so the directory refuses to delete it
+        directory.add("dn: cn=device,cn=ann," + BASE_DN, "objectClass: top", "objectClass: device", "cn: device");
+
+        try {
+            provisioner.deleteUser(new TestRequest("ann"));
+            fail("Expected the delete to fail");
+        } catch (IdentityStoreException expected) {
+        }
+
+        assertNotNull(directory.getEntry("cn=ann," + BASE_DN));
+    }
+
+    @Test
+    public void createBreakingTheSchemaIsABadRequest() throws Exception {
+
+        refuseAdds = ResultCode.OBJECT_CLASS_VIOLATION;
+        try {
+            provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100")));
+            fail("Expected the create to fail");
+        } catch (BadRequestException expected) {
+        }
+    }
+
+    @Test
+    public void refusedCreateIsNotReportedAsCreated() throws Exception {
+
+        refuseAdds = ResultCode.INSUFFICIENT_ACCESS_RIGHTS;
+        try {
+            provisioner.createUser(new TestRequest("ann", user("ann", "+1 555 0100")));
+            fail("Expected the create to fail");
+        } catch (BadRequestException e) {
+            fail("Not the client's fault: " + e);
+        } catch (IdentityStoreException expected) {
+        }
+        assertNull(directory.getEntry("cn=ann," + BASE_DN));
+    }
+
+    @Test
+    public void refusedReadIsNotTakenForAMissingUser() throws Exception {
+
+        configure("Not-found cache size", "1000");
+
+        refuseSearches = ResultCode.INSUFFICIENT_ACCESS_RIGHTS;
+        try {
+            provisioner.readUser(new TestRequest("ann"));
+            fail("Expected the read to fail");
+        } catch (NotFoundException e) {
+            fail("Taken for a missing user: " + e);
+        } catch (IdentityStoreException expected) {
+        }
+
+        // the user appears without the provisioner knowing, a read must not answer from the not-found cache
+        refuseSearches = null;
+        directory.add("dn: cn=ann," + BASE_DN, "objectClass: inetOrgPerson", "cn: ann", "sn: Lee", "accountActive: true");
+        assertEquals("Lee", provisioner.readUser(new TestRequest("ann")).getUserAttributes().getSingleValue("sn"));
+    }
+
+    private static AttributeMap user(String username, String... phoneNumbers) {
+
+        AttributeMap user = new AttributeMap();
+        user.put("username", username);
+        user.put("givenName", "Ann");
+        user.put("sn", "Lee");
+        user.put("accountActive", "true");
+        user.put("telephoneNumber", new AttributeValue(Arrays.asList(phoneNumbers)));
+        return user;
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,68 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.gui.FieldDescriptor;
+
+import com.pingidentity.sdk.GuiConfigDescriptor;
+
+/**
+ * A provisioner configuration holding the defaults of the admin console fields, with the settings a
+ * test changes.
+ */
+class TestConfiguration extends Configuration {
+
+    private final Map<String, String> fields = new LinkedHashMap<String, String>();
+    private final Set<String> attributeNames = new LinkedHashSet<String>();
+
+    TestConfiguration(LdapProvisioner provisioner) {
+
+        GuiConfigDescriptor gui = provisioner.getPluginDescriptor().getGuiConfigDescriptor();
+        for (FieldDescriptor field : gui.getFields()) {
+            fields.put(field.getName(), field.getDefaultValue());
+        }
+        for (FieldDescriptor field : gui.getAdvancedFields()) {
+            fields.put(field.getName(), field.getDefaultValue());
+        }
+    }
+
+    TestConfiguration set(String name, String value) {
+
+        if (!fields.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown provisioner setting \"" + name + "\"");
+        }
+        fields.put(name, value);
+        return this;
+    }
+
+    TestConfiguration attributes(String... names) {
+        attributeNames.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    @Override
+    public String getFieldValue(String name) {
+        return fields.get(name);
+    }
+
+    @Override
+    public int getIntFieldValue(String name) {
+        String value = fields.get(name);
+        return value != null && value.trim().length() > 0 ? Integer.parseInt(value.trim()) : 0;
+    }
+
+    @Override
+    public boolean getBooleanFieldValue(String name) {
+        return Boolean.parseBoolean(fields.get(name));
+    }
+
+    @Override
+    public Set<String> getAdditionalAttrNames() {
+        return attributeNames;
+    }
+}
@@ -0,0 +1,38 @@
+package com.pingidentity.identitystoreprovisioner;
+
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.provision.users.request.CreateUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.DeleteUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.ReadUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.UpdateUserRequestContext;
+
+/**
+ * A SCIM request for one user, usable as the context of any provisioner call.
+ */
+class TestRequest implements CreateUserRequestContext, ReadUserRequestContext, UpdateUserRequestContext, DeleteUserRequestContext {
+
+    private final String userId;
+    private final AttributeMap attributes;
+
+    TestRequest(String userId, AttributeMap attributes) {
+        this.userId = userId;
+        this.attributes = attributes;
+    }
+
+    TestRequest(String userId) {
+        this(userId, new AttributeMap());
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getEntityId() {
+        return "test-client";
+    }
+
+    public AttributeMap getUserAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,151 @@
+package com.pingidentity.tools;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import com.pingidentity.helper.AttributeChange;
+import com.pingidentity.helper.LdapBackend;
+import com.pingidentity.helper.LdapEntry;
+import com.pingidentity.helper.LdapEntryHandler;
+
+/**
+ * Decorator that makes another {@link LdapBackend} behave like a remote directory under load: every
+ * call waits a fixed latency plus a uniformly distributed jitter, and a share of calls fails with an
+ * error of the chosen kind. Injected errors happen before the call reaches the delegate, so a failed
+ * write never takes effect. Settings can be changed while calls are running.
+ */
+public class FaultInjectingLdapBackend implements LdapBackend {
+
+    /**
+     * The errors that can be injected, each reported as the LDAP client libraries report it.
+     */
+    public enum Fault {
+        /** The server is too busy to handle the operation, result code 51. */
+        BUSY,
+        /** The server is not accepting operations, result code 52. */
+        UNAVAILABLE,
+        /** The connection is lost during the operation. */
+        CONNECTION_LOST
+    }
+
+    private final LdapBackend delegate;
+
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double errorRate;
+    private volatile Fault fault = Fault.BUSY;
+
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong injectedErrorCount = new AtomicLong();
+
+    public FaultInjectingLdapBackend(LdapBackend delegate) {
+        this.delegate = delegate;
+    }
+
+    public LdapBackend getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Every call takes latencyMicros plus up to jitterMicros more.
+     */
+    public void setLatency(long latencyMicros, long jitterMicros) {
+        this.latencyNanos = Math.max(0L, latencyMicros) * 1000L;
+        this.jitterNanos = Math.max(0L, jitterMicros) * 1000L;
+    }
+
+    /**
+     * The share of calls, between 0 and 1, that fail with the given fault.
+     */
+    public void setErrors(double errorRate, Fault fault) {
+        this.errorRate = Math.max(0.0, Math.min(1.0, errorRate));
+        this.fault = fault;
+    }
+
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrorCount.get();
+    }
+
+    public LdapEntry add(String dn, Map<String, List<String>> attributes, String[] postReadFields) throws NamingException {
+        inject();
+        return delegate.add(dn, attributes, postReadFields);
+    }
+
+    public LdapEntry modify(String dn, List<AttributeChange> changes, String[] postReadFields) throws NamingException {
+        inject();
+        return delegate.modify(dn, changes, postReadFields);
+    }
+
+    public void delete(String dn) throws NamingException {
+        inject();
+        delegate.delete(dn);
+    }
+
+    public LdapEntry read(String dn, String[] returnFields) throws NamingException {
+        inject();
+        return delegate.read(dn, returnFields);
+    }
+
+    public List<LdapEntry> search(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int sizeLimit) throws NamingException {
+        inject();
+        return delegate.search(baseDn, filter, filterArgs, returnFields, sizeLimit);
+    }
+
+    public int searchPaged(String baseDn, String filter, Object[] filterArgs, String[] returnFields, int pageSize, LdapEntryHandler handler) throws NamingException {
+        inject();
+        return delegate.searchPaged(baseDn, filter, filterArgs, returnFields, pageSize, handler);
+    }
+
+    public boolean isControlSupported(String oid) throws NamingException {
+        inject();
+        return delegate.isControlSupported(oid);
+    }
+
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FaultInjectingLdapBackend[latency=" + latencyNanos / 1000L + "us+" + jitterNanos / 1000L + "us, errors=" + errorRate + " " + fault + "] " + delegate;
+    }
+
+    private void inject() throws NamingException {
+
+        callCount.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long delayNanos = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos + 1) : 0L);
+        if (delayNanos > 0) {
+            // parkNanos may return early, so wait out the rest
+            long deadline = System.nanoTime() + delayNanos;
+            for (long left = delayNanos; left > 0; left = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(left);
+            }
+        }
+
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            injectedErrorCount.incrementAndGet();
+
+            switch (fault) {
+            case UNAVAILABLE:
+                throw new ServiceUnavailableException("[LDAP: error code 52 - Unavailable] injected");
+            case CONNECTION_LOST:
+                throw new CommunicationException("Connection lost (injected)");
+            default:
+                throw new ServiceUnavailableException("[LDAP: error code 51 - Busy] injected");
+            }
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package com.pingidentity.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.gui.FieldDescriptor;
+
+import com.pingidentity.helper.Histogram;
+import com.pingidentity.helper.LdapBackend;
+import com.pingidentity.helper.LdapPoolSettings;
+import com.pingidentity.identitystoreprovisioner.BulkProvisioner;
+import com.pingidentity.identitystoreprovisioner.LdapProvisioner;
+import com.pingidentity.sdk.GuiConfigDescriptor;
+import com.pingidentity.sdk.provision.exception.ConflictException;
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+import com.pingidentity.sdk.provision.exception.NotFoundException;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Replays SCIM provisioning traffic against an {@link LdapProvisioner} talking to an UnboundID
+ * {@link InMemoryDirectoryServer} run in process, for sizing nodes and comparing settings without a
+ * directory or a SCIM client. The provisioner reaches the directory over a local connection through
+ * the LDAP client selected in its settings, with its connection pool, post-read and paged results,
+ * as it would in a deployment.
+ *
+ * Requests come from a {@link WorkloadMix} or from a trace file (see {@link ScimOperation}), and a
+ * generated run can be recorded as a trace to replay it exactly. A population of users is created
+ * first, then requests are issued at the target rate: each at its scheduled time whether or not
+ * earlier ones have finished, so latencies include any queueing once the provisioner falls behind.
+ * Requests for one user keep their order, since a user is always handled by the same worker. Without
+ * a rate, each worker sends its next request as soon as the previous one is done.
+ *
+ * The directory can be slowed down and made to fail through a {@link FaultInjectingLdapBackend} in
+ * front of the LDAP client. The report gives per operation the outcomes, throughput, latency
+ * percentiles and directory round trips per request. Provisioner settings are given by their names
+ * in the admin console, all others keep their defaults except request logging, which is off unless
+ * set.
+ *
+ * Usage: ScimLoadGenerator [option=value ...] ["&lt;provisioner setting&gt;=&lt;value&gt;" ...]
+ *
+ *   mix=churn           a profile (create-storm, churn, reconcile, offboard) or create=..,read=..,update=..,delete=..
+ *   trace=&lt;file&gt;        replay the requests of a trace file instead of generating them
+ *   record=&lt;file&gt;       write the generated requests to a trace file
+ *   population=10000    users created before the run
+ *   rate=0              requests per second, 0 for as fast as the workers go
+ *   duration=60         seconds to run, 0 for no limit (the default with a trace)
+ *   operations=0        requests to send, 0 for no limit
+ *   threads=16          workers sending requests
+ *   seed=1              seed of the generated requests
+ *   latency=0           directory latency per call in microseconds
+ *   jitter=0            up to this many microseconds more per call
+ *   errors=0            share of directory calls that fail, from 0 to 1
+ *   fault=busy          kind of failure: busy, unavailable or connection_lost
+ *
+ * For example: ScimLoadGenerator mix=churn rate=2000 latency=800 jitter=400 "LDAP client=UnboundID LDAP SDK"
+ */
+public class ScimLoadGenerator {
+
+    private static final String BASE_DN_SETTING = "LDAP container to provision";
+    private static final String DEFAULT_BASE_DN = "ou=People,dc=example,dc=com";
+    private static final String LOG_SAMPLE_RATE_SETTING = "Request log sampling";
+
+    private static final String BIND_DN = "cn=Directory Manager";
+    private static final String BIND_PASSWORD = "password";
+
+    private static final List<String> OPTIONS = Arrays.asList("mix", "trace", "record", "population", "rate", "duration",
+            "operations", "threads", "seed", "latency", "jitter", "errors", "fault");
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.err.println("Usage: ScimLoadGenerator [option=value ...] [\"<provisioner setting>=<value>\" ...], options " + OPTIONS);
+                System.exit(1);
+            }
+            String name = arg.substring(0, equals);
+            (OPTIONS.contains(name) ? options : settings).put(name, arg.substring(equals + 1));
+        }
+
+        String tracePath = options.get("trace");
+        List<ScimOperation> trace = tracePath != null ? readTrace(tracePath) : null;
+        WorkloadMix mix = WorkloadMix.parse(option(options, "mix", "churn"));
+
+        int population = Integer.parseInt(option(options, "population", trace != null ? "0" : "10000"));
+        double rate = Double.parseDouble(option(options, "rate", "0"));
+        long duration = Long.parseLong(option(options, "duration", trace != null ? "0" : "60"));
+        long operations = Long.parseLong(option(options, "operations", "0"));
+        int threads = Math.max(1, Integer.parseInt(option(options, "threads", "16")));
+        long seed = Long.parseLong(option(options, "seed", "1"));
+
+        // the provisioner, configured as in the admin console but with the faults in front of its LDAP client
+        final FaultInjectingLdapBackend[] injector = new FaultInjectingLdapBackend[1];
+        LdapProvisioner provisioner = new LdapProvisioner() {
+            @Override
+            protected LdapBackend createBackend(String backendName, String serverUrl, String principal, String credentials,
+                    LdapPoolSettings poolSettings) {
+                injector[0] = new FaultInjectingLdapBackend(super.createBackend(backendName, serverUrl, principal, credentials, poolSettings));
+                return injector[0];
+            }
+        };
+        ReplayConfiguration configuration = new ReplayConfiguration(provisioner.getPluginDescriptor().getGuiConfigDescriptor());
+
+        if (configuration.getFieldValue(BASE_DN_SETTING) == null) {
+            configuration.set(BASE_DN_SETTING, DEFAULT_BASE_DN);
+        }
+        // a log line per request would measure the log rather than the provisioner
+        configuration.set(LOG_SAMPLE_RATE_SETTING, "0");
+        for (Map.Entry<String, String> e : settings.entrySet()) {
+            configuration.set(e.getKey(), e.getValue());
+        }
+        configuration.addAttributeNames(trace != null ? attributeNames(trace) : WorkloadMix.USER_ATTRIBUTES);
+
+        InMemoryDirectoryServer directory = startDirectory(configuration.getFieldValue(BASE_DN_SETTING));
+        provisioner.configure(configuration, "ldap://localhost:" + directory.getListenPort(), BIND_DN, BIND_PASSWORD);
+        FaultInjectingLdapBackend faults = injector[0];
+
+        // the population is created on a healthy directory and left out of the report
+        List<String> userIds = new ArrayList<String>(population);
+        List<ScimOperation> creates = new ArrayList<ScimOperation>(population);
+        Random random = new Random(seed);
+        for (int i = 0; i < population; i++) {
+            userIds.add(WorkloadMix.userId(i));
+            creates.add(WorkloadMix.create(userIds.get(i), random));
+        }
+
+        if (population > 0) {
+            long seedStart = System.nanoTime();
+            run(provisioner, creates.iterator(), threads, 0, 0, 0, null);
+            System.out.printf("Created %d users in %.1f s, %d entries in the directory%n", population,
+                    (System.nanoTime() - seedStart) / 1e9, directory.countEntries());
+        }
+
+        faults.setLatency(Long.parseLong(option(options, "latency", "0")), Long.parseLong(option(options, "jitter", "0")));
+        faults.setErrors(Double.parseDouble(option(options, "errors", "0")),
+                FaultInjectingLdapBackend.Fault.valueOf(option(options, "fault", "busy").toUpperCase(Locale.ENGLISH)));
+        long callsBefore = faults.getCallCount();
+
+        Iterator<ScimOperation> requests;
+        if (trace != null) {
+            requests = trace.iterator();
+            System.out.println("Replaying " + trace.size() + " requests from " + tracePath);
+        } else {
+            final WorkloadMix.Generator generator = mix.generator(userIds, seed);
+            requests = new Iterator<ScimOperation>() {
+                public boolean hasNext() {
+                    return true;
+                }
+
+                public ScimOperation next() {
+                    return generator.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            System.out.println("Generating " + mix);
+        }
+        System.out.println("Directory: " + faults);
+
+        Writer record = null;
+        if (options.containsKey("record")) {
+            record = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.get("record")), "UTF-8"));
+            record.write("# mix=" + mix + " population=" + population + " seed=" + seed + "\n");
+        }
+
+        Report report;
+        try {
+            report = run(provisioner, requests, threads, rate, TimeUnit.SECONDS.toNanos(duration), operations, record);
+        } finally {
+            if (record != null) {
+                record.close();
+            }
+        }
+
+        report.print();
+        System.out.printf("%nDirectory calls: %d, injected errors: %d, entries: %d%n",
+                faults.getCallCount() - callsBefore, faults.getInjectedErrorCount(), directory.countEntries());
+
+        directory.shutDown(true);
+    }
+
+    /**
+     * An in-memory directory holding only the container of the users, without schema checking so any
+     * attribute the provisioner is configured for can be written.
+     */
+    private static InMemoryDirectoryServer startDirectory(String baseDn) throws LDAPException {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(baseDn);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setSchema(null);
+
+        InMemoryDirectoryServer directory = new InMemoryDirectoryServer(config);
+        directory.startListening();
+
+        Entry container = new Entry(baseDn);
+        container.addAttribute("objectClass", "top", "extensibleObject");
+        for (Attribute naming : new DN(baseDn).getRDN().getAttributes()) {
+            container.addAttribute(naming);
+        }
+        directory.add(container);
+
+        return directory;
+    }
+
+    /**
+     * Sends requests until they run out, the duration has passed or the number of operations is
+     * reached, whichever comes first (0 for no limit), then waits for the last ones to finish.
+     */
+    private static Report run(final LdapProvisioner provisioner, Iterator<ScimOperation> requests, int threads, double rate,
+            long durationNanos, long maxOperations, Writer record) throws IOException, InterruptedException {
+
+        final Report report = new Report();
+
+        // one worker per lane, so a user's requests run one after the other in order
+        ExecutorService[] lanes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "scim-replay-" + (i + 1);
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        // without a rate, each worker has one request in flight
+        final Semaphore inFlight = rate > 0 ? null : new Semaphore(threads);
+
+        long start = System.nanoTime();
+        long sent = 0;
+
+        while (requests.hasNext() && (maxOperations <= 0 || sent < maxOperations)) {
+
+            long scheduled;
+            if (rate > 0) {
+                scheduled = start + (long) (sent * 1e9 / rate);
+                for (long wait = scheduled - System.nanoTime(); wait > 0; wait = scheduled - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                inFlight.acquire();
+                scheduled = System.nanoTime();
+            }
+
+            if (durationNanos > 0 && scheduled - start >= durationNanos) {
+                if (inFlight != null) {
+                    inFlight.release();
+                }
+                break;
+            }
+
+            final ScimOperation request = requests.next();
+            final long scheduledNanos = scheduled;
+            sent++;
+
+            if (record != null) {
+                record.write(request.toString());
+                record.write('\n');
+            }
+
+            lanes[(request.getUserId().hashCode() & Integer.MAX_VALUE) % threads].execute(new Runnable() {
+                public void run() {
+                    try {
+                        execute(provisioner, request, scheduledNanos, report);
+                    } finally {
+                        if (inFlight != null) {
+                            inFlight.release();
+                        }
+                    }
+                }
+            });
+        }
+
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static void execute(LdapProvisioner provisioner, ScimOperation request, long scheduledNanos, Report report) {
+
+        BulkProvisioner.Status status = BulkProvisioner.Status.SUCCESS;
+        String error = null;
+
+        try {
+            switch (request.getType()) {
+            case CREATE:
+                provisioner.createUser(request);
+                break;
+            case READ:
+                provisioner.readUser(request);
+                break;
+            case UPDATE:
+                provisioner.updateUser(request);
+                break;
+            default:
+                provisioner.deleteUser(request);
+            }
+        } catch (ConflictException e) {
+            status = BulkProvisioner.Status.CONFLICT;
+        } catch (NotFoundException e) {
+            status = BulkProvisioner.Status.NOT_FOUND;
+        } catch (IdentityStoreException e) {
+            status = BulkProvisioner.Status.ERROR;
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        } catch (RuntimeException e) {
+            status = BulkProvisioner.Status.ERROR;
+            error = e.toString();
+        }
+
+        // the directory calls of the request that last ran on this thread, including those of an
+        // update or delete that another caller's thread ran for it in the write lanes
+        int roundTrips = provisioner.getMetrics().getRequestRoundTrips();
+        long latencyMicros = (System.nanoTime() - scheduledNanos) / 1000L;
+
+        report.record(request.getType(), status, latencyMicros, roundTrips, error);
+    }
+
+    private static List<ScimOperation> readTrace(String path) throws IOException {
+
+        List<ScimOperation> trace = new ArrayList<ScimOperation>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+
+        try {
+            int lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                try {
+                    ScimOperation request = ScimOperation.parse(line);
+                    if (request != null) {
+                        trace.add(request);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return trace;
+    }
+
+    // every attribute a create or update of the trace carries, which the provisioner must be configured for
+    private static Set<String> attributeNames(List<ScimOperation> trace) {
+
+        Set<String> names = new LinkedHashSet<String>();
+        for (ScimOperation request : trace) {
+            names.addAll(request.getAttributes().keySet());
+        }
+        names.remove(ScimOperation.USERNAME);
+        return names;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Outcomes, latencies and round trips per operation.
+     */
+    private static class Report {
+
+        private final Map<ScimOperation.Type, Stats> stats = new LinkedHashMap<ScimOperation.Type, Stats>();
+        private final Stats total = new Stats();
+        private volatile String lastError;
+        private long elapsedNanos;
+
+        Report() {
+            for (ScimOperation.Type type : ScimOperation.Type.values()) {
+                stats.put(type, new Stats());
+            }
+        }
+
+        void record(ScimOperation.Type type, BulkProvisioner.Status status, long latencyMicros, int roundTrips, String error) {
+
+            stats.get(type).record(status, latencyMicros, roundTrips);
+            total.record(status, latencyMicros, roundTrips);
+
+            if (error != null) {
+                lastError = error;
+            }
+        }
+
+        void print() {
+
+            double seconds = elapsedNanos / 1e9;
+
+            System.out.printf("%n%-9s %8s %8s %8s %8s %8s %9s %8s %8s %8s %8s %8s %7s %7s%n", "operation", "count", "ok", "conflict",
+                    "notfound", "errors", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "trips", "p99 tr");
+
+            for (Map.Entry<ScimOperation.Type, Stats> e : stats.entrySet()) {
+                if (e.getValue().latency.getCount() > 0) {
+                    e.getValue().print(e.getKey().name().toLowerCase(Locale.ENGLISH), seconds);
+                }
+            }
+            total.print("total", seconds);
+
+            System.out.printf("%nElapsed: %.1f s%n", seconds);
+            if (lastError != null) {
+                System.out.println("Last error: " + lastError);
+            }
+        }
+    }
+
+    private static class Stats {
+
+        private final Histogram latency = new Histogram();
+        private final Histogram roundTrips = new Histogram();
+        private final AtomicLongArray outcomes = new AtomicLongArray(BulkProvisioner.Status.values().length);
+
+        void record(BulkProvisioner.Status status, long latencyMicros, int trips) {
+            outcomes.incrementAndGet(status.ordinal());
+            latency.record(latencyMicros);
+            roundTrips.record(trips);
+        }
+
+        void print(String name, double seconds) {
+
+            long count = latency.getCount();
+
+            System.out.printf("%-9s %8d %8d %8d %8d %8d %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f %7.2f %7d%n", name, count,
+                    outcomes.get(BulkProvisioner.Status.SUCCESS.ordinal()), outcomes.get(BulkProvisioner.Status.CONFLICT.ordinal()),
+                    outcomes.get(BulkProvisioner.Status.NOT_FOUND.ordinal()), outcomes.get(BulkProvisioner.Status.ERROR.ordinal()),
+                    seconds > 0 ? count / seconds : 0.0, latency.getMean() / 1000.0, latency.getValueAtPercentile(50) / 1000.0,
+                    latency.getValueAtPercentile(90) / 1000.0, latency.getValueAtPercentile(99) / 1000.0, latency.getMax() / 1000.0,
+                    roundTrips.getMean(), roundTrips.getValueAtPercentile(99));
+        }
+    }
+
+    /**
+     * A plugin configuration as the admin console would save it: every setting at its default
+     * unless given, and the attributes of the extended contract.
+     */
+    private static class ReplayConfiguration extends Configuration {
+
+        private final Map<String, String> fields = new LinkedHashMap<String, String>();
+        private final Set<String> attributeNames = new LinkedHashSet<String>();
+
+        ReplayConfiguration(GuiConfigDescriptor gui) {
+
+            for (FieldDescriptor field : gui.getFields()) {
+                fields.put(field.getName(), field.getDefaultValue());
+            }
+            for (FieldDescriptor field : gui.getAdvancedFields()) {
+                fields.put(field.getName(), field.getDefaultValue());
+            }
+        }
+
+        void set(String name, String value) {
+
+            if (!fields.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown provisioner setting \"" + name + "\", expected one of " + fields.keySet());
+            }
+            fields.put(name, value);
+        }
+
+        void addAttributeNames(Iterable<String> names) {
+            for (String name : names) {
+                attributeNames.add(name);
+            }
+        }
+
+        @Override
+        public String getFieldValue(String name) {
+            return fields.get(name);
+        }
+
+        @Override
+        public int getIntFieldValue(String name) {
+            String value = fields.get(name);
+            return value != null && value.trim().length() > 0 ? Integer.parseInt(value.trim()) : 0;
+        }
+
+        @Override
+        public boolean getBooleanFieldValue(String name) {
+            return Boolean.parseBoolean(fields.get(name));
+        }
+
+        @Override
+        public Set<String> getAdditionalAttrNames() {
+            return attributeNames;
+        }
+    }
+}
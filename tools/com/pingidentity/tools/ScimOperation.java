@@ -0,0 +1,132 @@
+package com.pingidentity.tools;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.provision.users.request.CreateUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.DeleteUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.ReadUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.UpdateUserRequestContext;
+
+/**
+ * One SCIM request of a workload, usable as the request context of whichever provisioner call its
+ * type calls for.
+ *
+ * In a trace file each request is a line of tab separated fields: the operation (create, read,
+ * update or delete), the user id and, for creates and updates, the user's attributes as name=value.
+ * The user id of a create is its username. Blank lines and lines starting with # are skipped.
+ *
+ *   create  user-17  username=user-17  givenName=Ann  sn=Lee  accountActive=true
+ *   read    user-17
+ */
+public class ScimOperation implements CreateUserRequestContext, ReadUserRequestContext, UpdateUserRequestContext, DeleteUserRequestContext {
+
+    public enum Type { CREATE, READ, UPDATE, DELETE }
+
+    /** The entity id of the SCIM client the requests appear to come from. */
+    public static final String ENTITY_ID = "scim-replay";
+
+    /** The core contract attribute holding the user id of a create. */
+    public static final String USERNAME = "username";
+
+    private final Type type;
+    private final String userId;
+    private final Map<String, String> attributes;
+
+    public ScimOperation(Type type, String userId, Map<String, String> attributes) {
+
+        this.type = type;
+        this.userId = userId;
+
+        if (type == Type.CREATE || type == Type.UPDATE) {
+            Map<String, String> copy = new LinkedHashMap<String, String>();
+            copy.put(USERNAME, userId);
+            if (attributes != null) {
+                copy.putAll(attributes);
+            }
+            this.attributes = Collections.unmodifiableMap(copy);
+        } else {
+            this.attributes = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Parses a line of a trace file, or returns null for a blank or comment line.
+     */
+    public static ScimOperation parse(String line) {
+
+        if (line.trim().length() == 0 || line.trim().startsWith("#")) {
+            return null;
+        }
+
+        String[] fields = line.trim().split("\t");
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Expected an operation and a user id: " + line);
+        }
+
+        Type type;
+        try {
+            type = Type.valueOf(fields[0].trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown operation " + fields[0] + ": " + line);
+        }
+
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 2; i < fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected name=value, not " + fields[i] + ": " + line);
+            }
+            attributes.put(fields[i].substring(0, equals).trim(), fields[i].substring(equals + 1));
+        }
+
+        return new ScimOperation(type, fields[1].trim(), attributes);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getEntityId() {
+        return ENTITY_ID;
+    }
+
+    /**
+     * The attributes sent with a create or update, including the username; empty for reads and
+     * deletes.
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public AttributeMap getUserAttributes() {
+
+        // a new map per call, the provisioner is free to change it
+        AttributeMap map = new AttributeMap();
+        for (Map.Entry<String, String> e : attributes.entrySet()) {
+            map.put(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * The request as a line of a trace file.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder line = new StringBuilder(type.name().toLowerCase(Locale.ENGLISH)).append('\t').append(userId);
+        for (Map.Entry<String, String> e : attributes.entrySet()) {
+            line.append('\t').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,156 @@
+package com.pingidentity.tools;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.ldap.LdapContext;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.pingidentity.helper.Histogram;
+import com.pingidentity.helper.LdapTls;
+import com.pingidentity.helper.TlsSocketFactory;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+
+/**
+ * Measures what TLS session resumption saves when connections are opened: starts an in-memory
+ * directory with an LDAPS and a StartTLS listener, then opens and binds connections one after the
+ * other through {@link LdapTls}, with both client libraries, both transports and resumption on and
+ * off, and prints the handshake counts and connect-and-bind latencies of each combination.
+ *
+ * The server's key comes from a key store whose certificate names localhost, for example:
+ *
+ *   keytool -genkeypair -alias server -keyalg EC -dname CN=localhost -ext SAN=dns:localhost
+ *       -validity 30 -keystore bench.p12 -storepass changeit
+ *
+ * Usage: TlsHandshakeBenchmark &lt;key store&gt; &lt;password&gt; [connections] [protocols]
+ */
+public class TlsHandshakeBenchmark {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String BIND_DN = "cn=Directory Manager";
+    private static final String BIND_PASSWORD = "password";
+    private static final int WARM_UP = 20;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Usage: TlsHandshakeBenchmark <key store> <password> [connections] [protocols]");
+            System.exit(1);
+        }
+
+        char[] password = args[1].toCharArray();
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String[] protocols = args.length > 3 ? TlsSocketFactory.parseList(args[3]) : null;
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        // the client trusts the server's own certificate
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        InetAddress localhost = InetAddress.getByName("localhost");
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setListenerConfigs(
+                InMemoryListenerConfig.createLDAPSConfig("ldaps", localhost, 0, serverContext.getServerSocketFactory(), null),
+                InMemoryListenerConfig.createLDAPConfig("ldap", localhost, 0, serverContext.getSocketFactory()));
+
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.startListening();
+
+        try {
+            String ldapsUrl = "ldaps://localhost:" + server.getListenPort("ldaps");
+            String ldapUrl = "ldap://localhost:" + server.getListenPort("ldap");
+
+            System.out.printf("%-10s %-9s %-10s %8s %10s %8s %9s %9s %9s%n",
+                    "client", "transport", "resumption", "conns", "handshakes", "resumed", "mean ms", "p50 ms", "p99 ms");
+
+            for (boolean jndi : new boolean[] { true, false }) {
+                for (boolean startTls : new boolean[] { false, true }) {
+                    for (boolean resumption : new boolean[] { true, false }) {
+                        LdapTls tls = new LdapTls(startTls, protocols, null, resumption ? 3600 : 0, trustManagers.getTrustManagers());
+                        String url = startTls ? ldapUrl : ldapsUrl;
+
+                        for (int i = 0; i < WARM_UP; i++) {
+                            connect(tls, url, jndi);
+                        }
+
+                        Histogram latency = new Histogram();
+                        long handshakesBefore = tls.getHandshakeCount();
+                        long resumedBefore = tls.getResumedHandshakeCount();
+
+                        for (int i = 0; i < connections; i++) {
+                            long start = System.nanoTime();
+                            connect(tls, url, jndi);
+                            latency.record((System.nanoTime() - start) / 1000L);
+                        }
+
+                        // handshake listeners run on their own threads
+                        Thread.sleep(200);
+
+                        System.out.printf("%-10s %-9s %-10s %8d %10d %8d %9.2f %9.2f %9.2f%n",
+                                jndi ? "JNDI" : "UnboundID", tls.getMode(), resumption ? "on" : "off", connections,
+                                tls.getHandshakeCount() - handshakesBefore, tls.getResumedHandshakeCount() - resumedBefore,
+                                latency.getMean() / 1000.0, latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0);
+                    }
+                }
+            }
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    // opens, secures and binds one connection, then closes it
+    private static void connect(LdapTls tls, String url, boolean jndi) throws Exception {
+
+        if (jndi) {
+            Hashtable<String, Object> environment = new Hashtable<String, Object>();
+            environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+            environment.put(Context.PROVIDER_URL, url);
+            environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+            environment.put(Context.SECURITY_PRINCIPAL, BIND_DN);
+            environment.put(Context.SECURITY_CREDENTIALS, BIND_PASSWORD);
+
+            LdapContext ctx = tls.connect(environment);
+            ctx.close();
+            return;
+        }
+
+        List<String> urls = Collections.singletonList(url);
+        LDAPConnectionOptions options = new LDAPConnectionOptions();
+        tls.configure(options);
+
+        String hostPort = url.substring(url.indexOf("://") + 3);
+        LDAPConnection connection = new LDAPConnection(tls.socketFactoryFor(urls), options,
+                hostPort.substring(0, hostPort.indexOf(':')), Integer.parseInt(hostPort.substring(hostPort.indexOf(':') + 1)));
+        try {
+            tls.startTls(connection, urls);
+            connection.bind(BIND_DN, BIND_PASSWORD);
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.pingidentity.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The share of creates, reads, updates and deletes in a generated workload, and the generator that
+ * turns it into a stream of requests.
+ *
+ * Named profiles cover the traffic provisioning typically sees: a create storm during an initial
+ * load, update-heavy churn, read-heavy reconciliation and a wave of deletes (or disables) when
+ * accounts are offboarded. Any other mix is given as weights, for example
+ * create=5,read=60,update=30,delete=5.
+ */
+public class WorkloadMix {
+
+    /** The attributes of generated users besides the username, as the provisioner is configured for them. */
+    public static final List<String> USER_ATTRIBUTES = Collections.unmodifiableList(
+            Arrays.asList("givenName", "sn", "mail", "title", "telephoneNumber", "accountActive"));
+
+    private static final Map<String, WorkloadMix> PROFILES = new LinkedHashMap<String, WorkloadMix>();
+
+    static {
+        PROFILES.put("create-storm", new WorkloadMix(100, 0, 0, 0));
+        PROFILES.put("churn", new WorkloadMix(5, 20, 70, 5));
+        PROFILES.put("reconcile", new WorkloadMix(0, 90, 10, 0));
+        PROFILES.put("offboard", new WorkloadMix(0, 10, 0, 90));
+    }
+
+    private static final String[] GIVEN_NAMES = { "Ann", "Ben", "Chloe", "Dev", "Eva", "Felix", "Grace", "Hugo", "Iris", "Jon" };
+    private static final String[] SURNAMES = { "Lee", "Garcia", "Smith", "Nguyen", "Khan", "Novak", "Rossi", "Meyer", "Silva", "Kim" };
+    private static final String[] TITLES = { "Engineer", "Analyst", "Manager", "Consultant", "Designer", "Director", "Architect", "Administrator" };
+
+    private final int[] weights;
+    private final int total;
+
+    public WorkloadMix(int create, int read, int update, int delete) {
+
+        this.weights = new int[] { create, read, update, delete };
+
+        int sum = 0;
+        for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight in " + Arrays.toString(weights));
+            }
+            sum += weight;
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("A workload mix needs at least one operation");
+        }
+
+        this.total = sum;
+    }
+
+    /**
+     * A named profile, or weights as create=..,read=..,update=..,delete=.. where missing operations
+     * have weight 0.
+     */
+    public static WorkloadMix parse(String value) {
+
+        WorkloadMix profile = PROFILES.get(value.trim().toLowerCase(Locale.ENGLISH));
+        if (profile != null) {
+            return profile;
+        }
+
+        int[] weights = new int[ScimOperation.Type.values().length];
+
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Unknown workload mix " + value + ", expected one of " + PROFILES.keySet() + " or weights as create=..,read=..,update=..,delete=..");
+            }
+            ScimOperation.Type type = ScimOperation.Type.valueOf(pair[0].trim().toUpperCase(Locale.ENGLISH));
+            weights[type.ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+
+        return new WorkloadMix(weights[0], weights[1], weights[2], weights[3]);
+    }
+
+    public static List<String> getProfileNames() {
+        return new ArrayList<String>(PROFILES.keySet());
+    }
+
+    /**
+     * A generator over a population of existing users, the ids of which it may read, update or
+     * delete. New users continue the numbering of the population.
+     */
+    public Generator generator(List<String> population, long seed) {
+        return new Generator(population, seed);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder mix = new StringBuilder();
+        for (ScimOperation.Type type : ScimOperation.Type.values()) {
+            if (mix.length() > 0) {
+                mix.append(',');
+            }
+            mix.append(type.name().toLowerCase(Locale.ENGLISH)).append('=').append(weights[type.ordinal()]);
+        }
+        return mix.toString();
+    }
+
+    /**
+     * The id of the n-th generated user.
+     */
+    public static String userId(int n) {
+        return "user-" + n;
+    }
+
+    /**
+     * A create request for a user with generated attributes.
+     */
+    public static ScimOperation create(String userId, Random random) {
+        return new ScimOperation(ScimOperation.Type.CREATE, userId, user(userId, random));
+    }
+
+    private static Map<String, String> user(String userId, Random random) {
+
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("givenName", GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+        attributes.put("sn", SURNAMES[random.nextInt(SURNAMES.length)]);
+        attributes.put("mail", userId + "@example.com");
+        attributes.put("title", TITLES[random.nextInt(TITLES.length)]);
+        attributes.put("telephoneNumber", "+1 555 " + (1000000 + random.nextInt(9000000)));
+        attributes.put("accountActive", "true");
+        return attributes;
+    }
+
+    /**
+     * Produces requests in the proportions of the mix, keeping track of which users exist so reads,
+     * updates and deletes name a live user. When none is left every request is a create. Updates
+     * send the whole user, as a SCIM PUT does, with new values for some attributes. Not thread-safe.
+     */
+    public class Generator {
+
+        private final List<String> live;
+        private final Random random;
+        private int nextUser;
+
+        Generator(List<String> population, long seed) {
+            this.live = new ArrayList<String>(population);
+            this.random = new Random(seed);
+            this.nextUser = population.size();
+        }
+
+        public ScimOperation next() {
+
+            ScimOperation.Type type = pick();
+
+            if (type == ScimOperation.Type.CREATE || live.isEmpty()) {
+                String userId = userId(nextUser++);
+                live.add(userId);
+                return create(userId, random);
+            }
+
+            int index = random.nextInt(live.size());
+            String userId = live.get(index);
+
+            switch (type) {
+            case READ:
+                return new ScimOperation(type, userId, null);
+            case UPDATE:
+                return new ScimOperation(type, userId, user(userId, random));
+            default:
+                // swap with the last so removal stays cheap
+                live.set(index, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+                return new ScimOperation(type, userId, null);
+            }
+        }
+
+        public int getLiveUserCount() {
+            return live.size();
+        }
+
+        private ScimOperation.Type pick() {
+
+            int n = random.nextInt(total);
+            for (ScimOperation.Type type : ScimOperation.Type.values()) {
+                n -= weights[type.ordinal()];
+                if (n < 0) {
+                    return type;
+                }
+            }
+            return ScimOperation.Type.CREATE;
+        }
+    }
+}